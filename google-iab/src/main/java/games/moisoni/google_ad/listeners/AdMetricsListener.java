@@ -0,0 +1,17 @@
+package games.moisoni.google_ad.listeners;
+
+/**
+ * Receives the performance metrics of the ad services
+ * <p>
+ * Every method has an empty default implementation, override only the metrics of interest
+ */
+public interface AdMetricsListener {
+
+    /**
+     * Mobile Ads SDK 初始化完成回调
+     *
+     * @param initDurationMillis 从调用 MobileAds.initialize 到初始化完成的耗时
+     */
+    default void onMobileAdsInitialized(long initDurationMillis) {
+    }
+}
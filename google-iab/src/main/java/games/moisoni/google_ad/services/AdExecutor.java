@@ -0,0 +1,53 @@
+package games.moisoni.google_ad.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared background executor of the ad services
+ * <p>
+ * SDK initialization, load retries and ad refreshes run on a small fixed number of named daemon
+ * threads instead of a new thread per task. Delayed tasks return a future that the owning service
+ * cancels when it is destroyed, cancelled tasks are removed from the queue right away.
+ */
+final class AdExecutor {
+
+    private static final int THREAD_COUNT = 2;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static final ScheduledThreadPoolExecutor executor = createExecutor();
+
+    private AdExecutor() {
+    }
+
+    @NonNull
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREAD_COUNT, runnable -> {
+            Thread thread = new Thread(runnable, "ad-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * 在后台线程执行任务
+     */
+    static void execute(@NonNull Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * 延迟执行任务，返回的 ScheduledFuture 可用于取消
+     */
+    @NonNull
+    static ScheduledFuture<?> schedule(@NonNull Runnable task, long delayMs) {
+        return executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,28 @@
+package games.moisoni.google_ad.services;
+
+/**
+ * Decides when a failed ad load is retried, based on the LoadAdError code
+ * <p>
+ * Each pool slot keeps its own count of consecutive failures, reset by a successful load
+ */
+public interface AdLoadBackoffPolicy {
+
+    /**
+     * 不再自动重试，槽位在下一次预加载或展示时重新加载
+     */
+    long NO_RETRY = -1;
+
+    /**
+     * 网络恢复后立即重试
+     */
+    long WHEN_CONNECTED = -2;
+
+    /**
+     * 计算重试延迟
+     *
+     * @param errorCode 加载失败的 LoadAdError 错误码
+     * @param attempt   该槽位连续失败的次数，从 1 开始
+     * @return 延迟毫秒数，或 NO_RETRY / WHEN_CONNECTED
+     */
+    long getRetryDelayMillis(int errorCode, int attempt);
+}
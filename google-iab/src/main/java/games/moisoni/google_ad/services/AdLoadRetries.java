@@ -0,0 +1,190 @@
+package games.moisoni.google_ad.services;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.ads.AdRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Schedules the retries of failed ad loads with an AdLoadBackoffPolicy
+ * <p>
+ * A failed slot stays reserved while it waits, so no other load takes its place, and the
+ * retry loads the same slot again. Loads failed with a network error wait for a network
+ * callback instead of a timer. Everything pending is cancelled with cancelAll.
+ */
+final class AdLoadRetries {
+
+    // 网络恢复后的重试延迟
+    private static final long NETWORK_RETRY_DELAY_MS = 1_000;
+
+    private final String tag;
+    private volatile AdLoadBackoffPolicy policy = new DefaultAdLoadBackoffPolicy();
+    private volatile ConnectivityManager connectivityManager;
+
+    private final Set<PendingRetry> scheduledRetries = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<PendingRetry> networkRetries = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final Object networkCallbackSync = new Object();
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    AdLoadRetries(@NonNull String tag) {
+        this.tag = tag;
+    }
+
+    void setPolicy(@NonNull AdLoadBackoffPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 用于监听网络恢复
+     */
+    void attach(@NonNull Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * 加载失败，按错误码安排该槽位的重试
+     *
+     * @param retry 重新加载同一槽位
+     */
+    void onLoadFailed(@NonNull AdPool<?> pool, int slot, int errorCode, @NonNull Runnable retry) {
+        int attempt = pool.recordFailure(slot, isNoFill(errorCode));
+        long delayMs = policy.getRetryDelayMillis(errorCode, attempt);
+        PendingRetry pendingRetry = new PendingRetry(pool, slot, retry);
+
+        if (delayMs == AdLoadBackoffPolicy.NO_RETRY) {
+            Log.d(tag, "Slot " + slot + " failed with error " + errorCode + ", not retrying");
+            pool.release(slot);
+        } else if (delayMs == AdLoadBackoffPolicy.WHEN_CONNECTED) {
+            if (isConnected()) {
+                // 网络仍然可用，说明是短暂的网络抖动
+                schedule(pendingRetry, NETWORK_RETRY_DELAY_MS * attempt);
+            } else {
+                Log.d(tag, "Slot " + slot + " waits for the network to return");
+                networkRetries.add(pendingRetry);
+                registerNetworkCallback();
+            }
+        } else {
+            Log.d(tag, "Slot " + slot + " retries in " + delayMs + " ms, attempt " + attempt);
+            schedule(pendingRetry, delayMs);
+        }
+    }
+
+    /**
+     * 是否为无填充，只有无填充计入池的填充率，网络错误等与广告库存无关
+     */
+    static boolean isNoFill(int errorCode) {
+        return errorCode == AdRequest.ERROR_CODE_NO_FILL || errorCode == AdRequest.ERROR_CODE_MEDIATION_NO_FILL;
+    }
+
+    /**
+     * 取消所有等待中的重试，并释放它们预占的槽位
+     */
+    void cancelAll() {
+        unregisterNetworkCallback();
+        List<PendingRetry> cancelled = new ArrayList<>(scheduledRetries);
+        cancelled.addAll(networkRetries);
+        scheduledRetries.clear();
+        networkRetries.clear();
+
+        for (PendingRetry pendingRetry : cancelled) {
+            ScheduledFuture<?> future = pendingRetry.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+            pendingRetry.pool.release(pendingRetry.slot);
+        }
+    }
+
+    private void schedule(@NonNull PendingRetry pendingRetry, long delayMs) {
+        scheduledRetries.add(pendingRetry);
+        pendingRetry.future = AdExecutor.schedule(() -> {
+            if (scheduledRetries.remove(pendingRetry)) {
+                pendingRetry.retry.run();
+            }
+        }, delayMs);
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivityManager = this.connectivityManager;
+        if (connectivityManager == null) {
+            return true;
+        }
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+
+    private void registerNetworkCallback() {
+        ConnectivityManager connectivityManager = this.connectivityManager;
+        synchronized (networkCallbackSync) {
+            if (connectivityManager == null || networkCallback != null) {
+                return;
+            }
+
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    onNetworkAvailable();
+                }
+            };
+            connectivityManager.registerNetworkCallback(
+                    new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(),
+                    networkCallback);
+        }
+    }
+
+    private void unregisterNetworkCallback() {
+        synchronized (networkCallbackSync) {
+            ConnectivityManager connectivityManager = this.connectivityManager;
+            if (connectivityManager != null && networkCallback != null) {
+                connectivityManager.unregisterNetworkCallback(networkCallback);
+            }
+            networkCallback = null;
+        }
+    }
+
+    private void onNetworkAvailable() {
+        List<PendingRetry> waiting = new ArrayList<>(networkRetries);
+        networkRetries.removeAll(waiting);
+        if (!waiting.isEmpty()) {
+            Log.d(tag, "Network is back, retrying " + waiting.size() + " slots");
+        }
+
+        for (PendingRetry pendingRetry : waiting) {
+            schedule(pendingRetry, NETWORK_RETRY_DELAY_MS);
+        }
+
+        // 没有等待网络的槽位时停止监听，检查与注册在同一把锁内
+        synchronized (networkCallbackSync) {
+            if (networkRetries.isEmpty()) {
+                unregisterNetworkCallback();
+            }
+        }
+    }
+
+    private static final class PendingRetry {
+        final AdPool<?> pool;
+        final int slot;
+        final Runnable retry;
+        volatile ScheduledFuture<?> future;
+
+        PendingRetry(@NonNull AdPool<?> pool, int slot, @NonNull Runnable retry) {
+            this.pool = pool;
+            this.slot = slot;
+            this.retry = retry;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package games.moisoni.google_ad.services;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe pool of preloaded full screen ads
+ * <p>
+ * Every slot is an atomic reference: empty, loading, or holding a ready ad. Ready ads are served
+ * oldest first. The number of slots kept filled follows the recent show rate, between the
+ * minimum and the maximum depth, so frequent shows keep more ads ready and idle sessions keep one.
+ * <p>
+ * Loaded ads expire after about an hour. Each ad keeps its load time, ads close to the expiry are
+ * never offered, and the owning service refreshes them before that with evictOlderThan.
+ */
+final class AdPool<T> {
+
+    static final int DEFAULT_MIN_DEPTH = 1;
+    static final int DEFAULT_MAX_DEPTH = 4;
+
+    // 超过该时长的广告不再展示（广告约 1 小时后过期，留出余量）
+    static final long MAX_AD_AGE_MS = 55 * 60 * 1000L;
+    // 超过该时长的广告在后台替换
+    static final long REFRESH_AD_AGE_MS = 50 * 60 * 1000L;
+
+    // 统计展示频率的时间窗口
+    private static final long SHOW_RATE_WINDOW_MS = 5 * 60 * 1000L;
+
+    // 正在加载的槽位占位
+    private static final Object LOADING = new Object();
+
+    /**
+     * 单调时钟，单元测试中替换为可控的时间
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private final Clock clock;
+
+    private final AtomicReferenceArray<Object> slots;
+    // 每个槽位连续加载失败的次数，加载成功后清零
+    private final AtomicIntegerArray failureCounts;
+    private final AtomicLong loadSequence = new AtomicLong();
+    private final int minDepth;
+    // 外部分配的预加载上限，由 RewardedAdCoordinator 按填充率设置
+    private volatile int depthLimit = Integer.MAX_VALUE;
+
+    // 加载成功与无填充次数，用于计算填充率
+    private final AtomicLong loadSuccesses = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+
+    // 最近的展示时间，环形缓冲，长度与最大深度相同
+    private final AtomicLongArray showTimes;
+    private final AtomicLong showCount = new AtomicLong();
+
+    AdPool() {
+        this(DEFAULT_MIN_DEPTH, DEFAULT_MAX_DEPTH);
+    }
+
+    AdPool(int minDepth, int maxDepth) {
+        this(minDepth, maxDepth, SystemClock::elapsedRealtime);
+    }
+
+    AdPool(int minDepth, int maxDepth, @NonNull Clock clock) {
+        if (minDepth < 1 || maxDepth < minDepth) {
+            throw new IllegalArgumentException("Pool depth must satisfy 1 <= minDepth <= maxDepth");
+        }
+        this.clock = clock;
+        this.minDepth = minDepth;
+        this.slots = new AtomicReferenceArray<>(maxDepth);
+        this.failureCounts = new AtomicIntegerArray(maxDepth);
+        this.showTimes = new AtomicLongArray(maxDepth);
+    }
+
+    /**
+     * 当前需要保持的广告数量：最小深度加上时间窗口内的展示次数，不超过最大深度
+     */
+    int getTargetDepth() {
+        long now = clock.elapsedRealtime();
+        int recentShows = 0;
+        for (int i = 0; i < showTimes.length(); i++) {
+            long showTime = showTimes.get(i);
+            if (showTime != 0 && now - showTime <= SHOW_RATE_WINDOW_MS) {
+                recentShows++;
+            }
+        }
+        return Math.min(Math.min(minDepth + recentShows, slots.length()), depthLimit);
+    }
+
+    /**
+     * 限制目标深度，已加载的广告不受影响
+     *
+     * @param depthLimit 最多保持的广告数量，至少为 1
+     */
+    void setDepthLimit(int depthLimit) {
+        if (depthLimit < 1) {
+            throw new IllegalArgumentException("Depth limit must be at least 1");
+        }
+        this.depthLimit = depthLimit;
+    }
+
+    /**
+     * 观察到的填充率，加一平滑，没有加载记录时为 0.5
+     */
+    double getFillRate() {
+        long successes = loadSuccesses.get();
+        long failures = loadFailures.get();
+        return (successes + 1.0) / (successes + failures + 2.0);
+    }
+
+    /**
+     * 预占一个空槽位用于加载
+     *
+     * @return 槽位下标，已达到目标深度时返回 -1
+     */
+    int reserveSlot() {
+        int targetDepth = getTargetDepth();
+        int filled = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                filled++;
+            }
+        }
+
+        for (int i = 0; i < slots.length() && filled < targetDepth; i++) {
+            if (slots.compareAndSet(i, null, LOADING)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 加载成功，把广告放入预占的槽位
+     */
+    void fill(int slot, T ad) {
+        failureCounts.set(slot, 0);
+        loadSuccesses.incrementAndGet();
+        slots.set(slot, new Entry<>(ad, loadSequence.incrementAndGet(), clock.elapsedRealtime()));
+    }
+
+    /**
+     * 记录槽位的一次加载失败，槽位保持预占直到重试或释放
+     *
+     * @param noFill 是否为无填充，网络等其他错误不计入填充率
+     * @return 该槽位连续失败的次数
+     */
+    int recordFailure(int slot, boolean noFill) {
+        if (noFill) {
+            loadFailures.incrementAndGet();
+        }
+        return failureCounts.incrementAndGet(slot);
+    }
+
+    /**
+     * 加载失败，释放预占的槽位
+     */
+    void release(int slot) {
+        slots.compareAndSet(slot, LOADING, null);
+    }
+
+    /**
+     * 取出最早加载的广告，并记录一次展示
+     *
+     * @return 广告，没有可用广告时返回 null
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    T poll() {
+        evictOlderThan(MAX_AD_AGE_MS);
+        while (true) {
+            int oldestSlot = -1;
+            Entry<T> oldest = null;
+            for (int i = 0; i < slots.length(); i++) {
+                Object value = slots.get(i);
+                if (value instanceof Entry && (oldest == null || ((Entry<T>) value).sequence < oldest.sequence)) {
+                    oldest = (Entry<T>) value;
+                    oldestSlot = i;
+                }
+            }
+
+            if (oldest == null) {
+                return null;
+            }
+
+            // 其他线程先取走时重新查找
+            if (slots.compareAndSet(oldestSlot, oldest, null)) {
+                long show = showCount.getAndIncrement();
+                showTimes.set((int) (show % showTimes.length()), clock.elapsedRealtime());
+                return oldest.ad;
+            }
+        }
+    }
+
+    /**
+     * 移除加载时长超过 ageMs 的广告，释放其槽位
+     *
+     * @return 移除的广告数量
+     */
+    int evictOlderThan(long ageMs) {
+        long now = clock.elapsedRealtime();
+        int evicted = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            Object value = slots.get(i);
+            if (value instanceof Entry && now - ((Entry<?>) value).loadedAtMillis > ageMs && slots.compareAndSet(i, value, null)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 距离最早加载的广告达到 ageMs 还有多久
+     *
+     * @return 毫秒数，没有已加载的广告时返回 -1
+     */
+    long getMillisUntilAge(long ageMs) {
+        long oldestLoadedAt = Long.MAX_VALUE;
+        for (int i = 0; i < slots.length(); i++) {
+            Object value = slots.get(i);
+            if (value instanceof Entry) {
+                oldestLoadedAt = Math.min(oldestLoadedAt, ((Entry<?>) value).loadedAtMillis);
+            }
+        }
+
+        if (oldestLoadedAt == Long.MAX_VALUE) {
+            return -1;
+        }
+        return Math.max(0, oldestLoadedAt + ageMs - clock.elapsedRealtime());
+    }
+
+    boolean hasReadyAd() {
+        return getReadyCount() > 0;
+    }
+
+    /**
+     * 可展示的广告数量，不含即将过期的广告
+     */
+    int getReadyCount() {
+        long now = clock.elapsedRealtime();
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            Object value = slots.get(i);
+            if (value instanceof Entry && now - ((Entry<?>) value).loadedAtMillis <= MAX_AD_AGE_MS) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Entry<T> {
+        final T ad;
+        final long sequence;
+        final long loadedAtMillis;
+
+        Entry(T ad, long sequence, long loadedAtMillis) {
+            this.ad = ad;
+            this.sequence = sequence;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+    }
+}
@@ -32,7 +32,8 @@ public class BannerAdService implements Serializable {
     private static final long serialVersionUID = -2966827878221209798L;
     private static final String TAG = "BannerAdService";
     private static boolean initialized = false;
-    private final AtomicBoolean isMobileAdsInitializeCalled = new AtomicBoolean(false);
+    // 首次加载只排队一次，SDK 初始化由 MobileAdsBootstrap 统一完成
+    private final AtomicBoolean isFirstLoadQueued = new AtomicBoolean(false);
     private String adUnitId;
     private AdManagerAdView adView;
     private List<String> testDeviceHashedIds;
@@ -82,7 +83,7 @@ public class BannerAdService implements Serializable {
 
             // 4) 其他可释放字段
             testDeviceHashedIds = null;
-            // isMobileAdsInitializeCalled 不需要改回 false，避免重复初始化
+            // isFirstLoadQueued 不需要改回 false，避免重复加载
 
             Log.d(TAG, "BannerAdService resources released.");
         } catch (Exception e) {
@@ -155,21 +156,13 @@ public class BannerAdService implements Serializable {
     }
 
     private void initializeMobileAdsSdk() {
-        if (isMobileAdsInitializeCalled.getAndSet(true)) {
+        if (isFirstLoadQueued.getAndSet(true)) {
             return;
         }
 
-        new Thread(
-                () -> {
-                    // Initialize the Google Mobile Ads SDK on a background thread.
-                    MobileAds.initialize(activityRef.get(), initializationStatus -> {
-                        Log.d(TAG, "BannerAdService Mobile Ads SDK initialized");
-                    });
-
-                    // Load an ad on the main thread.
-                    CommonUtil.runOnUiThread(activityRef.get(), this::loadBanner);
-                })
-                .start();
+        MobileAdsBootstrap.initialize(activityRef.get());
+        // Load an ad on the main thread once the SDK is initialized.
+        MobileAdsBootstrap.whenInitialized(() -> CommonUtil.runOnUiThread(activityRef != null ? activityRef.get() : null, this::loadBanner));
     }
 
     @RequiresPermission("android.permission.INTERNET")
@@ -0,0 +1,43 @@
+package games.moisoni.google_ad.services;
+
+import com.google.android.gms.ads.AdRequest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Default ad load backoff
+ * <p>
+ * No-fill and internal errors back off exponentially with jitter, network errors wait for the network
+ * to return, and invalid requests are never retried since the same request would fail again.
+ */
+public class DefaultAdLoadBackoffPolicy implements AdLoadBackoffPolicy {
+
+    private static final long INITIAL_DELAY_MS = 5_000;
+    private static final long MAX_DELAY_MS = 10 * 60 * 1000L;
+
+    @Override
+    public long getRetryDelayMillis(int errorCode, int attempt) {
+        switch (errorCode) {
+            case AdRequest.ERROR_CODE_NETWORK_ERROR:
+                return WHEN_CONNECTED;
+            case AdRequest.ERROR_CODE_INVALID_REQUEST:
+            case AdRequest.ERROR_CODE_APP_ID_MISSING:
+            case AdRequest.ERROR_CODE_REQUEST_ID_MISMATCH:
+            case AdRequest.ERROR_CODE_INVALID_AD_STRING:
+                return NO_RETRY;
+            case AdRequest.ERROR_CODE_NO_FILL:
+            case AdRequest.ERROR_CODE_MEDIATION_NO_FILL:
+            default:
+                return exponentialDelay(attempt);
+        }
+    }
+
+    /**
+     * 指数退避，在 [delay/2, delay] 之间随机，避免多个槽位同时重试
+     */
+    private static long exponentialDelay(int attempt) {
+        int shift = Math.min(Math.max(attempt - 1, 0), 16);
+        long delay = Math.min(INITIAL_DELAY_MS << shift, MAX_DELAY_MS);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,113 @@
+package games.moisoni.google_ad.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.ads.MobileAds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import games.moisoni.google_ad.listeners.AdMetricsListener;
+
+/**
+ * Process-wide gate of the Mobile Ads SDK initialization
+ * <p>
+ * The SDK is initialized once, whichever ad service asks first. Work registered with whenInitialized,
+ * such as the first ad loads of every service, waits for the initialization callback, so no load
+ * competes with the initialization. The initialization duration is reported as a startup metric.
+ */
+public final class MobileAdsBootstrap {
+
+    private static final String TAG = "MobileAdsBootstrap";
+
+    private static final Object lock = new Object();
+    private static boolean initializeCalled;
+    private static volatile boolean initialized;
+    private static volatile long initDurationMillis = -1;
+    private static final List<Runnable> pendingCallbacks = new ArrayList<>();
+
+    private static volatile AdMetricsListener metricsListener;
+
+    private MobileAdsBootstrap() {
+    }
+
+    /**
+     * 初始化 Mobile Ads SDK，只有第一次调用生效
+     * <p>
+     * 需在 MobileAds.setRequestConfiguration 之后调用，测试设备配置才会对初始化生效
+     */
+    public static void initialize(@NonNull Context context) {
+        Context applicationContext = context.getApplicationContext();
+        synchronized (lock) {
+            if (initializeCalled) {
+                return;
+            }
+            initializeCalled = true;
+        }
+
+        AdExecutor.execute(() -> {
+            long startNanos = System.nanoTime();
+            // Initialize the Google Mobile Ads SDK on a background thread.
+            MobileAds.initialize(applicationContext, initializationStatus -> onInitialized(startNanos));
+        });
+    }
+
+    private static void onInitialized(long startNanos) {
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        List<Runnable> callbacks;
+        synchronized (lock) {
+            initDurationMillis = durationMillis;
+            initialized = true;
+            callbacks = new ArrayList<>(pendingCallbacks);
+            pendingCallbacks.clear();
+        }
+
+        Log.d(TAG, "Mobile Ads SDK initialized in " + durationMillis + " ms");
+        AdMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.onMobileAdsInitialized(durationMillis);
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * 初始化完成后执行回调；已完成时立即在当前线程执行
+     * <p>
+     * 排队的回调在 SDK 的初始化完成回调中按注册顺序执行
+     */
+    public static void whenInitialized(@NonNull Runnable callback) {
+        synchronized (lock) {
+            if (!initialized) {
+                pendingCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * 初始化耗时（毫秒），初始化完成前返回 -1
+     */
+    public static long getInitDurationMillis() {
+        return initDurationMillis;
+    }
+
+    /**
+     * 设置性能指标回调，需在 initialize 之前设置才能收到初始化耗时
+     */
+    public static void setMetricsListener(@Nullable AdMetricsListener listener) {
+        metricsListener = listener;
+    }
+}
@@ -0,0 +1,160 @@
+package games.moisoni.google_ad.services;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Rewarded ad facade over RewardedVideoAdService and RewardedInterstitialAdService
+ * <p>
+ * A show request is served by the highest-priority format holding a ready ad, so a reward
+ * opportunity is not lost while one pool is empty and the other is not. The preload budget is
+ * split between the formats by their observed fill rates, each format keeping at least one slot,
+ * and split again after every load since each result moves the rates.
+ * Only one rewarded ad is shown at a time across both formats.
+ * Both services must be initialized with init() before use.
+ */
+public final class RewardedAdCoordinator {
+
+    private static final String TAG = "RewardedAdCoordinator";
+    private static final int DEFAULT_PRELOAD_BUDGET = 3;
+
+    public enum Format {
+        VIDEO,
+        INTERSTITIAL
+    }
+
+    private final RewardedVideoAdService videoService;
+    private final RewardedInterstitialAdService interstitialService;
+
+    private volatile Format[] priority = {Format.VIDEO, Format.INTERSTITIAL};
+    private volatile int preloadBudget = DEFAULT_PRELOAD_BUDGET;
+
+    // 预算分配可能同时由预加载和加载结果触发
+    private final Object budgetSync = new Object();
+    private int appliedVideoShare;
+    private int appliedInterstitialShare;
+
+    public RewardedAdCoordinator() {
+        this(RewardedVideoAdService.getInstance(), RewardedInterstitialAdService.getInstance());
+    }
+
+    RewardedAdCoordinator(@NonNull RewardedVideoAdService videoService, @NonNull RewardedInterstitialAdService interstitialService) {
+        this.videoService = videoService;
+        this.interstitialService = interstitialService;
+
+        // 每次加载结束后填充率都会变化，及时调整后续加载的上限
+        videoService.setLoadResultListener(this::rebalancePreloadBudget);
+        interstitialService.setLoadResultListener(this::rebalancePreloadBudget);
+    }
+
+    /**
+     * 设置展示优先级，两种格式都有广告时展示 first
+     */
+    public RewardedAdCoordinator setPriority(@NonNull Format first) {
+        this.priority = first == Format.VIDEO
+                ? new Format[]{Format.VIDEO, Format.INTERSTITIAL}
+                : new Format[]{Format.INTERSTITIAL, Format.VIDEO};
+        return this;
+    }
+
+    /**
+     * 设置两种格式合计的预加载广告数量
+     *
+     * @param preloadBudget 至少为 2，每种格式至少保留一个
+     */
+    public RewardedAdCoordinator setPreloadBudget(int preloadBudget) {
+        if (preloadBudget < 2) {
+            throw new IllegalArgumentException("Preload budget must be at least 2");
+        }
+        this.preloadBudget = preloadBudget;
+        return this;
+    }
+
+    /**
+     * 展示优先级最高的可用广告；某种格式未能开始展示时尝试下一种，都没有时按预算预加载
+     * <p>
+     * 任一格式的广告正在展示时不会再展示，避免两种格式叠加展示
+     *
+     * @return 开始展示的广告格式，正在展示或没有可用广告时返回 null
+     */
+    @Nullable
+    public synchronized Format show() {
+        if (isShowing()) {
+            Log.d(TAG, "A rewarded ad is already showing, ignore");
+            return null;
+        }
+
+        for (Format format : priority) {
+            if (hasAvailableAd(format) && startShow(format)) {
+                Log.d(TAG, "Showing " + format + " rewarded ad");
+                return format;
+            }
+        }
+
+        Log.d(TAG, "No rewarded ad is ready in any format.");
+        preloadAds();
+        return null;
+    }
+
+    /**
+     * 任一格式的广告是否正在展示
+     */
+    public boolean isShowing() {
+        return videoService.isShowing() || interstitialService.isShowing();
+    }
+
+    private boolean startShow(@NonNull Format format) {
+        return format == Format.VIDEO ? videoService.showRewardedVideoAd() : interstitialService.showRewardedInterstitialAd();
+    }
+
+    public boolean hasAvailableAd() {
+        return videoService.hasAvailableAd() || interstitialService.hasAvailableAd();
+    }
+
+    public boolean hasAvailableAd(@NonNull Format format) {
+        return format == Format.VIDEO ? videoService.hasAvailableAd() : interstitialService.hasAvailableAd();
+    }
+
+    /**
+     * 两种格式已加载的广告总数
+     */
+    public int getLoadedAdCount() {
+        return videoService.getLoadedAdCount() + interstitialService.getLoadedAdCount();
+    }
+
+    /**
+     * 按填充率重新分配预算后预加载两种格式
+     */
+    public void preloadAds() {
+        rebalancePreloadBudget();
+        videoService.preloadAds();
+        interstitialService.preloadAds();
+    }
+
+    /**
+     * 按填充率比例分配预算，填充率高的格式分到更多槽位
+     */
+    private void rebalancePreloadBudget() {
+        synchronized (budgetSync) {
+            int budget = preloadBudget;
+            double videoFillRate = videoService.getFillRate();
+            double interstitialFillRate = interstitialService.getFillRate();
+
+            int videoShare = (int) Math.round(budget * videoFillRate / (videoFillRate + interstitialFillRate));
+            videoShare = Math.max(1, Math.min(budget - 1, videoShare));
+            int interstitialShare = budget - videoShare;
+
+            videoService.setPreloadLimit(videoShare);
+            interstitialService.setPreloadLimit(interstitialShare);
+            // 每次加载结束都会重新分配，只在分配变化时输出日志
+            if (videoShare != appliedVideoShare || interstitialShare != appliedInterstitialShare) {
+                appliedVideoShare = videoShare;
+                appliedInterstitialShare = interstitialShare;
+                Log.d(TAG, "Preload budget: video " + videoShare + " (fill " + Math.round(videoFillRate * 100) + "%), interstitial "
+                        + interstitialShare + " (fill " + Math.round(interstitialFillRate * 100) + "%)");
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.android.gms.ads.AdError;
 import com.google.android.gms.ads.FullScreenContentCallback;
@@ -19,8 +20,9 @@ import java.io.Serial;
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import games.moisoni.google_ad.listeners.RewardedAdEventListener;
 import games.moisoni.utils.CommonUtil;
@@ -31,19 +33,25 @@ public class RewardedInterstitialAdService implements Serializable {
     private static boolean initialized = false;
     private static final String TAG = "RewardedInterstitialService";
 
-    private String adUnitId;
-    private List<String> testDeviceHashedIds;
-    private RewardedInterstitialAd slotA;
-    private RewardedInterstitialAd slotB;
-    private RewardedAdEventListener adCallback;
-    private WeakReference<Activity> activityRef;
+    // 预加载广告池，按展示频率调整深度
+    private transient volatile AdPool<RewardedInterstitialAd> adPool = new AdPool<>();
+    // RewardedAdCoordinator 分配的预加载上限，替换广告池时保留
+    private volatile int preloadLimit = Integer.MAX_VALUE;
+    // 每次加载结束后通知 RewardedAdCoordinator 按新的填充率重新分配预算
+    private transient volatile Runnable loadResultListener;
+    // 存储外部传入的配置，会在重试线程中读取
+    private volatile String adUnitId;
+    private volatile List<String> testDeviceHashedIds;
+    private volatile RewardedAdEventListener adCallback;
+    private volatile WeakReference<Activity> activityRef;
+
+    // 按错误码退避的重试加载和已排期的过期刷新，销毁时取消
+    private final transient AdLoadRetries loadRetries = new AdLoadRetries(TAG);
+    private final transient AtomicReference<ScheduledFuture<?>> pendingRefresh = new AtomicReference<>();
 
     private final AtomicBoolean isShowing = new AtomicBoolean(false);
-    private final AtomicBoolean isLoadingSlotA = new AtomicBoolean(false);
-    private final AtomicBoolean isLoadingSlotB = new AtomicBoolean(false);
-    private final AtomicBoolean isMobileAdsInitializeCalled = new AtomicBoolean(false);
-    // 用于轮换使用两个槽位
-    private final AtomicInteger currentSlot = new AtomicInteger(0);
+    // 首次加载只排队一次，SDK 初始化由 MobileAdsBootstrap 统一完成
+    private final AtomicBoolean isFirstLoadQueued = new AtomicBoolean(false);
 
     public static RewardedInterstitialAdService getInstance() {
         return RewardedInterstitialAdService.SingletonHolder.INSTANCE;
@@ -66,6 +74,7 @@ public class RewardedInterstitialAdService implements Serializable {
         this.activityRef = new WeakReference<>(activity);
         this.adUnitId = adUnitId;
         this.adCallback = callback;
+        this.loadRetries.attach(activity);
 
         this.initRequestConfiguration();
         this.initializeMobileAdsSdk();
@@ -75,21 +84,50 @@ public class RewardedInterstitialAdService implements Serializable {
         this.testDeviceHashedIds = testDeviceHashedIds;
     }
 
+    /**
+     * 设置加载失败的重试策略，默认为 DefaultAdLoadBackoffPolicy
+     */
+    public final void setLoadBackoffPolicy(@NonNull AdLoadBackoffPolicy policy) {
+        loadRetries.setPolicy(policy);
+    }
+
+    /**
+     * 设置广告池深度（需在 init 之前调用，已加载的广告会被丢弃）
+     *
+     * @param minDepth 空闲时保持的广告数量
+     * @param maxDepth 频繁展示时最多保持的广告数量
+     */
+    public final synchronized void setPoolDepth(int minDepth, int maxDepth) {
+        AdPool<RewardedInterstitialAd> pool = new AdPool<>(minDepth, maxDepth);
+        // 新的广告池沿用已分配的预加载上限
+        pool.setDepthLimit(preloadLimit);
+        this.adPool = pool;
+    }
+
     private void initializeMobileAdsSdk() {
-        if (isMobileAdsInitializeCalled.getAndSet(true)) {
+        if (isFirstLoadQueued.getAndSet(true)) {
+            // 再次 init（例如 onDestroy 之后）时首次加载不会再排队，SDK 已就绪则直接补齐广告池，
+            // 并恢复 onDestroy 取消的过期刷新
+            if (MobileAdsBootstrap.isInitialized()) {
+                CommonUtil.runOnUiThread(activityRef.get(), () -> {
+                    loadAllRewardedAds();
+                    scheduleRefresh();
+                });
+            }
             return;
         }
 
-        new Thread(() -> {
-            // Initialize the Google Mobile Ads SDK on a background thread.
-            MobileAds.initialize(activityRef.get(), initializationStatus -> {
-                Log.d(TAG, "Mobile Ads SDK initialized");
-            });
+        MobileAdsBootstrap.initialize(activityRef.get());
+        MobileAdsBootstrap.whenInitialized(() -> {
+            Log.d(TAG, "Mobile Ads SDK initialized");
+            RewardedAdEventListener callback = adCallback;
+            if (callback != null) {
+                callback.onAdSdkInitialized();
+            }
 
             // Load ads on the main thread.
-            // runOnUiThread(this::loadAllRewardedAds);
-            CommonUtil.runOnUiThread(this.activityRef.get(), this::loadAllRewardedAds);
-        }).start();
+            CommonUtil.runOnUiThread(activityRef != null ? activityRef.get() : null, this::loadAllRewardedAds);
+        });
     }
 
     private void initRequestConfiguration() {
@@ -104,29 +142,44 @@ public class RewardedInterstitialAdService implements Serializable {
     }
 
     private void loadAllRewardedAds() {
-        loadRewardedAdForSlot(true);  // 加载槽位A
-        loadRewardedAdForSlot(false); // 加载槽位B
-    }
-
-    public void showRewardedInterstitialAd() {
-        RewardedInterstitialAd adToShow = getAvailableAd();
-
-        if (adToShow == null) {
-            Log.d(TAG, "No rewarded ad is ready yet.");
-            // 如果没有可用广告，尝试加载
-            loadAllRewardedAds();
+        // SDK 初始化完成前不加载，首次加载已在 MobileAdsBootstrap 排队
+        if (!MobileAdsBootstrap.isInitialized()) {
             return;
         }
 
+        // 按目标深度补齐空槽位
+        AdPool<RewardedInterstitialAd> pool = adPool;
+        int slot;
+        while ((slot = pool.reserveSlot()) >= 0) {
+            loadRewardedAdForSlot(pool, slot);
+        }
+    }
+
+    /**
+     * 展示最早加载的广告
+     *
+     * @return 是否开始展示；Activity 为空、已有广告在展示或没有可用广告时返回 false
+     */
+    public boolean showRewardedInterstitialAd() {
         final Activity activity = activityRef != null ? activityRef.get() : null;
         if (activity == null) {
             Log.w(TAG, "Activity is null, cannot show ad.");
-            return;
+            return false;
         }
 
         if (!isShowing.compareAndSet(false, true)) {
             Log.d(TAG, "Rewarded is already showing, ignore");
-            return;
+            return false;
+        }
+
+        // 取出最早加载的广告
+        RewardedInterstitialAd adToShow = adPool.poll();
+        if (adToShow == null) {
+            Log.d(TAG, "No rewarded ad is ready yet.");
+            isShowing.set(false);
+            // 如果没有可用广告，尝试加载
+            loadAllRewardedAds();
+            return false;
         }
 
         final AtomicBoolean rewardEarned = new AtomicBoolean(false);
@@ -139,8 +192,6 @@ public class RewardedInterstitialAdService implements Serializable {
                         public void onAdDismissedFullScreenContent() {
                             Log.d(TAG, "Ad was dismissed.");
 
-                            // 清除已使用的广告引用
-                            clearUsedAd(finalAdToShow);
                             isShowing.set(false);
 
                             // if (!rewardEarned.get()) {
@@ -159,8 +210,6 @@ public class RewardedInterstitialAdService implements Serializable {
                         public void onAdFailedToShowFullScreenContent(@NonNull AdError adError) {
                             Log.d(TAG, "Ad failed to show: " + adError.getMessage());
 
-                            // 清除失败的广告引用
-                            clearUsedAd(finalAdToShow);
                             isShowing.set(false);
 
                             // JYGameUtils.InfoToJs("rewardedVideo", String.valueOf(rewardEarned.get()));
@@ -201,46 +250,14 @@ public class RewardedInterstitialAdService implements Serializable {
                 }
             });
         });
-    }
-
-    /**
-     * 获取可用的广告（优先使用轮换策略）
-     */
-    private RewardedInterstitialAd getAvailableAd() {
-        // 尝试按轮换顺序使用广告
-        int slot = currentSlot.get() % 2;
-
-        if (slot == 0 && slotA != null) {
-            currentSlot.incrementAndGet();
-            return slotA;
-        } else if (slot == 1 && slotB != null) {
-            currentSlot.incrementAndGet();
-            return slotB;
-        }
-
-        // 如果轮换的广告不可用，尝试使用任何可用的广告
-        if (slotA != null) {
-            return slotA;
-        } else if (slotB != null) {
-            return slotB;
-        }
-
-        return null;
+        return true;
     }
 
     /**
      * 显示备用广告（当主广告失败时）
      */
     private void showBackupAd() {
-        RewardedInterstitialAd backupAd = null;
-
-        if (slotA != null) {
-            backupAd = slotA;
-        } else if (slotB != null) {
-            backupAd = slotB;
-        }
-
-        if (backupAd != null && !isShowing.get()) {
+        if (adPool.hasReadyAd() && !isShowing.get()) {
             Log.d(TAG, "Trying to show backup ad");
             // 递归调用，但会使用不同的广告
             showRewardedInterstitialAd();
@@ -248,39 +265,18 @@ public class RewardedInterstitialAdService implements Serializable {
     }
 
     /**
-     * 清除已使用的广告引用
-     */
-    private void clearUsedAd(RewardedInterstitialAd usedAd) {
-        if (slotA == usedAd) {
-            slotA = null;
-            Log.d(TAG, "Cleared slot A");
-        } else if (slotB == usedAd) {
-            slotB = null;
-            Log.d(TAG, "Cleared slot B");
-        }
-    }
-
-    /**
-     * 为指定槽位加载广告
+     * 为预占的槽位加载广告
      */
-    private void loadRewardedAdForSlot(boolean isSlotA) {
+    private void loadRewardedAdForSlot(AdPool<RewardedInterstitialAd> pool, int slot) {
         final Activity activity = activityRef != null ? activityRef.get() : null;
         if (activity == null) {
             Log.w(TAG, "Activity is null, cannot load ad.");
+            pool.release(slot);
             return;
         }
 
-        final AtomicBoolean isLoading = isSlotA ? isLoadingSlotA : isLoadingSlotB;
-        final String slotName = isSlotA ? "Slot A" : "Slot B";
-
+        final String slotName = "Slot " + slot;
         CommonUtil.runOnUiThread(activity, () -> {
-            // 检查是否已有广告或正在加载
-            if ((isSlotA && slotA != null) || (!isSlotA && slotB != null) || isLoading.get()) {
-                Log.d(TAG, slotName + " already has ad or is loading, skip");
-                return;
-            }
-
-            isLoading.set(true);
             Log.d(TAG, "Loading ad for " + slotName);
 
             RewardedInterstitialAd.load(
@@ -291,59 +287,99 @@ public class RewardedInterstitialAdService implements Serializable {
                         @Override
                         public void onAdLoaded(@NonNull RewardedInterstitialAd rewardedAd) {
                             Log.d(TAG, slotName + " ad was loaded.");
-
-                            if (isSlotA) {
-                                slotA = rewardedAd;
-                            } else {
-                                slotB = rewardedAd;
-                            }
-
-                            isLoading.set(false);
+                            pool.fill(slot, rewardedAd);
+                            scheduleRefresh();
+                            notifyLoadResult();
                         }
 
                         @Override
                         public void onAdFailedToLoad(@NonNull LoadAdError loadAdError) {
                             Log.d(TAG, slotName + " failed to load: " + loadAdError.getMessage());
-                            isLoading.set(false);
 
-                            // 延迟重试加载
-                            retryLoadAd(isSlotA, 5000); // 5秒后重试
+                            // 按错误码退避后重试同一槽位
+                            loadRetries.onLoadFailed(pool, slot, loadAdError.getCode(), () -> loadRewardedAdForSlot(pool, slot));
+                            notifyLoadResult();
                         }
                     });
         });
     }
 
     /**
-     * 延迟重试加载广告
+     * 在最早加载的广告需要替换时执行刷新
      */
-    private void retryLoadAd(boolean isSlotA, long delayMs) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(delayMs);
-                loadRewardedAdForSlot(isSlotA);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                Log.w(TAG, "Retry load interrupted", e);
-            }
-        }).start();
+    private void scheduleRefresh() {
+        long delayMs = adPool.getMillisUntilAge(AdPool.REFRESH_AD_AGE_MS);
+        ScheduledFuture<?> refresh = delayMs >= 0 ? AdExecutor.schedule(this::refreshStaleAds, delayMs) : null;
+        cancel(pendingRefresh.getAndSet(refresh));
+    }
+
+    /**
+     * 移除即将过期的广告并重新加载，避免展示时才发现过期
+     */
+    private void refreshStaleAds() {
+        int evicted = adPool.evictOlderThan(AdPool.REFRESH_AD_AGE_MS);
+        if (evicted > 0) {
+            Log.d(TAG, "Evicted " + evicted + " ads close to expiry, reloading");
+            loadAllRewardedAds();
+        }
+        scheduleRefresh();
+    }
+
+    private static void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+
+    /**
+     * 设置预加载上限（由 RewardedAdCoordinator 分配）
+     */
+    synchronized void setPreloadLimit(int preloadLimit) {
+        adPool.setDepthLimit(preloadLimit);
+        this.preloadLimit = preloadLimit;
+    }
+
+    /**
+     * 设置加载结束（成功或失败）的监听，由 RewardedAdCoordinator 注册
+     */
+    void setLoadResultListener(@Nullable Runnable loadResultListener) {
+        this.loadResultListener = loadResultListener;
+    }
+
+    private void notifyLoadResult() {
+        Runnable listener = loadResultListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * 观察到的广告填充率
+     */
+    double getFillRate() {
+        return adPool.getFillRate();
     }
 
+    /**
+     * 是否有广告正在展示
+     */
+    public boolean isShowing() {
+        return isShowing.get();
+    }
 
     /**
      * 检查是否有可用的广告
      */
     public boolean hasAvailableAd() {
-        return slotA != null || slotB != null;
+        return adPool.hasReadyAd();
     }
 
     /**
      * 获取已加载的广告数量
      */
     public int getLoadedAdCount() {
-        int count = 0;
-        if (slotA != null) count++;
-        if (slotB != null) count++;
-        return count;
+        return adPool.getReadyCount();
     }
 
     /**
@@ -354,6 +390,21 @@ public class RewardedInterstitialAdService implements Serializable {
         loadAllRewardedAds();
     }
 
+    /**
+     * 在 Activity.onDestroy() 调用；取消已排期的重试和刷新，释放对 Activity 的引用
+     */
+    public void onDestroy() {
+        loadRetries.cancelAll();
+        cancel(pendingRefresh.getAndSet(null));
+
+        WeakReference<Activity> activityRef = this.activityRef;
+        if (activityRef != null) {
+            activityRef.clear();
+            this.activityRef = null;
+        }
+        Log.d(TAG, "Scheduled retries and refreshes cancelled.");
+    }
+
     private RewardedInterstitialAdService() {
         if (initialized) {
             throw new RuntimeException("单例模式被破坏，请使用 getInstance() 方法获取实例");
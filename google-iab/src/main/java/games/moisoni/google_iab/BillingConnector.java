@@ -18,12 +18,11 @@ import static com.android.billingclient.api.BillingClient.ProductType.SUBS;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
+import android.content.pm.ApplicationInfo;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -44,24 +43,46 @@ import com.android.billingclient.api.QueryProductDetailsParams;
 import com.android.billingclient.api.QueryPurchasesParams;
 import com.google.common.collect.ImmutableList;
 
+import org.json.JSONException;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import games.moisoni.google_iab.enums.ErrorType;
+import games.moisoni.google_iab.enums.FlightEventType;
+import games.moisoni.google_iab.enums.LogLevel;
 import games.moisoni.google_iab.enums.ProductType;
 import games.moisoni.google_iab.enums.PurchasedResult;
 import games.moisoni.google_iab.enums.SkuProductType;
 import games.moisoni.google_iab.enums.SupportState;
 import games.moisoni.google_iab.listeners.AcknowledgeEventListener;
 import games.moisoni.google_iab.listeners.BillingEventListener;
+import games.moisoni.google_iab.listeners.BillingMetricsListener;
 import games.moisoni.google_iab.listeners.ConsumeEventListener;
+import games.moisoni.google_iab.listeners.LogSink;
 import games.moisoni.google_iab.models.BillingResponse;
+import games.moisoni.google_iab.models.EntitlementRule;
+import games.moisoni.google_iab.models.EntitlementSnapshot;
 import games.moisoni.google_iab.models.ProductInfo;
 import games.moisoni.google_iab.models.PurchaseInfo;
+import games.moisoni.google_iab.models.SubscriptionOfferDetails;
 
 public class BillingConnector implements DefaultLifecycleObserver {
 
@@ -81,6 +102,27 @@ public class BillingConnector implements DefaultLifecycleObserver {
     private static final long MAX_RETRY_DELAY_MS = 10000L;
     private static final long MAX_PENDING_DURATION_MS = 1000 * 60 * 5;
 
+    //Play Store detection, product params and the connection start run here instead of on the caller thread
+    private static final ExecutorService connectExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "billing-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static final long PRODUCT_DETAILS_TTL_NEVER = Long.MAX_VALUE;
+
+    private static final long DEFAULT_LISTENER_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    //an open billing flow that never reports back is reset after this time, so it does not block purchases for good
+    private static final long FLOW_TIMEOUT_MS = 1000L * 60L * 10L;
+    //once the activity resumed, the purchase update of the closed flow gets this long to arrive
+    private static final long FLOW_RESUME_GRACE_MS = 2000L;
+    //a queued flow older than this is dropped instead of opening a purchase sheet the user no longer expects
+    private static final long QUEUED_FLOW_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MAX_QUEUED_FLOWS = 3;
+    //callbacks kept while the registry holds the connector without a listener, the oldest are dropped first
+    private static final int MAX_DETACHED_CALLBACKS = 32;
+
     private final String base64Key;
 
     private final Context context;
@@ -89,25 +131,65 @@ public class BillingConnector implements DefaultLifecycleObserver {
     private BillingClient billingClient;
     private BillingEventListener billingEventListener;
 
-    private List<String> consumableIds;
-    private List<String> nonConsumableIds;
-    private List<String> subscriptionIds;
+    //listener callbacks emitted while detached by the registry, replayed to the next listener on the UI thread
+    private final ArrayDeque<DetachedCallback> detachedCallbacks = new ArrayDeque<>();
+    private volatile boolean keepDetachedCallbacks;
 
-    private final List<QueryProductDetailsParams.Product> allProductList = new ArrayList<>();
+    //product ids and params, changed at runtime by addProducts and removeProducts
+    private final ProductCatalog catalog = new ProductCatalog();
 
-    private final List<ProductInfo> fetchedProductInfoList = new ArrayList<>();
+    private final Map<String, ProductInfo> fetchedProductInfoById = new ConcurrentHashMap<>();
+    private final Map<String, ProductFlowParams> flowParamsByProductId = new ConcurrentHashMap<>();
     private final List<PurchaseInfo> purchasedProductsList = new ArrayList<>();
 
     private final Object purchasedProductsSync = new Object(); //object for thread safety
 
-    private int productDetailsQueriesPending;
+    //purchase flow admission: one billing flow at a time, launches for other products wait in the queue
+    private final Object flowAdmissionSync = new Object();
+    private String activeFlowProductId;
+    private long activeFlowGeneration;
+    private boolean activeFlowLaunched;
+    private Runnable activeFlowWatchdog;
+    private final ArrayDeque<QueuedFlow> queuedFlows = new ArrayDeque<>();
+
+    //queries started together on every successful connection setup
+    private final Object startupSync = new Object();
+    private StartupQueries startupQueries;
 
     private boolean shouldAutoAcknowledge = false;
     private boolean shouldAutoConsume = false;
-    private boolean shouldEnableLogging = false;
+
+    private final BillingLogger logger = new BillingLogger(TAG);
+    private final BillingFlightRecorder flightRecorder = new BillingFlightRecorder();
 
     private volatile boolean isConnected = false;
+    private volatile boolean isReleased = false;
     private volatile boolean fetchedPurchasedProducts = false;
+    private volatile boolean fetchedInAppPurchases = false;
+    private volatile boolean fetchedSubsPurchases = false;
+
+    private volatile EntitlementSnapshotStore entitlementSnapshotStore;
+    private volatile long persistedEntitlementsMaxAgeMs;
+    private volatile long purchasesSyncedAtMillis;
+    private volatile PurchaseOutbox purchaseOutbox;
+    private volatile ConsumableLedger consumableLedger;
+    private volatile BillingMetricsListener billingMetricsListener;
+
+    //time a BillingEventListener callback may block the UI thread before it is reported
+    private volatile long listenerBudgetNanos = DEFAULT_LISTENER_BUDGET_NANOS;
+    private volatile boolean strictListenerBudget;
+
+    //entitlement rules compiled into a bitset, recompiled under entitlementSync whenever purchases change
+    private final Object entitlementSync = new Object();
+    private volatile EntitlementRules entitlementRules;
+
+    //product details time-to-live, measured from the last successful query of each product type
+    private volatile long inAppProductDetailsTtlMs = PRODUCT_DETAILS_TTL_NEVER;
+    private volatile long subsProductDetailsTtlMs = PRODUCT_DETAILS_TTL_NEVER;
+    private volatile long inAppProductDetailsFetchedAt;
+    private volatile long subsProductDetailsFetchedAt;
+    private final AtomicBoolean inAppRefreshInFlight = new AtomicBoolean();
+    private final AtomicBoolean subsRefreshInFlight = new AtomicBoolean();
 
     /**
      * BillingConnector public constructor
@@ -130,6 +212,21 @@ public class BillingConnector implements DefaultLifecycleObserver {
         this.init();
     }
 
+    /**
+     * Package-private constructor for unit tests
+     * <p>
+     * Takes an already built billing client and the handler that callbacks are posted to
+     *
+     * @param billingClient - is the client used instead of a new one
+     * @param uiHandler     - is the handler used instead of the main looper handler
+     */
+    BillingConnector(@NonNull Context context, String base64Key, @NonNull BillingClient billingClient, @NonNull Handler uiHandler) {
+        this.context = context;
+        this.base64Key = base64Key;
+        this.billingClient = billingClient;
+        this.uiHandler = uiHandler;
+    }
+
     /**
      * To initialize BillingConnector
      */
@@ -141,6 +238,9 @@ public class BillingConnector implements DefaultLifecycleObserver {
     }
 
     private void onPurchasesUpdated(@NonNull BillingResult billingResult, List<Purchase> purchases) {
+        flightRecorder.record(FlightEventType.PURCHASE_UPDATE, billingResult.getResponseCode(), null,
+                purchases == null ? "no purchases" : "purchases updated");
+        resolveActiveFlow(billingResult, purchases);
         switch (billingResult.getResponseCode()) {
             case OK:
                 if (purchases != null) {
@@ -148,57 +248,47 @@ public class BillingConnector implements DefaultLifecycleObserver {
                 }
                 break;
             case USER_CANCELED:
-                Log("User pressed back or canceled a dialog." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.USER_CANCELED, billingResult)));
+                logger.d("User pressed back or canceled a dialog. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.USER_CANCELED, billingResult));
                 break;
             case SERVICE_UNAVAILABLE:
-                Log("Network connection is down." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.SERVICE_UNAVAILABLE, billingResult)));
+                logger.d("Network connection is down. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.SERVICE_UNAVAILABLE, billingResult));
                 break;
             case BILLING_UNAVAILABLE:
-                Log("Billing API version is not supported for the type requested." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.BILLING_UNAVAILABLE, billingResult)));
+                logger.d("Billing API version is not supported for the type requested. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.BILLING_UNAVAILABLE, billingResult));
                 break;
             case ITEM_UNAVAILABLE:
-                Log("Requested product is not available for purchase." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.ITEM_UNAVAILABLE, billingResult)));
+                logger.d("Requested product is not available for purchase. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.ITEM_UNAVAILABLE, billingResult));
                 break;
             case DEVELOPER_ERROR:
-                Log("Invalid arguments provided to the API." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.DEVELOPER_ERROR, billingResult)));
+                logger.d("Invalid arguments provided to the API. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.DEVELOPER_ERROR, billingResult));
                 break;
             case ERROR:
-                Log("Fatal error during the API action." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.ERROR, billingResult)));
+                logger.d("Fatal error during the API action. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.ERROR, billingResult));
                 break;
             case ITEM_ALREADY_OWNED:
-                Log("Failure to purchase since item is already owned." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.ITEM_ALREADY_OWNED, billingResult)));
+                logger.d("Failure to purchase since item is already owned. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.ITEM_ALREADY_OWNED, billingResult));
                 break;
             case ITEM_NOT_OWNED:
-                Log("Failure to consume since item is not owned." + " Response code: " + billingResult.getResponseCode());
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.ITEM_NOT_OWNED, billingResult)));
+                logger.d("Failure to consume since item is not owned. Response code: {}", billingResult.getResponseCode());
+                notifyBillingError(new BillingResponse(ErrorType.ITEM_NOT_OWNED, billingResult));
                 break;
             case SERVICE_DISCONNECTED:
-                Log("Initialization error: service disconnected/timeout. Trying to reconnect...");
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.CLIENT_DISCONNECTED, billingResult)));
+                logger.d("Initialization error: service disconnected/timeout. Trying to reconnect...");
+                notifyBillingError(new BillingResponse(ErrorType.CLIENT_DISCONNECTED, billingResult));
                 break;
             case NETWORK_ERROR:
-                Log("Initialization error: service network error. Trying to reconnect...");
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.NETWORK_ERROR, billingResult)));
+                logger.d("Initialization error: service network error. Trying to reconnect...");
+                notifyBillingError(new BillingResponse(ErrorType.NETWORK_ERROR, billingResult));
                 break;
             default:
-                Log("Initialization error: " + new BillingResponse(ErrorType.BILLING_ERROR, billingResult));
+                logger.d(() -> "Initialization error: " + new BillingResponse(ErrorType.BILLING_ERROR, billingResult));
                 break;
         }
     }
@@ -208,13 +298,35 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     public final void setBillingEventListener(BillingEventListener billingEventListener) {
         this.billingEventListener = billingEventListener;
+        if (billingEventListener != null) {
+            keepDetachedCallbacks = false;
+            findUiHandler().post(this::replayDetachedCallbacks);
+        }
+    }
+
+    /**
+     * Detaches the event listener and keeps the callbacks emitted meanwhile for the next listener
+     * <p>
+     * Used by BillingConnectorRegistry when the last owner is destroyed, so a purchase completed
+     * during the grace period still reaches the owner that acquires the connector next
+     */
+    final void detachBillingEventListener() {
+        keepDetachedCallbacks = true;
+        this.billingEventListener = null;
+    }
+
+    /**
+     * To receive the performance metrics of the connector, for eg. the tap-to-launch latency of the billing flow
+     */
+    public final void setBillingMetricsListener(@Nullable BillingMetricsListener billingMetricsListener) {
+        this.billingMetricsListener = billingMetricsListener;
     }
 
     /**
      * To set consumable products ids
      */
     public final BillingConnector setConsumableIds(List<String> consumableIds) {
-        this.consumableIds = consumableIds;
+        catalog.setConsumableIds(consumableIds);
         return this;
     }
 
@@ -222,7 +334,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * To set non-consumable products ids
      */
     public final BillingConnector setNonConsumableIds(List<String> nonConsumableIds) {
-        this.nonConsumableIds = nonConsumableIds;
+        catalog.setNonConsumableIds(nonConsumableIds);
         return this;
     }
 
@@ -230,7 +342,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * To set subscription products ids
      */
     public final BillingConnector setSubscriptionIds(List<String> subscriptionIds) {
-        this.subscriptionIds = subscriptionIds;
+        catalog.setSubscriptionIds(subscriptionIds);
         return this;
     }
 
@@ -250,27 +362,177 @@ public class BillingConnector implements DefaultLifecycleObserver {
         return this;
     }
 
+    /**
+     * To make this connector the owner of the entitlements shared with the other processes of the app
+     * <p>
+     * A snapshot of the owned purchases is published every time they change. Other processes read it
+     * through EntitlementSnapshotStore.read() without creating their own BillingConnector
+     */
+    public final BillingConnector publishEntitlementSnapshots() {
+        entitlementSnapshotStore = new EntitlementSnapshotStore(context, logger);
+        return this;
+    }
+
+    /**
+     * To deliver every verified purchase to the game server through the outbox
+     * <p>
+     * New purchases are enqueued as soon as their signature is verified. Owned purchases found by a
+     * purchase query are enqueued while they are not acknowledged, so purchases made while the app was
+     * killed are delivered too
+     */
+    public final BillingConnector setPurchaseOutbox(@Nullable PurchaseOutbox purchaseOutbox) {
+        this.purchaseOutbox = purchaseOutbox;
+        return this;
+    }
+
+    /**
+     * To credit in-game currencies when consumable purchases are consumed successfully
+     * <p>
+     * The credit is committed as pending before the purchase is consumed, and settled before onPurchaseConsumed
+     * is called, so the listener already sees the new balance
+     *
+     * @param consumableLedger - is the ledger to credit, null to stop crediting
+     */
+    public final BillingConnector setConsumableLedger(@Nullable ConsumableLedger consumableLedger) {
+        this.consumableLedger = consumableLedger;
+        return this;
+    }
+
+    /**
+     * To start from the persisted entitlements instead of querying the purchases, while they are fresh
+     * <p>
+     * The snapshot is published by EntitlementSyncJobService or by a previous session of this connector.
+     * Its purchases are verified with the developer key again before they are used. When no snapshot is
+     * younger than maxAgeMs, the purchases are queried as usual. This also publishes entitlement snapshots
+     * <p>
+     * Restored purchases only rebuild the entitlements: they are never consumed, acknowledged or sent to the
+     * outbox. Once the catalog and entitlements are ready, only the purchase types that still hold pending,
+     * unconsumed or unacknowledged purchases (or pending ledger credits) are queried, and handled from that query.
+     * Types without such purchases are not queried while the snapshot is fresh
+     *
+     * @param maxAgeMs - is the maximum age of a usable snapshot, measured from the purchase queries it is based on
+     */
+    public final BillingConnector usePersistedEntitlements(long maxAgeMs) {
+        if (maxAgeMs <= 0) {
+            throw new IllegalArgumentException("Max age of the persisted entitlements must be positive");
+        }
+        this.persistedEntitlementsMaxAgeMs = maxAgeMs;
+        if (entitlementSnapshotStore == null) {
+            entitlementSnapshotStore = new EntitlementSnapshotStore(context, logger);
+        }
+        return this;
+    }
+
+    /**
+     * To map product ids onto named entitlements, checked with hasEntitlement
+     * <p>
+     * The rules are compiled into a bitset every time the purchases change. Setting new rules
+     * invalidates the handles of the previous ones, they have to be resolved again
+     *
+     * @param rules - are the entitlement rules, each name must appear only once
+     */
+    public final BillingConnector setEntitlementRules(@NonNull List<EntitlementRule> rules) {
+        EntitlementRules entitlementRules = new EntitlementRules(rules);
+        synchronized (entitlementSync) {
+            this.entitlementRules = entitlementRules;
+        }
+        compileEntitlements();
+        return this;
+    }
+
+    /**
+     * Returns the handle of an entitlement, to be resolved once and then passed to hasEntitlement
+     *
+     * @param name - is the name of an entitlement rule
+     */
+    public final int getEntitlementHandle(@NonNull String name) {
+        EntitlementRules entitlementRules = this.entitlementRules;
+        if (entitlementRules == null) {
+            throw new IllegalStateException("Entitlement rules are not set");
+        }
+        return entitlementRules.getHandle(name);
+    }
+
+    /**
+     * Returns true if the entitlement is granted by the owned purchases
+     * <p>
+     * A single volatile read, cheap enough to be checked every frame. False until the purchases are fetched
+     *
+     * @param handle - is the handle returned by getEntitlementHandle
+     */
+    public final boolean hasEntitlement(int handle) {
+        EntitlementRules entitlementRules = this.entitlementRules;
+        if (entitlementRules == null) {
+            throw new IllegalStateException("Entitlement rules are not set");
+        }
+        return entitlementRules.isGranted(handle);
+    }
+
+    /**
+     * To refresh product details in the background once they are older than the given time-to-live
+     * <p>
+     * Cached products are returned right away and a single query per product type refreshes them.
+     * Only the products whose price or offers changed are emitted again through onProductsFetched
+     *
+     * @param inAppTtlMs - is the time-to-live of IN-APP product details, PRODUCT_DETAILS_TTL_NEVER to keep them
+     * @param subsTtlMs  - is the time-to-live of SUBS product details, PRODUCT_DETAILS_TTL_NEVER to keep them
+     */
+    public final BillingConnector setProductDetailsTtl(long inAppTtlMs, long subsTtlMs) {
+        if (inAppTtlMs < 0 || subsTtlMs < 0) {
+            throw new IllegalArgumentException("Product details time-to-live can not be negative");
+        }
+        this.inAppProductDetailsTtlMs = inAppTtlMs;
+        this.subsProductDetailsTtlMs = subsTtlMs;
+        return this;
+    }
+
     /**
      * To enable logging for debugging
      */
     public final BillingConnector enableLogging() {
-        shouldEnableLogging = true;
+        logger.setLevel(LogLevel.DEBUG);
+        return this;
+    }
+
+    /**
+     * To set the minimum level of the logged messages, LogLevel.NONE disables logging
+     * <p>
+     * Messages below the level are never built, so disabled logging costs no allocations
+     */
+    public final BillingConnector setLogLevel(@NonNull LogLevel logLevel) {
+        logger.setLevel(logLevel);
         return this;
     }
 
+    /**
+     * To route the logs to a custom sink instead of logcat
+     */
+    public final BillingConnector setLogSink(@NonNull LogSink logSink) {
+        logger.setSink(logSink);
+        return this;
+    }
+
+    /**
+     * Returns the logger of this connector, for the helpers working on its behalf
+     */
+    @NonNull
+    BillingLogger getLogger() {
+        return logger;
+    }
+
     /**
      * Returns the state of the billing client
      */
     public final boolean isReady() {
         if (!isConnected) {
-            Log("Billing client is not ready because no connection is established yet");
+            logger.d("Billing client is not ready because no connection is established yet");
         }
 
         if (!billingClient.isReady()) {
-            Log("Billing client is not ready yet");
+            logger.d("Billing client is not ready yet");
         }
 
-        return isConnected && billingClient.isReady() && !fetchedProductInfoList.isEmpty();
+        return isConnected && billingClient.isReady() && !fetchedProductInfoById.isEmpty();
     }
 
     /**
@@ -280,24 +542,12 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     private boolean checkProductBeforeInteraction(String productId) {
         if (!isReady()) {
-            findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.CLIENT_NOT_READY,
-                    "Client is not ready yet", defaultResponseCode)));
+            notifyBillingError(new BillingResponse(ErrorType.CLIENT_NOT_READY, "Client is not ready yet", defaultResponseCode));
             return false;
         }
 
-        boolean productExists = false;
-        if (productId != null) {
-            for (ProductInfo productInfo : fetchedProductInfoList) {
-                if (productInfo.getProduct().equals(productId)) {
-                    productExists = true;
-                    break;
-                }
-            }
-        }
-
-        if (productId != null && !productExists) {
-            findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.PRODUCT_NOT_EXIST,
-                    "The product id: " + productId + " doesn't seem to exist on Play Console", defaultResponseCode)));
+        if (productId != null && !fetchedProductInfoById.containsKey(productId)) {
+            notifyBillingError(new BillingResponse(ErrorType.PRODUCT_NOT_EXIST, "The product id: " + productId + " doesn't seem to exist on Play Console", defaultResponseCode));
             return false;
         }
         return true;
@@ -305,107 +555,79 @@ public class BillingConnector implements DefaultLifecycleObserver {
 
     /**
      * To connect the billing client with Play Console
+     * <p>
+     * The product lists are validated on the caller thread. Play Store detection, building the
+     * product params and starting the connection run on a background thread, so calling this
+     * from onCreate does not slow down the activity startup
      */
     public final BillingConnector connect() {
-        if (!isPlayStoreInstalled(context)) {
-            findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.PLAY_STORE_NOT_INSTALLED,
-                    "Google Play Store is not installed", BILLING_UNAVAILABLE)));
-            return this;
-        }
-
-        List<QueryProductDetailsParams.Product> productInAppList = new ArrayList<>();
-        List<QueryProductDetailsParams.Product> productSubsList = new ArrayList<>();
-
-        //set empty list to null so we only have to deal with lists that are null or not empty
-        if (consumableIds == null || consumableIds.isEmpty()) {
-            consumableIds = null;
-        } else {
-            for (String id : consumableIds) {
-                productInAppList.add(QueryProductDetailsParams.Product.newBuilder().setProductId(id).setProductType(INAPP).build());
-            }
-        }
-
-        if (nonConsumableIds == null || nonConsumableIds.isEmpty()) {
-            nonConsumableIds = null;
-        } else {
-            for (String id : nonConsumableIds) {
-                productInAppList.add(QueryProductDetailsParams.Product.newBuilder().setProductId(id).setProductType(INAPP).build());
-            }
-        }
+        catalog.validate();
 
-        if (subscriptionIds == null || subscriptionIds.isEmpty()) {
-            subscriptionIds = null;
-        } else {
-            for (String id : subscriptionIds) {
-                productSubsList.add(QueryProductDetailsParams.Product.newBuilder().setProductId(id).setProductType(SUBS).build());
+        isReleased = false;
+        connectExecutor.execute(() -> {
+            if (!isPlayStoreInstalled(context)) {
+                notifyBillingError(new BillingResponse(ErrorType.PLAY_STORE_NOT_INSTALLED, "Google Play Store is not installed", BILLING_UNAVAILABLE));
+                return;
             }
-        }
 
-        allProductList.addAll(productInAppList);
-        allProductList.addAll(productSubsList);
+            //built from the current ids, products added or removed since connect() are included
+            catalog.rebuildProductParams();
 
-        int queryCount = 0;
-        if (!productInAppList.isEmpty()) queryCount++;
-        if (!productSubsList.isEmpty()) queryCount++;
-        productDetailsQueriesPending = queryCount;
+            startBillingConnection();
+        });
 
-        //check if any list is provided
-        if (allProductList.isEmpty()) {
-            throw new IllegalArgumentException("At least one list of consumables, non-consumables or subscriptions is needed");
-        }
+        return this;
+    }
 
-        //check for duplicates product ids
-        int allIdsSize = allProductList.size();
-        int allIdsSizeDistinct = new HashSet<>(allProductList).size();
-        if (allIdsSize != allIdsSizeDistinct) {
-            throw new IllegalArgumentException("The product id must appear only once in a list. Also, it must not be in different lists");
+    /**
+     * Starts the billing client connection with the product lists built by connect()
+     * <p>
+     * Reconnection attempts only call this, the product lists are built once
+     */
+    private void startBillingConnection() {
+        if (isReleased) {
+            logger.d("Billing service: not connecting, the connector was released");
+            return;
         }
 
-        Log("Billing service: connecting...");
+        logger.d("Billing service: connecting...");
+        flightRecorder.record(FlightEventType.CONNECTION, defaultResponseCode, null, "connecting");
         if (!billingClient.isReady()) {
             billingClient.startConnection(new BillingClientStateListener() {
                 @Override
                 public void onBillingServiceDisconnected() {
                     isConnected = false;
+                    catalog.onConnectionLost();
+                    flightRecorder.record(FlightEventType.CONNECTION, SERVICE_DISCONNECTED, null, "disconnected");
 
-                    findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.CLIENT_DISCONNECTED,
-                            "Billing service: disconnected", defaultResponseCode)));
+                    notifyBillingError(new BillingResponse(ErrorType.CLIENT_DISCONNECTED, "Billing service: disconnected", defaultResponseCode));
 
-                    Log("Billing service: Trying to reconnect...");
+                    logger.d("Billing service: Trying to reconnect...");
                     retryBillingClientConnection();
                 }
 
                 @Override
                 public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
+                    flightRecorder.record(FlightEventType.CONNECTION, billingResult.getResponseCode(), null, "setup finished");
                     switch (billingResult.getResponseCode()) {
                         case OK:
                             isConnected = true;
-                            Log("Billing service: connected");
-
-                            //query consumable and non-consumable product details
-                            if (!productInAppList.isEmpty()) {
-                                queryProductDetails(INAPP, productInAppList);
-                            }
+                            logger.d("Billing service: connected");
 
-                            //query subscription product details
-                            if (subscriptionIds != null) {
-                                queryProductDetails(SUBS, productSubsList);
-                            }
+                            startStartupQueries();
                             break;
                         case BILLING_UNAVAILABLE:
-                            Log("Billing service: unavailable");
+                            logger.d("Billing service: unavailable");
                             retryBillingClientConnection();
                             break;
                         default:
-                            Log("Billing service: error");
+                            logger.d("Billing service: error");
                             retryBillingClientConnection();
                             break;
                     }
                 }
             });
         }
-
-        return this;
     }
 
     /**
@@ -414,7 +636,8 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     private void retryBillingClientConnection() {
         long currentDelay = reconnectMilliseconds.get();
-        findUiHandler().postDelayed(this::connect, currentDelay);
+        flightRecorder.record(FlightEventType.RETRY, (int) currentDelay, null, "reconnect scheduled, code is the delay in ms");
+        findUiHandler().postDelayed(this::startBillingConnection, currentDelay);
 
         long currentVal, newVal;
         do {
@@ -423,185 +646,739 @@ public class BillingConnector implements DefaultLifecycleObserver {
         } while (!reconnectMilliseconds.compareAndSet(currentVal, newVal));
     }
 
+    /**
+     * Starts the product details and the purchase queries at the same time
+     * <p>
+     * Purchases are mapped to products by id, so they are processed once all product details arrived.
+     * The connect-to-entitlements latency is the slowest query instead of the sum of both round trips
+     */
+    private void startStartupQueries() {
+        //taken together with the mark, products added from now on are queried on their own
+        List<QueryProductDetailsParams.Product> productInAppList;
+        List<QueryProductDetailsParams.Product> productSubsList;
+        synchronized (catalog) {
+            productInAppList = catalog.getInAppProducts();
+            productSubsList = catalog.getSubsProducts();
+            catalog.markQueriedByConnection();
+        }
+
+        StartupQueries startup = new StartupQueries();
+        if (!productInAppList.isEmpty()) startup.detailQueriesPending++;
+        if (!productSubsList.isEmpty()) startup.detailQueriesPending++;
+        synchronized (startupSync) {
+            startupQueries = startup;
+        }
+
+        //query consumable and non-consumable product details
+        if (!productInAppList.isEmpty()) {
+            queryProductDetails(INAPP, productInAppList, startup);
+        }
+
+        //query subscription product details
+        if (!productSubsList.isEmpty()) {
+            queryProductDetails(SUBS, productSubsList, startup);
+        }
+
+        restoreOrQueryPurchases(startup);
+    }
+
     /**
      * Fires a query in Play Console to show products available to purchase
+     *
+     * @param startup - are the startup queries waiting for these details, null for a background refresh
+     *                that only emits the products whose pricing changed, without processing purchases again
      */
-    private void queryProductDetails(String productType, List<QueryProductDetailsParams.Product> productList) {
+    private void queryProductDetails(String productType, List<QueryProductDetailsParams.Product> productList, @Nullable StartupQueries startup) {
         QueryProductDetailsParams productDetailsParams = QueryProductDetailsParams.newBuilder().setProductList(productList).build();
 
         billingClient.queryProductDetailsAsync(productDetailsParams, (billingResult, productDetailsList) -> {
+            flightRecorder.record(FlightEventType.QUERY, billingResult.getResponseCode(), null,
+                    INAPP.equals(productType) ? "product details INAPP" : "product details SUBS");
+            if (startup == null) {
+                onProductDetailsRefreshed(productType, billingResult, productDetailsList);
+                return;
+            }
+
             if (billingResult.getResponseCode() == OK) {
                 if (productDetailsList.isEmpty()) {
-                    Log("Query Product Details: data not found. Make sure product ids are configured on Play Console");
+                    logger.d("Query Product Details: data not found. Make sure product ids are configured on Play Console");
 
-                    findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.BILLING_ERROR,
-                            "No product found", defaultResponseCode)));
+                    notifyBillingError(new BillingResponse(ErrorType.BILLING_ERROR, "No product found", defaultResponseCode));
                 } else {
-                    Log("Query Product Details: data found");
+                    logger.d("Query Product Details: data found");
 
                     List<ProductInfo> fetchedProductInfo = new ArrayList<>();
                     for (ProductDetails productDetails : productDetailsList) {
-                        fetchedProductInfo.add(generateProductInfo(productDetails));
+                        ProductInfo productInfo = cacheIfInCatalog(productDetails);
+                        if (productInfo != null) {
+                            fetchedProductInfo.add(productInfo);
+                        }
                     }
-                    fetchedProductInfoList.addAll(fetchedProductInfo);
+                    markProductDetailsFetched(productType);
 
                     switch (productType) {
                         case INAPP:
                         case SUBS:
-                            findUiHandler().post(() -> billingEventListener.onProductsFetched(fetchedProductInfo));
+                            dispatchToListener("onProductsFetched", () -> billingEventListener.onProductsFetched(fetchedProductInfo));
                             break;
                         default:
                             throw new IllegalStateException("Product type is not implemented");
                     }
 
-                    if (--productDetailsQueriesPending == 0) {
-                        fetchPurchasedProducts();
-                    }
                 }
             } else {
-                Log("Query Product Details: failed");
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(ErrorType.BILLING_ERROR, billingResult)));
+                logger.d("Query Product Details: failed");
+                notifyBillingError(new BillingResponse(ErrorType.BILLING_ERROR, billingResult));
             }
+
+            //the purchases of the products with details can still be processed
+            onStartupDetailsDone(startup);
         });
     }
 
     /**
-     * Returns a new ProductInfo object containing the product type and product details
-     *
-     * @param productDetails - is the object provided by the billing client API
+     * Replaces the cached product details with refreshed ones and emits only the products whose pricing changed
+     * <p>
+     * A failed refresh keeps the cached products, they are refreshed again on the next stale read
      */
-    @NonNull
-    private ProductInfo generateProductInfo(@NonNull ProductDetails productDetails) {
-        SkuProductType skuProductType;
+    private void onProductDetailsRefreshed(String productType, @NonNull BillingResult billingResult, List<ProductDetails> productDetailsList) {
+        try {
+            if (billingResult.getResponseCode() != OK || productDetailsList.isEmpty()) {
+                logger.d("Refresh Product Details: failed. Response code: {}", billingResult.getResponseCode());
+                return;
+            }
 
-        switch (productDetails.getProductType()) {
-            case INAPP:
-                boolean consumable = isProductIdConsumable(productDetails.getProductId());
-                if (consumable) {
-                    skuProductType = SkuProductType.CONSUMABLE;
-                } else {
-                    skuProductType = SkuProductType.NON_CONSUMABLE;
+            List<ProductInfo> changedProductInfo = new ArrayList<>();
+            for (ProductDetails productDetails : productDetailsList) {
+                ProductInfo previousProductInfo = fetchedProductInfoById.get(productDetails.getProductId());
+                ProductInfo productInfo = cacheIfInCatalog(productDetails);
+                if (productInfo != null && (previousProductInfo == null || !previousProductInfo.hasSamePricing(productInfo))) {
+                    changedProductInfo.add(productInfo);
                 }
-                break;
-            case SUBS:
-                skuProductType = SkuProductType.SUBSCRIPTION;
-                break;
-            default:
-                throw new IllegalStateException("Product type is not implemented correctly");
+            }
+            markProductDetailsFetched(productType);
+
+            logger.d("Refresh Product Details: {} of {} products changed", changedProductInfo.size(), productDetailsList.size());
+            if (!changedProductInfo.isEmpty()) {
+                dispatchToListener("onProductsFetched", () -> billingEventListener.onProductsFetched(changedProductInfo));
+            }
+        } finally {
+            refreshInFlight(productType).set(false);
         }
+    }
 
-        return new ProductInfo(skuProductType, productDetails);
+    /**
+     * Caches the product and the billing flow params of all its offers, so a purchase tap only does map lookups
+     * <p>
+     * Products removed from the catalog while their query was running are not cached again: the check
+     * and the caching hold the catalog monitor, as removeProducts does while dropping the caches
+     *
+     * @return the cached product, null if the product is no longer in the catalog
+     */
+    @Nullable
+    private ProductInfo cacheIfInCatalog(@NonNull ProductDetails productDetails) {
+        ProductInfo productInfo = generateProductInfo(productDetails);
+        ProductFlowParams flowParams = new ProductFlowParams(productDetails);
+        synchronized (catalog) {
+            if (catalog.getType(productDetails.getProductId()) == null) {
+                return null;
+            }
+
+            //flow params first, a product id found in fetchedProductInfoById always has its params
+            flowParamsByProductId.put(productInfo.getProduct(), flowParams);
+            fetchedProductInfoById.put(productInfo.getProduct(), productInfo);
+        }
+        return productInfo;
     }
 
-    private boolean isProductIdConsumable(String productId) {
-        if (consumableIds == null) {
-            return false;
+    private void markProductDetailsFetched(String productType) {
+        if (INAPP.equals(productType)) {
+            inAppProductDetailsFetchedAt = SystemClock.elapsedRealtime();
+        } else {
+            subsProductDetailsFetchedAt = SystemClock.elapsedRealtime();
         }
+    }
 
-        return consumableIds.contains(productId);
+    @NonNull
+    private AtomicBoolean refreshInFlight(String productType) {
+        return INAPP.equals(productType) ? inAppRefreshInFlight : subsRefreshInFlight;
     }
 
     /**
-     * Returns purchases details for currently owned items without a network request
+     * To refresh all product details now, regardless of their time-to-live
+     * <p>
+     * Calls made while a refresh of the same product type is running are ignored.
+     * Only the products whose price or offers changed are emitted through onProductsFetched
      */
-    private void fetchPurchasedProducts() {
-        if (billingClient.isReady()) {
-            billingClient.queryPurchasesAsync(
-                    QueryPurchasesParams.newBuilder().setProductType(INAPP).build(),
-                    (billingResult, purchases) -> {
-                        if (billingResult.getResponseCode() == OK) {
-                            if (purchases.isEmpty()) {
-                                Log("Query IN-APP Purchases: the list is empty");
-                            } else {
-                                Log("Query IN-APP Purchases: data found and progress");
-                            }
+    public final void refreshProducts() {
+        if (!isConnected || !billingClient.isReady()) {
+            logger.d("Refresh Product Details: billing client is not ready");
+            return;
+        }
 
-                            processPurchases(ProductType.INAPP, purchases, true);
-                        } else {
-                            Log("Query IN-APP Purchases: failed");
-                        }
-                    }
-            );
+        refreshProductDetails(INAPP, catalog.getInAppProducts());
+        refreshProductDetails(SUBS, catalog.getSubsProducts());
+    }
 
-            //query subscription purchases for supported devices
-            if (isSubscriptionSupported() == SupportState.SUPPORTED) {
-                billingClient.queryPurchasesAsync(
-                        QueryPurchasesParams.newBuilder().setProductType(SUBS).build(),
-                        (billingResult, purchases) -> {
-                            if (billingResult.getResponseCode() == OK) {
-                                if (purchases.isEmpty()) {
-                                    Log("Query SUBS Purchases: the list is empty");
-                                } else {
-                                    Log("Query SUBS Purchases: data found and progress");
-                                }
+    /**
+     * Starts a background refresh of the product types whose details are older than their time-to-live
+     */
+    private void refreshStaleProducts() {
+        if (!isConnected || !billingClient.isReady()) {
+            return;
+        }
 
-                                processPurchases(ProductType.SUBS, purchases, true);
-                            } else {
-                                Log("Query SUBS Purchases: failed");
-                            }
-                        }
-                );
-            }
+        long now = SystemClock.elapsedRealtime();
+        if (isStale(inAppProductDetailsFetchedAt, inAppProductDetailsTtlMs, now)) {
+            refreshProductDetails(INAPP, catalog.getInAppProducts());
+        }
+        if (isStale(subsProductDetailsFetchedAt, subsProductDetailsTtlMs, now)) {
+            refreshProductDetails(SUBS, catalog.getSubsProducts());
+        }
+    }
 
-        } else {
-            findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.FETCH_PURCHASED_PRODUCTS_ERROR,
-                    "Billing client is not ready yet", defaultResponseCode)));
+    private static boolean isStale(long fetchedAt, long ttlMs, long now) {
+        //the first query is still owned by connect()
+        return fetchedAt != 0L && ttlMs != PRODUCT_DETAILS_TTL_NEVER && now - fetchedAt >= ttlMs;
+    }
+
+    private void refreshProductDetails(String productType, List<QueryProductDetailsParams.Product> productList) {
+        if (productList.isEmpty()) {
+            return;
+        }
+
+        if (!refreshInFlight(productType).compareAndSet(false, true)) {
+            logger.d("Refresh Product Details: {} refresh already running", productType);
+            return;
         }
+
+        logger.d("Refresh Product Details: refreshing {}", productType);
+        queryProductDetails(productType, productList, null);
     }
 
     /**
-     * Before using subscriptions, device-support must be checked
-     * Not all devices support subscriptions
+     * To set how long a BillingEventListener callback may run on the UI thread
+     * <p>
+     * Every callback is timed. The ones going over the budget are logged and reported through
+     * BillingMetricsListener.onListenerOverBudget. The default budget is 4 ms
+     *
+     * @param budgetMs - is the budget of a single callback, in milliseconds
      */
-    public SupportState isSubscriptionSupported() {
-        BillingResult response = billingClient.isFeatureSupported(SUBSCRIPTIONS);
-        SupportState state;
-
-        switch (response.getResponseCode()) {
-            case OK:
-                Log("Subscriptions support check: success");
-                state = SupportState.SUPPORTED;
-                break;
-            case SERVICE_DISCONNECTED:
-                Log("Subscriptions support check: disconnected. Trying to reconnect...");
-                state = SupportState.DISCONNECTED;
-                break;
-            default:
-                Log("Subscriptions support check: error -> " + response.getResponseCode() + " " + response.getDebugMessage());
-                state = SupportState.NOT_SUPPORTED;
-                break;
+    public final BillingConnector setListenerBudget(long budgetMs) {
+        if (budgetMs <= 0) {
+            throw new IllegalArgumentException("Listener budget must be positive");
         }
-        return state;
+        this.listenerBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        return this;
     }
 
     /**
-     * Checks purchases signature for more security
+     * To throw an IllegalStateException when a BillingEventListener callback goes over its budget
+     * <p>
+     * Only enabled when the app is debuggable, release builds keep reporting without throwing
      */
-    private void processPurchases(ProductType productType, @NonNull List<Purchase> allPurchases, boolean purchasedProductsFetched) {
-        List<PurchaseInfo> signatureValidPurchases = new ArrayList<>();
+    public final BillingConnector enableStrictListenerBudget() {
+        this.strictListenerBudget = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        return this;
+    }
 
-        List<Purchase> validPurchases = new ArrayList<>();
-        for (Purchase purchase : allPurchases) {
-            if (isPurchaseSignatureValid(purchase)) {
-                validPurchases.add(purchase);
-            }
+    /**
+     * To add products to the catalog at runtime, for eg. seasonal products from a remote config
+     * <p>
+     * Only the details of the new products are queried, the live connection and the products already
+     * fetched are left untouched. Owned purchases of the new products are added once their details arrive.
+     * Before the first connection the new products are queried together with the rest of the catalog
+     *
+     * @param skuProductType - is the type of all the given products
+     * @param productIds     - are the product ids to add, ids already in the catalog with the same type are ignored
+     */
+    public final void addProducts(@NonNull SkuProductType skuProductType, @NonNull List<String> productIds) {
+        List<QueryProductDetailsParams.Product> addedProducts;
+        boolean queryNow;
+        synchronized (catalog) {
+            addedProducts = catalog.add(skuProductType, productIds);
+            //decided with the catalog locked: either the startup queries take the added products, or they are queried here
+            queryNow = catalog.isQueriedByConnection();
+        }
+        if (addedProducts.isEmpty()) {
+            return;
         }
 
-        for (Purchase purchase : validPurchases) {
-            List<String> purchasedProducts = purchase.getProducts();
-            for (String purchaseProduct : purchasedProducts) {
-                ProductInfo foundProductInfo = null;
-                for (ProductInfo productInfo : fetchedProductInfoList) {
-                    if (productInfo.getProduct().equals(purchaseProduct)) {
-                        foundProductInfo = productInfo;
-                        break;
+        logger.d("Catalog: added {} {} products", addedProducts.size(), skuProductType);
+        if (queryNow && billingClient.isReady()) {
+            queryAddedProductDetails(skuProductType == SkuProductType.SUBSCRIPTION ? SUBS : INAPP, addedProducts);
+        }
+    }
+
+    /**
+     * To remove products from the catalog at runtime
+     * <p>
+     * The products are dropped from the catalog and from the fetched product caches, so they
+     * can no longer be purchased. Owned purchases are kept, the entitlement state is not changed
+     *
+     * @param productIds - are the product ids to remove, ids not in the catalog are ignored
+     */
+    public final void removeProducts(@NonNull List<String> productIds) {
+        synchronized (catalog) {
+            catalog.remove(productIds);
+            for (String productId : productIds) {
+                //product info first, a product id found in fetchedProductInfoById always has its params
+                fetchedProductInfoById.remove(productId);
+                flowParamsByProductId.remove(productId);
+            }
+        }
+        logger.d("Catalog: removed {} products", productIds.size());
+    }
+
+    /**
+     * Queries the details of products added at runtime, then the owned purchases of the ones found
+     */
+    private void queryAddedProductDetails(String productType, List<QueryProductDetailsParams.Product> addedProducts) {
+        QueryProductDetailsParams productDetailsParams = QueryProductDetailsParams.newBuilder().setProductList(addedProducts).build();
+
+        billingClient.queryProductDetailsAsync(productDetailsParams, (billingResult, productDetailsList) -> {
+            flightRecorder.record(FlightEventType.QUERY, billingResult.getResponseCode(), null,
+                    INAPP.equals(productType) ? "added product details INAPP" : "added product details SUBS");
+            if (billingResult.getResponseCode() != OK) {
+                logger.d("Query Added Product Details: failed");
+                notifyBillingError(new BillingResponse(ErrorType.BILLING_ERROR, billingResult));
+                return;
+            }
+
+            List<ProductInfo> fetchedProductInfo = new ArrayList<>();
+            Set<String> fetchedIds = new HashSet<>();
+            for (ProductDetails productDetails : productDetailsList) {
+                ProductInfo productInfo = cacheIfInCatalog(productDetails);
+                if (productInfo != null) {
+                    fetchedProductInfo.add(productInfo);
+                    fetchedIds.add(productInfo.getProduct());
+                }
+            }
+
+            if (fetchedProductInfo.isEmpty()) {
+                logger.d("Query Added Product Details: data not found. Make sure product ids are configured on Play Console");
+                notifyBillingError(new BillingResponse(ErrorType.BILLING_ERROR, "No product found", defaultResponseCode));
+                return;
+            }
+
+            logger.d("Query Added Product Details: {} products found", fetchedProductInfo.size());
+            dispatchToListener("onProductsFetched", () -> billingEventListener.onProductsFetched(fetchedProductInfo));
+            queryAddedProductPurchases(productType, fetchedIds);
+        });
+    }
+
+    /**
+     * Adds the owned purchases of products added at runtime, the purchases already known are left as they are
+     */
+    private void queryAddedProductPurchases(String productType, Set<String> addedIds) {
+        billingClient.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(productType).build(), (billingResult, purchases) -> {
+            flightRecorder.record(FlightEventType.QUERY, billingResult.getResponseCode(), null,
+                    INAPP.equals(productType) ? "added product purchases INAPP" : "added product purchases SUBS");
+            if (billingResult.getResponseCode() != OK) {
+                logger.d("Query Added Product Purchases: failed");
+                return;
+            }
+
+            List<PurchaseInfo> addedPurchases = new ArrayList<>();
+            List<PurchaseInfo> purchasesOfType = new ArrayList<>();
+            boolean isSubs = SUBS.equals(productType);
+            synchronized (purchasedProductsSync) {
+                for (Purchase purchase : purchases) {
+                    if (!isPurchaseSignatureValid(purchase)) continue;
+
+                    for (String purchaseProduct : purchase.getProducts()) {
+                        ProductInfo foundProductInfo = fetchedProductInfoById.get(purchaseProduct);
+                        if (foundProductInfo != null && addedIds.contains(purchaseProduct) && !isPurchaseListed(purchase, purchaseProduct)) {
+                            addedPurchases.add(new PurchaseInfo(foundProductInfo, purchase));
+                        }
+                    }
+                }
+                purchasedProductsList.addAll(addedPurchases);
+
+                for (PurchaseInfo purchaseInfo : purchasedProductsList) {
+                    if ((purchaseInfo.getSkuProductType() == SkuProductType.SUBSCRIPTION) == isSubs) {
+                        purchasesOfType.add(purchaseInfo);
                     }
                 }
+            }
+
+            if (addedPurchases.isEmpty()) {
+                return;
+            }
+
+            logger.d("Query Added Product Purchases: {} purchases found", addedPurchases.size());
+            onPurchasesChanged();
+
+            //the whole list of the type, listeners replacing their state with it keep the other purchases
+            ProductType purchasesProductType = isSubs ? ProductType.SUBS : ProductType.INAPP;
+            dispatchToListener("onPurchasedProductsFetched", () -> billingEventListener.onPurchasedProductsFetched(purchasesProductType, purchasesOfType));
+            handleProcessedPurchases(addedPurchases, true);
+        });
+    }
+
+    /**
+     * Must be called while holding purchasedProductsSync
+     */
+    private boolean isPurchaseListed(@NonNull Purchase purchase, @NonNull String productId) {
+        for (PurchaseInfo purchaseInfo : purchasedProductsList) {
+            if (purchaseInfo.getPurchaseToken().equals(purchase.getPurchaseToken()) && purchaseInfo.getProduct().equals(productId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a new ProductInfo object containing the product type and product details
+     *
+     * @param productDetails - is the object provided by the billing client API
+     */
+    @NonNull
+    private ProductInfo generateProductInfo(@NonNull ProductDetails productDetails) {
+        SkuProductType skuProductType;
+
+        switch (productDetails.getProductType()) {
+            case INAPP:
+                boolean consumable = isProductIdConsumable(productDetails.getProductId());
+                if (consumable) {
+                    skuProductType = SkuProductType.CONSUMABLE;
+                } else {
+                    skuProductType = SkuProductType.NON_CONSUMABLE;
+                }
+                break;
+            case SUBS:
+                skuProductType = SkuProductType.SUBSCRIPTION;
+                break;
+            default:
+                throw new IllegalStateException("Product type is not implemented correctly");
+        }
+
+        return new ProductInfo(skuProductType, productDetails);
+    }
+
+    private boolean isProductIdConsumable(String productId) {
+        return catalog.isConsumable(productId);
+    }
+
+    /**
+     * Restores the owned purchases from a fresh entitlement snapshot, or queries them when there is none
+     */
+    private void restoreOrQueryPurchases(@NonNull StartupQueries startup) {
+        EntitlementSnapshotStore store = entitlementSnapshotStore;
+        long maxAgeMs = persistedEntitlementsMaxAgeMs;
+        if (store == null || maxAgeMs <= 0) {
+            queryPurchases(startup);
+            return;
+        }
+
+        //the snapshot file is read off the main thread
+        EntitlementSnapshotStore.runAfterPendingWrites(() -> {
+            EntitlementSnapshot snapshot = store.read();
+            long age = snapshot != null ? System.currentTimeMillis() - snapshot.getPublishedAtMillis() : -1;
+            if (snapshot == null || !snapshot.isInAppPurchasesFetched() || age < 0 || age > maxAgeMs) {
+                logger.d("Persisted entitlements: no fresh snapshot, querying purchases");
+                queryPurchases(startup);
+                return;
+            }
+
+            List<Purchase> inAppPurchases = new ArrayList<>();
+            List<Purchase> subsPurchases = new ArrayList<>();
+            for (EntitlementSnapshot.Entry entry : snapshot.getEntries()) {
+                try {
+                    Purchase purchase = new Purchase(entry.getOriginalJson(), entry.getSignature());
+                    if (entry.getSkuProductType() == SkuProductType.SUBSCRIPTION) {
+                        subsPurchases.add(purchase);
+                    } else {
+                        inAppPurchases.add(purchase);
+                    }
+                } catch (JSONException e) {
+                    logger.w("Persisted entitlements: purchase can not be restored: {}", e.getMessage());
+                }
+            }
+
+            if (logger.isLoggable(LogLevel.DEBUG)) {
+                logger.d("Persisted entitlements: restored {} purchases synced {} ms ago", snapshot.getEntries().size(), age);
+            }
+            flightRecorder.record(FlightEventType.QUERY, OK, null, "purchases restored from snapshot");
+            purchasesSyncedAtMillis = snapshot.getPublishedAtMillis();
+            synchronized (startupSync) {
+                startup.purchasesRestored = true;
+            }
+            setStartupPurchaseSources(startup, snapshot.isSubsPurchasesFetched());
+            onStartupPurchases(startup, ProductType.INAPP, inAppPurchases);
+            if (snapshot.isSubsPurchasesFetched()) {
+                onStartupPurchases(startup, ProductType.SUBS, subsPurchases);
+            }
+        });
+    }
+
+    /**
+     * Returns purchases details for currently owned items without a network request
+     */
+    private void queryPurchases(@NonNull StartupQueries startup) {
+        if (!billingClient.isReady()) {
+            notifyBillingError(new BillingResponse(ErrorType.FETCH_PURCHASED_PRODUCTS_ERROR, "Billing client is not ready yet", defaultResponseCode));
+
+            //the startup still completes with the product details, as if the purchase queries failed
+            setStartupPurchaseSources(startup, false);
+            onStartupPurchases(startup, ProductType.INAPP, null);
+            return;
+        }
+
+        //query subscription purchases for supported devices
+        boolean querySubs = isSubscriptionSupported() == SupportState.SUPPORTED;
+        setStartupPurchaseSources(startup, querySubs);
+
+        queryPurchases(startup, ProductType.INAPP);
+        if (querySubs) {
+            queryPurchases(startup, ProductType.SUBS);
+        }
+    }
+
+    private void queryPurchases(@NonNull StartupQueries startup, @NonNull ProductType productType) {
+        boolean isSubs = productType == ProductType.SUBS;
+        billingClient.queryPurchasesAsync(
+                QueryPurchasesParams.newBuilder().setProductType(isSubs ? SUBS : INAPP).build(),
+                (billingResult, purchases) -> {
+                    flightRecorder.record(FlightEventType.QUERY, billingResult.getResponseCode(), null, isSubs ? "purchases SUBS" : "purchases INAPP");
+                    if (billingResult.getResponseCode() == OK) {
+                        if (purchases.isEmpty()) {
+                            logger.d("Query {} Purchases: the list is empty", isSubs ? "SUBS" : "IN-APP");
+                        } else {
+                            logger.d("Query {} Purchases: data found and progress", isSubs ? "SUBS" : "IN-APP");
+                        }
+
+                        purchasesSyncedAtMillis = System.currentTimeMillis();
+                        onStartupPurchases(startup, productType, purchases);
+                    } else {
+                        logger.d("Query {} Purchases: failed", isSubs ? "SUBS" : "IN-APP");
+                        onStartupPurchases(startup, productType, null);
+                    }
+                }
+        );
+    }
+
+    private void setStartupPurchaseSources(@NonNull StartupQueries startup, boolean subsPurchasesExpected) {
+        synchronized (startupSync) {
+            startup.subsPurchasesExpected = subsPurchasesExpected;
+            startup.purchaseSourcesKnown = true;
+        }
+    }
+
+    private void onStartupDetailsDone(@NonNull StartupQueries startup) {
+        synchronized (startupSync) {
+            startup.detailQueriesPending--;
+        }
+        completeStartupIfReady(startup);
+    }
+
+    /**
+     * Holds the purchases of the type until all product details arrived
+     *
+     * @param purchases - are the owned purchases, null if the query failed
+     */
+    private void onStartupPurchases(@NonNull StartupQueries startup, @NonNull ProductType productType, @Nullable List<Purchase> purchases) {
+        synchronized (startupSync) {
+            if (productType == ProductType.SUBS) {
+                startup.subsPurchases = purchases;
+                startup.subsPurchasesDone = true;
+            } else {
+                startup.inAppPurchases = purchases;
+                startup.inAppPurchasesDone = true;
+            }
+        }
+        completeStartupIfReady(startup);
+    }
+
+    /**
+     * Processes the held purchases once the product details and the purchases of the startup queries all arrived
+     */
+    private void completeStartupIfReady(@NonNull StartupQueries startup) {
+        List<Purchase> inAppPurchases;
+        List<Purchase> subsPurchases;
+        boolean purchasesRestored;
+        synchronized (startupSync) {
+            //queries of a previous connection are ignored
+            if (startupQueries != startup || !startup.isReady()) {
+                return;
+            }
+            startup.completed = true;
+            inAppPurchases = startup.inAppPurchases;
+            subsPurchases = startup.subsPurchases;
+            purchasesRestored = startup.purchasesRestored;
+        }
+
+        //restored purchases only rebuild the entitlements, the live query below consumes, acknowledges and delivers them
+        if (inAppPurchases != null) {
+            processPurchases(ProductType.INAPP, inAppPurchases, true, !purchasesRestored);
+        }
+        if (subsPurchases != null) {
+            processPurchases(ProductType.SUBS, subsPurchases, true, !purchasesRestored);
+        }
+
+        List<ProductInfo> products = new ArrayList<>(fetchedProductInfoById.values());
+        List<PurchaseInfo> purchases = getPurchasedProductsList();
+        logger.d("Catalog and entitlements ready: {} products, {} purchases", products.size(), purchases.size());
+        dispatchToListener("onCatalogAndEntitlementsReady", () -> billingEventListener.onCatalogAndEntitlementsReady(products, purchases));
+
+        if (purchasesRestored) {
+            queryPurchasesAfterRestore(inAppPurchases, subsPurchases);
+        }
+    }
+
+    /**
+     * Queries the purchase types the entitlement snapshot can not settle, once the startup completed from it
+     * <p>
+     * Restored purchases are never consumed or acknowledged, so a type holding pending, unconsumed or
+     * unacknowledged purchases is queried and handled as after a regular purchase query. The in-app
+     * purchases are also queried while the ledger has pending credits to reconcile
+     *
+     * @param restoredSubsPurchases - are null when the snapshot holds no subscription purchases
+     */
+    private void queryPurchasesAfterRestore(@Nullable List<Purchase> restoredInAppPurchases, @Nullable List<Purchase> restoredSubsPurchases) {
+        if (!billingClient.isReady()) {
+            return;
+        }
+
+        ConsumableLedger ledger = consumableLedger;
+        if (restoredInAppPurchases == null || hasUnsettledPurchases(restoredInAppPurchases) || (ledger != null && ledger.hasPendingCredits())) {
+            queryPurchasesAfterRestore(ProductType.INAPP, restoredInAppPurchases);
+        } else {
+            logger.d("Persisted entitlements: IN-APP purchases settled, query skipped");
+        }
+
+        if (restoredSubsPurchases == null || hasUnsettledPurchases(restoredSubsPurchases)) {
+            if (isSubscriptionSupported() == SupportState.SUPPORTED) {
+                queryPurchasesAfterRestore(ProductType.SUBS, restoredSubsPurchases);
+            }
+        } else {
+            logger.d("Persisted entitlements: SUBS purchases settled, query skipped");
+        }
+    }
+
+    private void queryPurchasesAfterRestore(@NonNull ProductType productType, @Nullable List<Purchase> restoredPurchases) {
+        boolean isSubs = productType == ProductType.SUBS;
+        billingClient.queryPurchasesAsync(
+                QueryPurchasesParams.newBuilder().setProductType(isSubs ? SUBS : INAPP).build(),
+                (billingResult, purchases) -> {
+                    flightRecorder.record(FlightEventType.QUERY, billingResult.getResponseCode(), null, isSubs ? "purchases SUBS" : "purchases INAPP");
+                    if (billingResult.getResponseCode() != OK) {
+                        logger.d("Query {} Purchases after restore: failed", isSubs ? "SUBS" : "IN-APP");
+                        return;
+                    }
+
+                    purchasesSyncedAtMillis = System.currentTimeMillis();
+                    if (restoredPurchases == null || !isSamePurchaseState(restoredPurchases, purchases)) {
+                        processPurchases(productType, purchases, true);
+                        return;
+                    }
+
+                    //listeners already got these purchases from the snapshot, they are only handled now
+                    List<PurchaseInfo> purchasesOfType = new ArrayList<>();
+                    for (PurchaseInfo purchaseInfo : getPurchasedProductsList()) {
+                        if ((purchaseInfo.getSkuProductType() == SkuProductType.SUBSCRIPTION) == isSubs) {
+                            purchasesOfType.add(purchaseInfo);
+                        }
+                    }
+                    reconcileLedger(productType, purchases, true);
+                    handleProcessedPurchases(purchasesOfType, true);
+                }
+        );
+    }
+
+    /**
+     * Returns true if a purchase is pending, or purchased but neither consumed nor acknowledged yet
+     */
+    private static boolean hasUnsettledPurchases(@NonNull List<Purchase> purchases) {
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                return true;
+            }
+            if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED && !purchase.isAcknowledged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if both lists hold the same purchase tokens, in the same states
+     */
+    private static boolean isSamePurchaseState(@NonNull List<Purchase> restoredPurchases, @NonNull List<Purchase> purchases) {
+        if (restoredPurchases.size() != purchases.size()) {
+            return false;
+        }
+
+        Set<String> restoredStates = new HashSet<>();
+        for (Purchase purchase : restoredPurchases) {
+            restoredStates.add(purchaseStateKey(purchase));
+        }
+        for (Purchase purchase : purchases) {
+            if (!restoredStates.contains(purchaseStateKey(purchase))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static String purchaseStateKey(@NonNull Purchase purchase) {
+        return purchase.getPurchaseToken() + ':' + purchase.getPurchaseState() + ':' + purchase.isAcknowledged() + ':' + purchase.isAutoRenewing();
+    }
+
+    /**
+     * Before using subscriptions, device-support must be checked
+     * Not all devices support subscriptions
+     */
+    public SupportState isSubscriptionSupported() {
+        BillingResult response = billingClient.isFeatureSupported(SUBSCRIPTIONS);
+        SupportState state;
+
+        switch (response.getResponseCode()) {
+            case OK:
+                logger.d("Subscriptions support check: success");
+                state = SupportState.SUPPORTED;
+                break;
+            case SERVICE_DISCONNECTED:
+                logger.d("Subscriptions support check: disconnected. Trying to reconnect...");
+                state = SupportState.DISCONNECTED;
+                break;
+            default:
+                logger.d("Subscriptions support check: error -> {} {}", response.getResponseCode(), response.getDebugMessage());
+                state = SupportState.NOT_SUPPORTED;
+                break;
+        }
+        return state;
+    }
+
+    /**
+     * Checks purchases signature for more security
+     */
+    private void processPurchases(ProductType productType, @NonNull List<Purchase> allPurchases, boolean purchasedProductsFetched) {
+        processPurchases(productType, allPurchases, purchasedProductsFetched, true);
+    }
+
+    /**
+     * @param handlePurchases - is false for purchases restored from the entitlement snapshot, which only
+     *                        update the in-memory entitlements and are never consumed, acknowledged or sent to the outbox
+     */
+    private void processPurchases(ProductType productType, @NonNull List<Purchase> allPurchases, boolean purchasedProductsFetched, boolean handlePurchases) {
+        List<PurchaseInfo> signatureValidPurchases = new ArrayList<>();
+
+        List<Purchase> validPurchases = new ArrayList<>();
+        for (Purchase purchase : allPurchases) {
+            if (isPurchaseSignatureValid(purchase)) {
+                validPurchases.add(purchase);
+            }
+        }
 
+        for (Purchase purchase : validPurchases) {
+            List<String> purchasedProducts = purchase.getProducts();
+            for (String purchaseProduct : purchasedProducts) {
+                ProductInfo foundProductInfo = fetchedProductInfoById.get(purchaseProduct);
                 if (foundProductInfo != null) {
-                    ProductDetails productDetails = foundProductInfo.getProductDetails();
-                    PurchaseInfo purchaseInfo = new PurchaseInfo(generateProductInfo(productDetails), purchase);
+                    //the cached product info is immutable, every purchase of the product shares it
+                    PurchaseInfo purchaseInfo = new PurchaseInfo(foundProductInfo, purchase);
                     signatureValidPurchases.add(purchaseInfo);
                 }
             }
@@ -629,16 +1406,57 @@ public class BillingConnector implements DefaultLifecycleObserver {
 
             //add new purchases
             purchasedProductsList.addAll(signatureValidPurchases);
+
+            if (purchasedProductsFetched) {
+                if (productType == ProductType.SUBS) {
+                    fetchedSubsPurchases = true;
+                } else {
+                    fetchedInAppPurchases = true;
+                }
+            }
         }
+        onPurchasesChanged();
 
         if (purchasedProductsFetched) {
-            findUiHandler().post(() -> billingEventListener.onPurchasedProductsFetched(productType, signatureValidPurchases));
+            dispatchToListener("onPurchasedProductsFetched", () -> billingEventListener.onPurchasedProductsFetched(productType, signatureValidPurchases));
             fetchedPurchasedProducts = true;
         } else {
-            findUiHandler().post(() -> billingEventListener.onProductsPurchased(signatureValidPurchases));
+            dispatchToListener("onProductsPurchased", () -> billingEventListener.onProductsPurchased(signatureValidPurchases));
+        }
+
+        if (handlePurchases) {
+            reconcileLedger(productType, allPurchases, purchasedProductsFetched);
+            handleProcessedPurchases(signatureValidPurchases, purchasedProductsFetched);
+        }
+    }
+
+    /**
+     * Settles the pending ledger credits of purchases a purchase query no longer returns
+     */
+    private void reconcileLedger(ProductType productType, @NonNull List<Purchase> allPurchases, boolean purchasedProductsFetched) {
+        ConsumableLedger ledger = consumableLedger;
+        if (ledger == null || !purchasedProductsFetched || productType != ProductType.INAPP) {
+            return;
         }
 
+        Set<String> ownedPurchaseTokens = new HashSet<>();
+        for (Purchase purchase : allPurchases) {
+            ownedPurchaseTokens.add(purchase.getPurchaseToken());
+        }
+        ledger.reconcile(ownedPurchaseTokens);
+    }
+
+    /**
+     * Hands the purchases to the outbox and auto-consumes or auto-acknowledges them when enabled
+     */
+    private void handleProcessedPurchases(@NonNull List<PurchaseInfo> signatureValidPurchases, boolean purchasedProductsFetched) {
+        PurchaseOutbox outbox = purchaseOutbox;
         for (PurchaseInfo purchaseInfo : signatureValidPurchases) {
+            flightRecorder.record(FlightEventType.PURCHASE_UPDATE, purchaseInfo.getPurchaseState(), purchaseInfo.getProduct(),
+                    purchasedProductsFetched ? "owned purchase" : "new purchase");
+            if (outbox != null && purchaseInfo.isPurchased() && (!purchasedProductsFetched || !purchaseInfo.isAcknowledged())) {
+                outbox.enqueue(purchaseInfo);
+            }
             if (shouldAutoConsume) {
                 consumePurchase(purchaseInfo);
             }
@@ -664,30 +1482,50 @@ public class BillingConnector implements DefaultLifecycleObserver {
                     ConsumeParams consumeParams = ConsumeParams.newBuilder()
                             .setPurchaseToken(purchaseInfo.getPurchase().getPurchaseToken()).build();
 
-                    billingClient.consumeAsync(consumeParams, (billingResult, purchaseToken) -> {
+                    beginLedgerCredit(purchaseInfo, () -> billingClient.consumeAsync(consumeParams, (billingResult, purchaseToken) -> {
+                        flightRecorder.record(FlightEventType.CONSUME, billingResult.getResponseCode(), purchaseInfo.getProduct(), null);
                         if (billingResult.getResponseCode() == OK) {
-                            synchronized (purchasedProductsSync) {
-                                purchasedProductsList.remove(purchaseInfo);
-                            }
-                            findUiHandler().post(() -> billingEventListener.onPurchaseConsumed(purchaseInfo));
+                            removePurchasedProduct(purchaseInfo);
+                            settleLedgerCredit(purchaseInfo);
+                            dispatchToListener("onPurchaseConsumed", () -> billingEventListener.onPurchaseConsumed(purchaseInfo));
                         } else {
-                            Log("Handling consumables: error during consumption attempt: " + billingResult.getDebugMessage());
+                            logger.d("Handling consumables: error during consumption attempt: {}", billingResult.getDebugMessage());
 
-                            findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                                    new BillingResponse(ErrorType.CONSUME_ERROR, billingResult)));
+                            notifyBillingError(new BillingResponse(ErrorType.CONSUME_ERROR, billingResult));
                         }
-                    });
+                    }));
                 } else if (purchaseInfo.getPurchase().getPurchaseState() == Purchase.PurchaseState.PENDING) {
-                    Log("Handling consumables: purchase can not be consumed because the state is PENDING. " +
-                            "A purchase can be consumed only when the state is PURCHASED");
+                    logger.d("Handling consumables: purchase can not be consumed because the state is PENDING. A purchase can be consumed only when the state is PURCHASED");
 
-                    findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.CONSUME_WARNING,
-                            "Warning: purchase can not be consumed because the state is PENDING. Please consume the purchase later", defaultResponseCode)));
+                    notifyBillingError(new BillingResponse(ErrorType.CONSUME_WARNING, "Warning: purchase can not be consumed because the state is PENDING. Please consume the purchase later", defaultResponseCode));
                 }
             }
         }
     }
 
+    /**
+     * Commits the pending ledger credit of the purchase before the consumption starts
+     * <p>
+     * The purchase is not consumed when its credit can not be committed, it stays owned to be consumed again later
+     */
+    private void beginLedgerCredit(@NonNull PurchaseInfo purchaseInfo, @NonNull Runnable consume) {
+        ConsumableLedger ledger = consumableLedger;
+        if (ledger != null) {
+            ledger.beginCredit(purchaseInfo.getProduct(), purchaseInfo.getPurchaseToken(), purchaseInfo.getQuantity(), consume,
+                    () -> notifyBillingError(new BillingResponse(ErrorType.CONSUME_ERROR,
+                            "Ledger credit can not be recorded, the purchase is kept to be consumed later", defaultResponseCode)));
+        } else {
+            consume.run();
+        }
+    }
+
+    private void settleLedgerCredit(@NonNull PurchaseInfo purchaseInfo) {
+        ConsumableLedger ledger = consumableLedger;
+        if (ledger != null) {
+            ledger.settleCredit(purchaseInfo.getPurchaseToken());
+        }
+    }
+
     /**
      * Acknowledge non-consumable products & subscriptions
      * <p>
@@ -704,95 +1542,319 @@ public class BillingConnector implements DefaultLifecycleObserver {
                                     .setPurchaseToken(purchaseInfo.getPurchase().getPurchaseToken()).build();
 
                             billingClient.acknowledgePurchase(acknowledgePurchaseParams, billingResult -> {
+                                flightRecorder.record(FlightEventType.ACKNOWLEDGE, billingResult.getResponseCode(), purchaseInfo.getProduct(), null);
                                 if (billingResult.getResponseCode() == OK) {
-                                    findUiHandler().post(() -> billingEventListener.onPurchaseAcknowledged(purchaseInfo));
+                                    dispatchToListener("onPurchaseAcknowledged", () -> billingEventListener.onPurchaseAcknowledged(purchaseInfo));
                                 } else {
-                                    Log("Handling acknowledges: error during acknowledgment attempt: " + billingResult.getDebugMessage());
+                                    logger.d("Handling acknowledges: error during acknowledgment attempt: {}", billingResult.getDebugMessage());
 
-                                    findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this,
-                                            new BillingResponse(ErrorType.ACKNOWLEDGE_ERROR, billingResult)));
+                                    notifyBillingError(new BillingResponse(ErrorType.ACKNOWLEDGE_ERROR, billingResult));
                                 }
                             });
                         }
                     } else if (purchaseInfo.getPurchase().getPurchaseState() == Purchase.PurchaseState.PENDING) {
-                        Log("Handling acknowledges: purchase can not be acknowledged because the state is PENDING. " +
-                                "A purchase can be acknowledged only when the state is PURCHASED");
+                        logger.d("Handling acknowledges: purchase can not be acknowledged because the state is PENDING. A purchase can be acknowledged only when the state is PURCHASED");
+
+                        notifyBillingError(new BillingResponse(ErrorType.ACKNOWLEDGE_WARNING, "Warning: purchase can not be acknowledged because the state is PENDING. Please acknowledge the purchase later", defaultResponseCode));
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Called to purchase a non-consumable/consumable product
+     */
+    public final void purchase(Activity activity, String productId) {
+        purchase(activity, productId, notAnOffer, System.nanoTime());
+    }
+
+    /**
+     * Called to purchase a non-consumable/consumable product
+     * <p>
+     * The offer index represents the different offers in the subscription
+     *
+     * @param tapNanos - is the System.nanoTime() of the purchase call, for the tap-to-launch metric
+     */
+    private void purchase(Activity activity, String productId, int selectedOfferIndex, long tapNanos) {
+        if (checkProductBeforeInteraction(productId)) {
+            ProductFlowParams flowParams = flowParamsByProductId.get(productId);
+
+            if (flowParams != null) {
+                BillingFlowParams billingFlowParams;
+
+                if (flowParams.isSubscription()) {
+                    //the offer index represents the different offers in the subscription
+                    //offer index is only available for subscriptions starting with Google Billing v5+
+                    billingFlowParams = flowParams.getOfferFlowParams(selectedOfferIndex);
+
+                    //handle invalid selectedOfferIndex for subscriptions
+                    if (billingFlowParams == null) {
+                        logger.d("Invalid selectedOfferIndex: {} for product: {}. Offer details size: {}", selectedOfferIndex, productId, flowParams.getOfferCount());
+                        notifyBillingError(new BillingResponse(ErrorType.DEVELOPER_ERROR, "Invalid subscription offer index provided", defaultResponseCode));
+                        return; //prevent proceeding with an invalid index
+                    }
+                } else {
+                    billingFlowParams = flowParams.getOneTimeFlowParams();
+                }
+
+                launchBillingFlow(activity, productId, billingFlowParams, tapNanos);
+            } else {
+                logger.d("Billing client can not launch billing flow because product details are missing for product: {}", productId);
+                notifyBillingError(new BillingResponse(ErrorType.PRODUCT_NOT_EXIST, "Product details not found for " + productId, defaultResponseCode));
+            }
+        }
+    }
+
+    /**
+     * Called to purchase a subscription offer resolved through the offer index of the product
+     *
+     * @param subscriptionOffer - is the offer found in the product offer index, null if no offer matched
+     * @param offerDescription  - describes the requested offer for the error message, only built on error
+     * @param tapNanos          - is the System.nanoTime() of the subscribe call, for the tap-to-launch metric
+     */
+    private void purchaseSubscriptionOffer(Activity activity, String productId, @Nullable SubscriptionOfferDetails subscriptionOffer,
+                                           @NonNull BillingLogger.MessageSupplier offerDescription, long tapNanos) {
+        ProductFlowParams flowParams = flowParamsByProductId.get(productId);
+        if (flowParams == null) {
+            return;
+        }
+
+        BillingFlowParams billingFlowParams = subscriptionOffer != null ? flowParams.getOfferFlowParams(subscriptionOffer.getOfferToken()) : null;
+        if (billingFlowParams == null) {
+            String description = offerDescription.get();
+            logger.d("No subscription offer found for {} on product: {}", description, productId);
+            notifyBillingError(new BillingResponse(ErrorType.DEVELOPER_ERROR, "No subscription offer found for " + description, defaultResponseCode));
+            return;
+        }
+
+        launchBillingFlow(activity, productId, billingFlowParams, tapNanos);
+    }
+
+    /**
+     * Admits the billing flow of the product, at most one billing flow is open at a time
+     * <p>
+     * A launch for the product whose flow is open or queued is rejected with PURCHASE_FLOW_IN_PROGRESS.
+     * A launch for another product is queued and launched once the open flow is resolved. The queue is
+     * bounded, and a queued flow not launched within a few seconds of its tap is dropped and also
+     * reported with PURCHASE_FLOW_IN_PROGRESS
+     */
+    private void launchBillingFlow(Activity activity, @NonNull String productId, @NonNull BillingFlowParams billingFlowParams, long tapNanos) {
+        long generation = 0;
+        boolean admitted = false;
+        boolean rejected = false;
+        List<QueuedFlow> expiredFlows = new ArrayList<>();
+        synchronized (flowAdmissionSync) {
+            if (activeFlowProductId != null) {
+                removeExpiredFlows(System.nanoTime(), expiredFlows);
+                if (activeFlowProductId.equals(productId) || isFlowQueued(productId) || queuedFlows.size() >= MAX_QUEUED_FLOWS) {
+                    logger.d("Billing flow already in progress for product: {}", productId);
+                    rejected = true;
+                } else {
+                    logger.d("Billing flow for {} queued behind {}", productId, activeFlowProductId);
+                    queuedFlows.add(new QueuedFlow(activity, productId, billingFlowParams, tapNanos));
+                }
+            } else {
+                activeFlowProductId = productId;
+                activeFlowLaunched = false;
+                generation = ++activeFlowGeneration;
+                admitted = true;
+            }
+        }
+
+        notifyExpiredFlows(expiredFlows);
+        if (rejected) {
+            notifyBillingError(new BillingResponse(ErrorType.PURCHASE_FLOW_IN_PROGRESS, "A billing flow is already in progress for " + productId, defaultResponseCode));
+        }
+        if (admitted) {
+            startBillingFlow(activity, productId, billingFlowParams, tapNanos, generation);
+        }
+    }
+
+    /**
+     * Moves the queued flows tapped too long ago to expiredFlows
+     * <p>
+     * Must be called while holding flowAdmissionSync
+     */
+    private void removeExpiredFlows(long nowNanos, @NonNull List<QueuedFlow> expiredFlows) {
+        Iterator<QueuedFlow> iterator = queuedFlows.iterator();
+        while (iterator.hasNext()) {
+            QueuedFlow queuedFlow = iterator.next();
+            if (nowNanos - queuedFlow.tapNanos > QUEUED_FLOW_MAX_AGE_NANOS) {
+                iterator.remove();
+                expiredFlows.add(queuedFlow);
+            }
+        }
+    }
+
+    private void notifyExpiredFlows(@NonNull List<QueuedFlow> expiredFlows) {
+        for (QueuedFlow expiredFlow : expiredFlows) {
+            logger.d("Queued billing flow for {} dropped, it waited too long", expiredFlow.productId);
+            notifyBillingError(new BillingResponse(ErrorType.PURCHASE_FLOW_IN_PROGRESS,
+                    "A billing flow was in progress for too long to launch " + expiredFlow.productId, defaultResponseCode));
+        }
+    }
+
+    /**
+     * Launches the admitted billing flow with the params built when product details were fetched
+     * <p>
+     * Reports the time from the purchase call to this launch through the BillingMetricsListener
+     */
+    private void startBillingFlow(Activity activity, @NonNull String productId, @NonNull BillingFlowParams billingFlowParams, long tapNanos, long generation) {
+        long tapToLaunchNanos = System.nanoTime() - tapNanos;
+        BillingResult billingResult = billingClient.launchBillingFlow(activity, billingFlowParams);
+
+        if (logger.isLoggable(LogLevel.DEBUG)) {
+            logger.d("Billing flow launched for {} in {} us", productId, tapToLaunchNanos / 1000L);
+        }
+        BillingMetricsListener metricsListener = billingMetricsListener;
+        if (metricsListener != null) {
+            metricsListener.onBillingFlowLaunched(productId, tapToLaunchNanos, billingResult.getResponseCode());
+        }
+
+        //a flow that did not open will never be resolved by onPurchasesUpdated
+        if (billingResult.getResponseCode() != OK) {
+            logger.d("Billing flow for {} not opened. Response code: {}", productId, billingResult.getResponseCode());
+            finishActiveFlow(generation);
+            return;
+        }
+
+        synchronized (flowAdmissionSync) {
+            if (activeFlowGeneration == generation) {
+                activeFlowLaunched = true;
+            }
+        }
+        watchActiveFlow(generation, FLOW_TIMEOUT_MS);
+    }
+
+    /**
+     * Resolves the open billing flow when the purchase update belongs to it
+     * <p>
+     * Updates for other products, for eg. a pending purchase completing in the background, leave the flow open.
+     * A failed or canceled update always belongs to the open flow
+     */
+    private void resolveActiveFlow(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+        long generation;
+        synchronized (flowAdmissionSync) {
+            if (activeFlowProductId == null) {
+                return;
+            }
+            if (billingResult.getResponseCode() == OK && !containsProduct(purchases, activeFlowProductId)) {
+                return;
+            }
+            generation = activeFlowGeneration;
+        }
+        finishActiveFlow(generation);
+    }
+
+    private static boolean containsProduct(@Nullable List<Purchase> purchases, @NonNull String productId) {
+        if (purchases == null) {
+            return false;
+        }
+        for (Purchase purchase : purchases) {
+            if (purchase.getProducts().contains(productId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resets the flow if it is still open after the delay, replacing the previous watchdog of the flow
+     */
+    private void watchActiveFlow(long generation, long delayMs) {
+        Runnable watchdog = () -> {
+            String productId;
+            synchronized (flowAdmissionSync) {
+                if (activeFlowGeneration != generation || activeFlowProductId == null) {
+                    return;
+                }
+                productId = activeFlowProductId;
+            }
+            logger.d("Billing flow for {} reset, no purchase update was received", productId);
+            finishActiveFlow(generation);
+        };
 
-                        findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.ACKNOWLEDGE_WARNING,
-                                "Warning: purchase can not be acknowledged because the state is PENDING. Please acknowledge the purchase later", defaultResponseCode)));
-                    }
-                    break;
+        Runnable previousWatchdog;
+        synchronized (flowAdmissionSync) {
+            if (activeFlowGeneration != generation) {
+                return;
             }
+            previousWatchdog = activeFlowWatchdog;
+            activeFlowWatchdog = watchdog;
+        }
+        if (previousWatchdog != null) {
+            findUiHandler().removeCallbacks(previousWatchdog);
         }
+        findUiHandler().postDelayed(watchdog, delayMs);
     }
 
-    /**
-     * Called to purchase a non-consumable/consumable product
-     */
-    public final void purchase(Activity activity, String productId) {
-        purchase(activity, productId, notAnOffer);
+    private boolean isFlowQueued(@NonNull String productId) {
+        for (QueuedFlow queuedFlow : queuedFlows) {
+            if (queuedFlow.productId.equals(productId)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Called to purchase a non-consumable/consumable product
-     * <p>
-     * The offer index represents the different offers in the subscription
+     * Resolves the open billing flow and launches the next queued one whose activity is still alive
+     * and whose tap is recent enough
+     *
+     * @param generation - identifies the flow to resolve, nothing happens if another flow was admitted since
      */
-    private void purchase(Activity activity, String productId, int selectedOfferIndex) {
-        if (checkProductBeforeInteraction(productId)) {
-            ProductInfo foundProductInfo = null;
-            for (ProductInfo productInfo : fetchedProductInfoList) {
-                if (productInfo.getProduct().equals(productId)) {
-                    foundProductInfo = productInfo;
-                    break;
-                }
+    private void finishActiveFlow(long generation) {
+        QueuedFlow nextFlow;
+        Activity nextActivity = null;
+        Runnable watchdog;
+        long nextGeneration;
+        List<QueuedFlow> expiredFlows = new ArrayList<>();
+        synchronized (flowAdmissionSync) {
+            if (activeFlowGeneration != generation || activeFlowProductId == null) {
+                return;
             }
-
-            if (foundProductInfo != null) {
-                ProductDetails productDetails = foundProductInfo.getProductDetails();
-                ImmutableList<BillingFlowParams.ProductDetailsParams> productDetailsParamsList;
-
-                if (productDetails.getProductType().equals(SUBS)) {
-                    List<ProductDetails.SubscriptionOfferDetails> offerDetails = productDetails.getSubscriptionOfferDetails();
-                    if (offerDetails != null && selectedOfferIndex >= 0 && selectedOfferIndex < offerDetails.size()) {
-                        //the offer index represents the different offers in the subscription
-                        //offer index is only available for subscriptions starting with Google Billing v5+
-                        productDetailsParamsList = ImmutableList.of(
-                                BillingFlowParams.ProductDetailsParams.newBuilder()
-                                        .setProductDetails(productDetails)
-                                        .setOfferToken(offerDetails.get(selectedOfferIndex).getOfferToken())
-                                        .build()
-                        );
-                    }
-                    //handle invalid selectedOfferIndex for subscriptions
-                    else {
-                        Log("Invalid selectedOfferIndex: " + selectedOfferIndex + " for product: " + productId +
-                                ". Offer details size: " + (offerDetails != null ? offerDetails.size() : "null"));
-                        findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.DEVELOPER_ERROR,
-                                "Invalid subscription offer index provided", defaultResponseCode)));
-                        return; //prevent proceeding with an invalid index
+            activeFlowProductId = null;
+            activeFlowLaunched = false;
+            watchdog = activeFlowWatchdog;
+            activeFlowWatchdog = null;
+            removeExpiredFlows(System.nanoTime(), expiredFlows);
+            do {
+                nextFlow = queuedFlows.poll();
+                if (nextFlow != null) {
+                    nextActivity = nextFlow.activityRef.get();
+                    if (nextActivity == null || nextActivity.isFinishing() || nextActivity.isDestroyed()) {
+                        logger.d("Queued billing flow for {} dropped, its activity is gone", nextFlow.productId);
+                        nextActivity = null;
                     }
                 }
-                //handle IN-APP products (consumable or non-consumable)
-                else {
-                    productDetailsParamsList = ImmutableList.of(
-                            BillingFlowParams.ProductDetailsParams.newBuilder()
-                                    .setProductDetails(productDetails)
-                                    .build()
-                    );
-                }
+            } while (nextFlow != null && nextActivity == null);
 
-                BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder()
-                        .setProductDetailsParamsList(productDetailsParamsList)
-                        .build();
-
-                billingClient.launchBillingFlow(activity, billingFlowParams);
-            } else {
-                Log("Billing client can not launch billing flow because product details are missing for product: " + productId);
-                findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.PRODUCT_NOT_EXIST,
-                        "Product details not found for " + productId, defaultResponseCode)));
+            if (nextFlow != null) {
+                activeFlowProductId = nextFlow.productId;
             }
+            nextGeneration = ++activeFlowGeneration;
+        }
+
+        if (watchdog != null) {
+            findUiHandler().removeCallbacks(watchdog);
+        }
+        notifyExpiredFlows(expiredFlows);
+        if (nextFlow == null) {
+            return;
         }
+
+        QueuedFlow flow = nextFlow;
+        Activity activity = nextActivity;
+        findUiHandler().post(() -> {
+            //the connector may have been released meanwhile
+            synchronized (flowAdmissionSync) {
+                if (activeFlowGeneration != nextGeneration) {
+                    return;
+                }
+            }
+            startBillingFlow(activity, flow.productId, flow.billingFlowParams, flow.tapNanos, nextGeneration);
+        });
     }
 
     /**
@@ -810,7 +1872,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
             }
         }
 
-        Log("Pending purchase no longer exists: " + purchaseInfo.getProduct());
+        logger.d("Pending purchase no longer exists: {}", purchaseInfo.getProduct());
         notifyBillingError(ErrorType.PENDING_PURCHASE_CANCELED,
                 "Pending purchase was removed");
         return false;
@@ -829,7 +1891,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     public void retryPendingPurchase(String productId) {
         if (!isReady()) {
-            Log("Cannot retry pending purchase: Billing client is not ready");
+            logger.d("Cannot retry pending purchase: Billing client is not ready");
             notifyBillingError(ErrorType.CLIENT_NOT_READY, "Billing client is not ready");
             return;
         }
@@ -846,7 +1908,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
         }
 
         if (pendingPurchase == null || !pendingPurchase.isPending()) {
-            Log("No pending purchase found for product: " + productId);
+            logger.d("No pending purchase found for product: {}", productId);
             notifyBillingError(ErrorType.NOT_PENDING, "No pending purchase for: " + productId);
             return;
         }
@@ -868,8 +1930,8 @@ public class BillingConnector implements DefaultLifecycleObserver {
         }
 
         long delayMs = calculateRetryDelay(retryCount);
-        Log("Retrying pending purchase (" + (retryCount + 1) +
-                "/" + MAX_PENDING_RETRIES + ") for: " + purchaseInfo.getProduct());
+        flightRecorder.record(FlightEventType.RETRY, retryCount + 1, purchaseInfo.getProduct(), "pending purchase retry, code is the attempt");
+        logger.d("Retrying pending purchase ({}/{}) for: {}", retryCount + 1, MAX_PENDING_RETRIES, purchaseInfo.getProduct());
 
         findUiHandler().postDelayed(() -> {
             boolean shouldContinue = verifyPurchaseState(purchaseInfo);
@@ -894,8 +1956,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
                         .build(),
                 (billingResult, purchases) -> {
                     if (billingResult.getResponseCode() != OK) {
-                        Log("Failed to query purchases during retry: " +
-                                billingResult.getDebugMessage());
+                        logger.d("Failed to query purchases during retry: {}", billingResult.getDebugMessage());
                         retryPurchaseWithBackoff(purchaseInfo,
                                 retryCount + 1,
                                 startTime);
@@ -924,15 +1985,14 @@ public class BillingConnector implements DefaultLifecycleObserver {
         }
 
         if (completedPurchase == null) {
-            Log("Pending purchase not found, may have been canceled: " +
-                    originalInfo.getProduct());
+            logger.d("Pending purchase not found, may have been canceled: {}", originalInfo.getProduct());
             notifyBillingError(ErrorType.PENDING_PURCHASE_CANCELED,
                     "Pending purchase may have been canceled");
             return;
         }
 
         if (completedPurchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
-            Log("Pending purchase completed: " + originalInfo.getProduct());
+            logger.d("Pending purchase completed: {}", originalInfo.getProduct());
             handleCompletedPurchase(originalInfo, completedPurchase);
         } else {
             retryPurchaseWithBackoff(originalInfo, retryCount + 1, startTime);
@@ -949,7 +2009,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     private void acknowledgePurchaseWithRetry(@NonNull PurchaseInfo purchaseInfo, int retryCount, int maxRetries, AcknowledgeEventListener listener) {
         if (retryCount >= maxRetries) {
-            Log("Max retries reached for acknowledgment: " + purchaseInfo.getProduct());
+            logger.d("Max retries reached for acknowledgment: {}", purchaseInfo.getProduct());
             listener.onFailure();
             return;
         }
@@ -961,13 +2021,12 @@ public class BillingConnector implements DefaultLifecycleObserver {
                 .build();
 
         billingClient.acknowledgePurchase(params, billingResult -> {
+            flightRecorder.record(FlightEventType.ACKNOWLEDGE, billingResult.getResponseCode(), purchaseInfo.getProduct(), "retry");
             if (billingResult.getResponseCode() == OK) {
-                Log("Acknowledgment successful for: " + purchaseInfo.getProduct());
+                logger.d("Acknowledgment successful for: {}", purchaseInfo.getProduct());
                 listener.onSuccess();
             } else {
-                Log("Acknowledgment failed (attempt " + (retryCount + 1) +
-                        "/" + maxRetries + ") for: " + purchaseInfo.getProduct() +
-                        " - " + billingResult.getDebugMessage());
+                logger.d(() -> "Acknowledgment failed (attempt " + (retryCount + 1) + "/" + maxRetries + ") for: " + purchaseInfo.getProduct() + " - " + billingResult.getDebugMessage());
 
                 findUiHandler().postDelayed(() -> acknowledgePurchaseWithRetry(purchaseInfo, retryCount + 1, maxRetries, listener), delayMs);
             }
@@ -984,7 +2043,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     private void consumeWithRetry(@NonNull PurchaseInfo purchaseInfo, int retryCount, int maxRetries, @NonNull ConsumeEventListener listener) {
         if (retryCount >= maxRetries) {
-            Log("Max consume retries reached for: " + purchaseInfo.getProduct());
+            logger.d("Max consume retries reached for: {}", purchaseInfo.getProduct());
             listener.onFailure();
             return;
         }
@@ -996,12 +2055,12 @@ public class BillingConnector implements DefaultLifecycleObserver {
                 .build();
 
         billingClient.consumeAsync(params, (billingResult, purchaseToken) -> {
+            flightRecorder.record(FlightEventType.CONSUME, billingResult.getResponseCode(), purchaseInfo.getProduct(), "retry");
             if (billingResult.getResponseCode() == OK) {
-                Log("Consume success for: " + purchaseInfo.getProduct());
+                logger.d("Consume success for: {}", purchaseInfo.getProduct());
                 listener.onSuccess();
             } else {
-                Log("Consume failed (attempt " + (retryCount + 1) +
-                        "/" + maxRetries + "): " + billingResult.getDebugMessage());
+                logger.d("Consume failed (attempt {}/{}): {}", retryCount + 1, maxRetries, billingResult.getDebugMessage());
 
                 findUiHandler().postDelayed(() -> consumeWithRetry(purchaseInfo, retryCount + 1, maxRetries, listener), delayMs);
             }
@@ -1015,14 +2074,13 @@ public class BillingConnector implements DefaultLifecycleObserver {
     private void handleCompletedPurchase(@NonNull PurchaseInfo originalInfo, @NonNull Purchase completedPurchase) {
         //initial state verification
         if (completedPurchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
-            Log("Attempted to handle NON-PURCHASED item: " + completedPurchase.getPurchaseState() +
-                    " for product: " + originalInfo.getProduct());
+            logger.d("Attempted to handle NON-PURCHASED item: {} for product: {}", completedPurchase.getPurchaseState(), originalInfo.getProduct());
             return;
         }
 
         //verify purchase token matches
         if (!completedPurchase.getPurchaseToken().equals(originalInfo.getPurchase().getPurchaseToken())) {
-            Log("Purchase token mismatch for product: " + originalInfo.getProduct());
+            logger.d("Purchase token mismatch for product: {}", originalInfo.getProduct());
             notifyBillingError(ErrorType.DEVELOPER_ERROR, "Purchase verification failed");
             return;
         }
@@ -1041,9 +2099,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
 
             //re-verify state after synchronization
             if (completedPurchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
-                Log("Purchase state changed during processing: " +
-                        completedPurchase.getPurchaseState() +
-                        " for product: " + originalInfo.getProduct());
+                logger.d("Purchase state changed during processing: {} for product: {}", completedPurchase.getPurchaseState(), originalInfo.getProduct());
                 return;
             }
 
@@ -1059,13 +2115,12 @@ public class BillingConnector implements DefaultLifecycleObserver {
 
             //handle auto-consume for consumables
             if (shouldAutoConsume && originalInfo.getSkuProductType() == SkuProductType.CONSUMABLE) {
-                consumeWithRetry(completedPurchaseInfo, 0, 3, new ConsumeEventListener() {
+                beginLedgerCredit(completedPurchaseInfo, () -> consumeWithRetry(completedPurchaseInfo, 0, 3, new ConsumeEventListener() {
                     @Override
                     public void onSuccess() {
-                        synchronized (purchasedProductsSync) {
-                            purchasedProductsList.remove(completedPurchaseInfo);
-                        }
-                        findUiHandler().post(() ->
+                        removePurchasedProduct(completedPurchaseInfo);
+                        settleLedgerCredit(completedPurchaseInfo);
+                        dispatchToListener("onPurchaseConsumed", () ->
                                 billingEventListener.onPurchaseConsumed(completedPurchaseInfo));
                     }
 
@@ -1073,14 +2128,14 @@ public class BillingConnector implements DefaultLifecycleObserver {
                     public void onFailure() {
                         handleConsumeFailure(completedPurchaseInfo);
                     }
-                });
+                }));
             }
             //handle auto-acknowledge for non-consumables and subscriptions
             else if (shouldAutoAcknowledge && !completedPurchase.isAcknowledged()) {
                 acknowledgePurchaseWithRetry(completedPurchaseInfo, 0, 3, new AcknowledgeEventListener() {
                     @Override
                     public void onSuccess() {
-                        findUiHandler().post(() ->
+                        dispatchToListener("onPurchaseAcknowledged", () ->
                                 billingEventListener.onPurchaseAcknowledged(completedPurchaseInfo));
                     }
 
@@ -1113,12 +2168,12 @@ public class BillingConnector implements DefaultLifecycleObserver {
      */
     private boolean shouldStopRetrying(PurchaseInfo purchaseInfo, int retryCount, long startTime) {
         if (retryCount >= MAX_PENDING_RETRIES) {
-            Log("Max retry attempts reached for: " + purchaseInfo.getProduct());
+            logger.d("Max retry attempts reached for: {}", purchaseInfo.getProduct());
             return true;
         }
 
         if (System.currentTimeMillis() - startTime > MAX_PENDING_DURATION_MS) {
-            Log("Max retry duration exceeded for: " + purchaseInfo.getProduct());
+            logger.d("Max retry duration exceeded for: {}", purchaseInfo.getProduct());
             return true;
         }
 
@@ -1131,9 +2186,8 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * @param purchaseInfo - contains details about the purchase that failed consumption
      */
     private void handleConsumeFailure(@NonNull PurchaseInfo purchaseInfo) {
-        Log("Consume failed for: " + purchaseInfo.getProduct());
-        findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.CONSUME_ERROR,
-                "Failed to consume  purchase", defaultResponseCode)));
+        logger.d("Consume failed for: {}", purchaseInfo.getProduct());
+        notifyBillingError(new BillingResponse(ErrorType.CONSUME_ERROR, "Failed to consume  purchase", defaultResponseCode));
     }
 
     /**
@@ -1142,9 +2196,8 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * @param purchaseInfo - contains details about the purchase that failed acknowledgment
      */
     private void handleAcknowledgeFailure(@NonNull PurchaseInfo purchaseInfo) {
-        Log("Acknowledge failed for: " + purchaseInfo.getProduct());
-        findUiHandler().post(() -> billingEventListener.onBillingError(BillingConnector.this, new BillingResponse(ErrorType.ACKNOWLEDGE_ERROR,
-                "Failed to acknowledge purchase", defaultResponseCode)));
+        logger.d("Acknowledge failed for: {}", purchaseInfo.getProduct());
+        notifyBillingError(new BillingResponse(ErrorType.ACKNOWLEDGE_ERROR, "Failed to acknowledge purchase", defaultResponseCode));
     }
 
     /**
@@ -1155,22 +2208,83 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * @param purchaseInfo - the purchase that failed to complete
      */
     private void handleRetryFailure(@NonNull PurchaseInfo purchaseInfo) {
-        Log("Max retries reached for pending purchase: " + purchaseInfo.getProduct());
+        logger.d("Max retries reached for pending purchase: {}", purchaseInfo.getProduct());
+
+        removePurchasedProduct(purchaseInfo);
 
-        //synchronize access when removing failed purchase
+        notifyBillingError(ErrorType.PENDING_PURCHASE_RETRY_ERROR,
+                "Pending purchase still not completed after " + MAX_PENDING_RETRIES + " retries");
+    }
+
+    /**
+     * Removes the purchase with the same purchase token from the purchased products list
+     *
+     * @param purchaseInfo - the purchase to remove
+     */
+    private void removePurchasedProduct(@NonNull PurchaseInfo purchaseInfo) {
+        boolean removed = false;
         synchronized (purchasedProductsSync) {
             Iterator<PurchaseInfo> iterator = purchasedProductsList.iterator();
             while (iterator.hasNext()) {
-                PurchaseInfo p = iterator.next();
-                if (p.getPurchase().getPurchaseToken().equals(purchaseInfo.getPurchase().getPurchaseToken())) {
+                if (iterator.next().getPurchaseToken().equals(purchaseInfo.getPurchaseToken())) {
                     iterator.remove();
+                    removed = true;
                     break;
                 }
             }
         }
 
-        notifyBillingError(ErrorType.PENDING_PURCHASE_RETRY_ERROR,
-                "Pending purchase still not completed after " + MAX_PENDING_RETRIES + " retries");
+        if (removed) {
+            onPurchasesChanged();
+        }
+    }
+
+    /**
+     * Called after every change of the purchased products list
+     * <p>
+     * Publishes the new entitlement snapshot for the other processes of the app
+     */
+    private void onPurchasesChanged() {
+        compileEntitlements();
+
+        EntitlementSnapshotStore store = entitlementSnapshotStore;
+        if (store != null) {
+            store.publish(createEntitlementSnapshot());
+        }
+    }
+
+    /**
+     * Recompiles the entitlement rules from the owned purchases
+     */
+    private void compileEntitlements() {
+        if (entitlementRules == null) {
+            return;
+        }
+
+        //purchases are read under the same lock, so an older compile can not replace a newer one
+        synchronized (entitlementSync) {
+            Map<String, Integer> stateMasksByProductId = new HashMap<>();
+            synchronized (purchasedProductsSync) {
+                for (PurchaseInfo purchaseInfo : purchasedProductsList) {
+                    int stateBit = EntitlementRules.stateBit(purchaseInfo.getPurchaseState());
+                    for (String productId : purchaseInfo.getProducts()) {
+                        Integer stateMask = stateMasksByProductId.get(productId);
+                        stateMasksByProductId.put(productId, stateMask != null ? stateMask | stateBit : stateBit);
+                    }
+                }
+            }
+            entitlementRules.compile(stateMasksByProductId);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the current purchased products list
+     */
+    @NonNull
+    private EntitlementSnapshot createEntitlementSnapshot() {
+        synchronized (purchasedProductsSync) {
+            return EntitlementSnapshot.of(purchasesSyncedAtMillis, fetchedInAppPurchases, fetchedSubsPurchases, purchasedProductsList);
+        }
     }
 
     /**
@@ -1180,10 +2294,97 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * @param message   - descriptive error message
      */
     private void notifyBillingError(ErrorType errorType, String message) {
-        findUiHandler().post(() -> {
+        notifyBillingError(new BillingResponse(errorType, message, defaultResponseCode));
+    }
+
+    /**
+     * Runs a BillingEventListener callback on the UI thread and measures it against the listener budget
+     * <p>
+     * Without a listener the callback is kept for the next one if the registry detached it, otherwise dropped
+     *
+     * @param callbackName - is the name of the listener method, reported when the callback goes over budget
+     */
+    private void dispatchToListener(@NonNull String callbackName, @NonNull Runnable callback) {
+        findUiHandler().post(() -> runListenerCallback(callbackName, callback));
+    }
+
+    private void runListenerCallback(@NonNull String callbackName, @NonNull Runnable callback) {
+        //the listener may have been detached while the callback was queued
+        if (billingEventListener == null) {
+            keepDetachedCallback(callbackName, callback);
+            return;
+        }
+
+        //callbacks kept while detached come first, so the new listener sees them in order
+        replayDetachedCallbacks();
+        runMeasured(callbackName, callback);
+    }
+
+    /**
+     * Runs a listener callback and measures it against the listener budget
+     */
+    private void runMeasured(@NonNull String callbackName, @NonNull Runnable callback) {
+        long startNanos = System.nanoTime();
+        callback.run();
+        long durationNanos = System.nanoTime() - startNanos;
+
+        long budgetNanos = listenerBudgetNanos;
+        if (durationNanos > budgetNanos) {
+            onListenerOverBudget(callbackName, durationNanos, budgetNanos);
+        }
+    }
+
+    /**
+     * Keeps a callback emitted without a listener when the registry detached it, otherwise drops it
+     */
+    private void keepDetachedCallback(@NonNull String callbackName, @NonNull Runnable callback) {
+        if (!keepDetachedCallbacks) {
+            logger.d("No billing event listener, {} is dropped", callbackName);
+            return;
+        }
+
+        if (detachedCallbacks.size() == MAX_DETACHED_CALLBACKS) {
+            logger.w("Too many callbacks while the listener is detached, {} is dropped", detachedCallbacks.pollFirst().callbackName);
+        }
+        logger.d("Billing event listener is detached, {} is kept for the next listener", callbackName);
+        detachedCallbacks.addLast(new DetachedCallback(callbackName, callback));
+    }
+
+    /**
+     * Runs the callbacks kept while detached on the current listener, on the UI thread
+     */
+    private void replayDetachedCallbacks() {
+        DetachedCallback detachedCallback;
+        while (billingEventListener != null && (detachedCallback = detachedCallbacks.pollFirst()) != null) {
+            logger.d("Replaying {} emitted while the listener was detached", detachedCallback.callbackName);
+            runMeasured(detachedCallback.callbackName, detachedCallback.callback);
+        }
+    }
+
+    private void onListenerOverBudget(@NonNull String callbackName, long durationNanos, long budgetNanos) {
+        logger.w("Listener {} took {} us on the UI thread", callbackName, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+
+        BillingMetricsListener metricsListener = billingMetricsListener;
+        if (metricsListener != null) {
+            metricsListener.onListenerOverBudget(callbackName, durationNanos, budgetNanos);
+        }
+
+        if (strictListenerBudget) {
+            throw new IllegalStateException("BillingEventListener." + callbackName + " took " + TimeUnit.NANOSECONDS.toMillis(durationNanos)
+                    + " ms on the UI thread, the budget is " + TimeUnit.NANOSECONDS.toMillis(budgetNanos) + " ms");
+        }
+    }
+
+    /**
+     * Records the error in the flight recorder and notifies billing event listener about it on the UI thread
+     *
+     * @param response - provides information about the error
+     */
+    private void notifyBillingError(@NonNull BillingResponse response) {
+        flightRecorder.record(FlightEventType.ERROR, response.getResponseCode(), null, response.getErrorType().name());
+        dispatchToListener("onBillingError", () -> {
             if (billingEventListener != null) {
-                billingEventListener.onBillingError(BillingConnector.this,
-                        new BillingResponse(errorType, message, defaultResponseCode));
+                billingEventListener.onBillingError(BillingConnector.this, response);
             }
         });
     }
@@ -1198,7 +2399,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * For subscription with only one base package, use subscribe(activity, productId) method or selectedOfferIndex = 0
      */
     public final void subscribe(Activity activity, String productId, int selectedOfferIndex) {
-        purchase(activity, productId, selectedOfferIndex);
+        purchase(activity, productId, selectedOfferIndex, System.nanoTime());
     }
 
     /**
@@ -1208,7 +2409,79 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * For subscriptions with multiple offers, use subscribe(activity, productId, selectedOfferIndex).
      */
     public final void subscribe(Activity activity, String productId) {
-        purchase(activity, productId, 0);
+        purchase(activity, productId, 0, System.nanoTime());
+    }
+
+    /**
+     * Called to purchase the base plan of a subscription
+     * <p>
+     * The offer is resolved through the offer index built when product details are fetched
+     *
+     * @param basePlanId - is the base plan id from Play Console
+     */
+    public final void subscribe(Activity activity, String productId, String basePlanId) {
+        subscribe(activity, productId, basePlanId, null);
+    }
+
+    /**
+     * Called to purchase a specific offer of a subscription base plan
+     * <p>
+     * The offer is resolved through the offer index built when product details are fetched
+     *
+     * @param basePlanId - is the base plan id from Play Console
+     * @param offerId    - is the offer id from Play Console, or null for the base plan offer
+     */
+    public final void subscribe(Activity activity, String productId, String basePlanId, @Nullable String offerId) {
+        long tapNanos = System.nanoTime();
+        if (checkProductBeforeInteraction(productId)) {
+            ProductInfo productInfo = fetchedProductInfoById.get(productId);
+            SubscriptionOfferDetails subscriptionOffer = productInfo != null ? productInfo.findSubscriptionOffer(basePlanId, offerId) : null;
+            purchaseSubscriptionOffer(activity, productId, subscriptionOffer,
+                    () -> "base plan: " + basePlanId + (offerId != null ? ", offer: " + offerId : ""), tapNanos);
+        }
+    }
+
+    /**
+     * Called to purchase the first subscription offer carrying the given offer tag
+     * <p>
+     * The offer is resolved through the offer index built when product details are fetched
+     *
+     * @param offerTag - is the offer tag from Play Console
+     */
+    public final void subscribeByOfferTag(Activity activity, String productId, String offerTag) {
+        long tapNanos = System.nanoTime();
+        if (checkProductBeforeInteraction(productId)) {
+            ProductInfo productInfo = fetchedProductInfoById.get(productId);
+            List<SubscriptionOfferDetails> taggedOffers = productInfo != null ?
+                    productInfo.getSubscriptionOffersByTag(offerTag) : Collections.emptyList();
+            purchaseSubscriptionOffer(activity, productId, taggedOffers.isEmpty() ? null : taggedOffers.get(0),
+                    () -> "offer tag: " + offerTag, tapNanos);
+        }
+    }
+
+    /**
+     * Returns the subscription offer with the lowest effective monthly price across all base plans
+     * <p>
+     * Offers are ranked once when product details are fetched, so this is a map lookup
+     *
+     * @param productId - is the subscription product ID
+     */
+    @Nullable
+    public SubscriptionOfferDetails getCheapestOffer(String productId) {
+        ProductInfo productInfo = getProductInfo(productId);
+        return productInfo != null ? productInfo.getCheapestOffer() : null;
+    }
+
+    /**
+     * Returns the subscription offer of the given base plan with the lowest effective monthly price
+     *
+     * @param productId  - is the subscription product ID
+     * @param basePlanId - is the base plan id from Play Console
+     */
+    @Nullable
+    public SubscriptionOfferDetails getCheapestOffer(String productId, String basePlanId) {
+        ProductInfo productInfo = getProductInfo(productId);
+        return productInfo != null ? productInfo.getCheapestOffer(basePlanId) : null;
     }
 
     /**
@@ -1224,8 +2497,7 @@ public class BillingConnector implements DefaultLifecycleObserver {
 
             activity.startActivity(intent);
         } catch (Exception e) {
-            Log("Handling subscription cancellation: error while trying to unsubscribe"
-                    + "\nError: " + e.getMessage());
+            logger.d("Handling subscription cancellation: error while trying to unsubscribe\nError: {}", e.getMessage());
         }
 
     }
@@ -1268,53 +2540,50 @@ public class BillingConnector implements DefaultLifecycleObserver {
      * 1. Checks for the Play Store package ("com.android.vending")
      * 2. Verifies if any app can handle Play Store URLs (fallback)
      * <p>
+     * The result is cached for the process and refreshed when the Play Store package changes,
+     * so only the first call queries the PackageManager
+     * <p>
      * Will trigger both PLAY_STORE_NOT_INSTALLED and BILLING_UNAVAILABLE
      *
      * @param context - the application context
      * @return true if Play Store is installed, false otherwise
      */
     public boolean isPlayStoreInstalled(@NonNull Context context) {
-        if (isPlayStoreInstalledByPackage(context)) {
-            return true;
-        }
-        return canHandlePlayStoreUrl(context);
+        return PlayStoreDetector.isPlayStoreInstalled(context, logger);
     }
 
     /**
-     * Checks if Google Play Store is installed by verifying the existence of its package
-     *
-     * @param context - the application context
-     * @return true if Play Store package exists, false otherwise
+     * Returns the in-memory flight recorder of billing events
+     * <p>
+     * Use dumpAsText() or dumpAsJson() on it to attach the recent billing history to a support bundle
      */
-    private boolean isPlayStoreInstalledByPackage(@NonNull Context context) {
-        try {
-            PackageManager pm = context.getPackageManager();
-            pm.getPackageInfo("com.android.vending", PackageManager.GET_ACTIVITIES);
-            return true;
-        } catch (PackageManager.NameNotFoundException e) {
-            Log("Google Play Store is not installed");
-            return false;
-        }
+    @NonNull
+    public BillingFlightRecorder getFlightRecorder() {
+        return flightRecorder;
     }
 
     /**
-     * Checks if any app (ideally Play Store) can handle Play Store URLs as a fallback verification
-     *
-     * @param context - the application context
-     * @return true if an app can handle Play Store URLs and is the actual Play Store, false otherwise
+     * Returns a list of all fetched products
+     * <p>
+     * Useful when a warm connector is reused, for eg. through BillingConnectorRegistry,
+     * and the onProductsFetched callback already fired for a previous listener
      */
-    private boolean canHandlePlayStoreUrl(@NonNull Context context) {
-        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://play.google.com/store"));
-        PackageManager pm = context.getPackageManager();
-        ResolveInfo resolveInfo = pm.resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
-
-        if (resolveInfo == null) {
-            Log("Google Play Store is not installed");
-            return false;
-        }
+    public List<ProductInfo> getFetchedProducts() {
+        refreshStaleProducts();
+        return new ArrayList<>(fetchedProductInfoById.values());
+    }
 
-        //verify if the resolver is actually the Play Store
-        return "com.android.vending".equals(resolveInfo.activityInfo.packageName);
+    /**
+     * Returns the cached details of the product, null if they were not fetched
+     * <p>
+     * Stale details are still returned, while a background query refreshes them
+     *
+     * @param productId - is the product id from Play Console
+     */
+    @Nullable
+    public ProductInfo getProductInfo(String productId) {
+        refreshStaleProducts();
+        return fetchedProductInfoById.get(productId);
     }
 
     /**
@@ -1350,6 +2619,68 @@ public class BillingConnector implements DefaultLifecycleObserver {
         }
     }
 
+    /**
+     * Checks the purchase state of many products at once, for eg. every tile of a store grid
+     * <p>
+     * The readiness check and the lock are taken once for the whole batch, so all results come from the same purchases
+     *
+     * @param productIds - are the product ids to check
+     * @return the results aligned with the given product ids
+     */
+    @NonNull
+    public final PurchasedResult[] isPurchased(@NonNull List<String> productIds) {
+        return checkPurchased(productIds.toArray(new String[0]));
+    }
+
+    /**
+     * Checks the purchase state of many products at once, for eg. every tile of a store grid
+     * <p>
+     * The readiness check and the lock are taken once for the whole batch, so all results come from the same purchases
+     *
+     * @param products - are the products to check
+     * @return the results by product id, in the iteration order of the given products
+     */
+    @NonNull
+    public final Map<String, PurchasedResult> getPurchasedResults(@NonNull Collection<ProductInfo> products) {
+        String[] productIds = new String[products.size()];
+        int index = 0;
+        for (ProductInfo productInfo : products) {
+            productIds[index++] = productInfo.getProduct();
+        }
+
+        PurchasedResult[] results = checkPurchased(productIds);
+        Map<String, PurchasedResult> resultsByProductId = new LinkedHashMap<>();
+        for (int i = 0; i < productIds.length; i++) {
+            resultsByProductId.put(productIds[i], results[i]);
+        }
+        return resultsByProductId;
+    }
+
+    @NonNull
+    private PurchasedResult[] checkPurchased(@NonNull String[] productIds) {
+        PurchasedResult[] results = new PurchasedResult[productIds.length];
+        if (!isReady()) {
+            Arrays.fill(results, PurchasedResult.CLIENT_NOT_READY);
+            return results;
+        } else if (!fetchedPurchasedProducts) {
+            Arrays.fill(results, PurchasedResult.PURCHASED_PRODUCTS_NOT_FETCHED_YET);
+            return results;
+        }
+
+        //one pass over the purchases, then a lookup per product
+        Set<String> purchasedProductIds = new HashSet<>();
+        synchronized (purchasedProductsSync) {
+            for (PurchaseInfo purchaseInfo : purchasedProductsList) {
+                purchasedProductIds.add(purchaseInfo.getProduct());
+            }
+        }
+
+        for (int i = 0; i < productIds.length; i++) {
+            results[i] = purchasedProductIds.contains(productIds[i]) ? PurchasedResult.YES : PurchasedResult.NO;
+        }
+        return results;
+    }
+
     /**
      * Checks purchase signature validity
      */
@@ -1367,27 +2698,50 @@ public class BillingConnector implements DefaultLifecycleObserver {
         return uiHandler;
     }
 
-    /**
-     * To print a log while debugging BillingConnector
-     */
-    private void Log(String debugMessage) {
-        if (shouldEnableLogging) {
-            Log.d(TAG, debugMessage);
-        }
-    }
-
     /**
      * Called to release the BillingClient instance
      * <p>
      * To avoid leaks this method should be called when BillingConnector is no longer needed
      */
     public void release() {
+        isReleased = true;
+        Runnable watchdog;
+        synchronized (flowAdmissionSync) {
+            activeFlowProductId = null;
+            activeFlowLaunched = false;
+            activeFlowGeneration++;
+            watchdog = activeFlowWatchdog;
+            activeFlowWatchdog = null;
+            queuedFlows.clear();
+        }
+        if (watchdog != null) {
+            findUiHandler().removeCallbacks(watchdog);
+        }
+        catalog.onConnectionLost();
+
         if (billingClient != null && billingClient.isReady()) {
-            Log("BillingConnector instance release: ending connection...");
+            logger.d("BillingConnector instance release: ending connection...");
             billingClient.endConnection();
         }
     }
 
+    /**
+     * The billing flow UI is closed once the activity resumes: the open flow is reset if its purchase
+     * update does not follow shortly, so a lost update does not block the next purchases
+     */
+    @Override
+    public void onResume(@NonNull LifecycleOwner owner) {
+        DefaultLifecycleObserver.super.onResume(owner);
+        long generation;
+        synchronized (flowAdmissionSync) {
+            if (activeFlowProductId == null || !activeFlowLaunched) {
+                return;
+            }
+            generation = activeFlowGeneration;
+        }
+        watchActiveFlow(generation, FLOW_RESUME_GRACE_MS);
+    }
+
     @Override
     public void onDestroy(@NonNull LifecycleOwner owner) {
         DefaultLifecycleObserver.super.onDestroy(owner);
@@ -1396,4 +2750,120 @@ public class BillingConnector implements DefaultLifecycleObserver {
             lifecycle.removeObserver(this);
         }
     }
+
+    /**
+     * Billing flow params of a product and of all its subscription offers, built once when product details are fetched
+     */
+    private static final class ProductFlowParams {
+
+        private final boolean isSubscription;
+        private final BillingFlowParams oneTimeFlowParams;
+        private final BillingFlowParams[] offerFlowParamsByIndex;
+        private final Map<String, BillingFlowParams> offerFlowParamsByToken;
+
+        ProductFlowParams(@NonNull ProductDetails productDetails) {
+            this.isSubscription = SUBS.equals(productDetails.getProductType());
+
+            List<ProductDetails.SubscriptionOfferDetails> offerDetails = productDetails.getSubscriptionOfferDetails();
+            if (isSubscription && offerDetails != null) {
+                this.oneTimeFlowParams = null;
+                this.offerFlowParamsByIndex = new BillingFlowParams[offerDetails.size()];
+                this.offerFlowParamsByToken = new HashMap<>(offerDetails.size() * 2);
+                for (int i = 0; i < offerDetails.size(); i++) {
+                    String offerToken = offerDetails.get(i).getOfferToken();
+                    BillingFlowParams billingFlowParams = build(productDetails, offerToken);
+                    offerFlowParamsByIndex[i] = billingFlowParams;
+                    offerFlowParamsByToken.put(offerToken, billingFlowParams);
+                }
+            } else {
+                this.oneTimeFlowParams = isSubscription ? null : build(productDetails, null);
+                this.offerFlowParamsByIndex = new BillingFlowParams[0];
+                this.offerFlowParamsByToken = Collections.emptyMap();
+            }
+        }
+
+        @NonNull
+        private static BillingFlowParams build(@NonNull ProductDetails productDetails, @Nullable String offerToken) {
+            BillingFlowParams.ProductDetailsParams.Builder productDetailsParams = BillingFlowParams.ProductDetailsParams.newBuilder()
+                    .setProductDetails(productDetails);
+            if (offerToken != null) {
+                productDetailsParams.setOfferToken(offerToken);
+            }
+
+            return BillingFlowParams.newBuilder()
+                    .setProductDetailsParamsList(ImmutableList.of(productDetailsParams.build()))
+                    .build();
+        }
+
+        boolean isSubscription() {
+            return isSubscription;
+        }
+
+        BillingFlowParams getOneTimeFlowParams() {
+            return oneTimeFlowParams;
+        }
+
+        @Nullable
+        BillingFlowParams getOfferFlowParams(int offerIndex) {
+            return offerIndex >= 0 && offerIndex < offerFlowParamsByIndex.length ? offerFlowParamsByIndex[offerIndex] : null;
+        }
+
+        @Nullable
+        BillingFlowParams getOfferFlowParams(String offerToken) {
+            return offerFlowParamsByToken.get(offerToken);
+        }
+
+        int getOfferCount() {
+            return offerFlowParamsByIndex.length;
+        }
+    }
+
+    /**
+     * Billing flow waiting for the open one to be resolved
+     * <p>
+     * The activity is weakly referenced, so a queued flow never leaks a closed screen
+     */
+    private static final class DetachedCallback {
+        final String callbackName;
+        final Runnable callback;
+
+        DetachedCallback(String callbackName, Runnable callback) {
+            this.callbackName = callbackName;
+            this.callback = callback;
+        }
+    }
+
+    private static final class QueuedFlow {
+        final WeakReference<Activity> activityRef;
+        final String productId;
+        final BillingFlowParams billingFlowParams;
+        final long tapNanos;
+
+        QueuedFlow(Activity activity, String productId, BillingFlowParams billingFlowParams, long tapNanos) {
+            this.activityRef = new WeakReference<>(activity);
+            this.productId = productId;
+            this.billingFlowParams = billingFlowParams;
+            this.tapNanos = tapNanos;
+        }
+    }
+
+    /**
+     * Product details and purchase queries started together on a connection setup, guarded by startupSync
+     */
+    private static final class StartupQueries {
+        int detailQueriesPending;
+        boolean purchaseSourcesKnown;
+        boolean subsPurchasesExpected;
+        boolean inAppPurchasesDone;
+        boolean subsPurchasesDone;
+        boolean purchasesRestored;
+        List<Purchase> inAppPurchases;
+        List<Purchase> subsPurchases;
+        boolean completed;
+
+        boolean isReady() {
+            return !completed && detailQueriesPending == 0 && purchaseSourcesKnown && inAppPurchasesDone
+                    && (subsPurchasesDone || !subsPurchasesExpected);
+        }
+    }
 }
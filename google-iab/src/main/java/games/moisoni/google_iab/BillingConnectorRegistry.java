@@ -0,0 +1,170 @@
+package games.moisoni.google_iab;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-scoped registry sharing BillingConnector instances between lifecycle owners
+ * <p>
+ * Every lifecycle owner that acquires a connector holds a reference on it until it is destroyed.
+ * When the last reference is released, the connection is kept warm for an idle grace period, so
+ * configuration changes and short gaps between activities reuse the connection, the fetched
+ * products and the purchases instead of connecting and querying again
+ * <p>
+ * Connectors created by the factory must not be bound to a lifecycle themselves (pass null as lifecycle)
+ * <p>
+ * When the last owner is destroyed, the billing event listener of the connector is detached so that
+ * the destroyed Activity is not kept alive during the grace period. Set it again after acquire(), the
+ * callbacks emitted while detached are then delivered to the new listener
+ */
+public final class BillingConnectorRegistry {
+
+    public static final long DEFAULT_IDLE_GRACE_PERIOD_MS = 10_000L;
+
+    /**
+     * Creates and connects the shared connector when no warm instance exists
+     */
+    public interface ConnectorFactory {
+        @NonNull
+        BillingConnector create();
+    }
+
+    private final Handler mainHandler;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private long idleGracePeriodMs = DEFAULT_IDLE_GRACE_PERIOD_MS;
+
+    private BillingConnectorRegistry() {
+        this(new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Package-private constructor for unit tests, the grace period is scheduled on the given handler
+     */
+    BillingConnectorRegistry(@NonNull Handler mainHandler) {
+        this.mainHandler = mainHandler;
+    }
+
+    public static BillingConnectorRegistry getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * To set how long an unreferenced connector stays connected before it is released
+     */
+    @MainThread
+    public void setIdleGracePeriod(long idleGracePeriodMs) {
+        if (idleGracePeriodMs < 0) {
+            throw new IllegalArgumentException("Idle grace period can not be negative");
+        }
+        this.idleGracePeriodMs = idleGracePeriodMs;
+    }
+
+    /**
+     * Returns the connector registered under the key, creating it with the factory if needed
+     * <p>
+     * The owner holds a reference on the connector until its lifecycle is destroyed
+     *
+     * @param owner   - is the lifecycle owner using the connector, usually an Activity
+     * @param key     - identifies the shared connector, for eg. the name of the product catalog
+     * @param factory - creates and connects the connector when no warm instance exists
+     */
+    @NonNull
+    @MainThread
+    public BillingConnector acquire(@NonNull LifecycleOwner owner, @NonNull String key, @NonNull ConnectorFactory factory) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(factory.create());
+            entry.connector.getLogger().d("Registry: creating connector {}", key);
+            entries.put(key, entry);
+        } else if (entry.pendingRelease != null) {
+            entry.connector.getLogger().d("Registry: reusing warm connector {}", key);
+            mainHandler.removeCallbacks(entry.pendingRelease);
+            entry.pendingRelease = null;
+        }
+
+        Lifecycle lifecycle = owner.getLifecycle();
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            //the owner will never be destroyed again, so it can not hold a reference
+            scheduleReleaseIfIdle(key, entry);
+            return entry.connector;
+        }
+
+        entry.referenceCount++;
+        lifecycle.addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onDestroy(@NonNull LifecycleOwner lifecycleOwner) {
+                lifecycleOwner.getLifecycle().removeObserver(this);
+                release(key);
+            }
+        });
+        return entry.connector;
+    }
+
+    /**
+     * Releases the reference of a destroyed owner
+     *
+     * @param key - identifies the shared connector
+     */
+    @MainThread
+    private void release(@NonNull String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.referenceCount == 0) {
+            return;
+        }
+
+        entry.referenceCount--;
+        if (entry.referenceCount == 0) {
+            //the listener usually belongs to the destroyed owner, callbacks are kept for the next one
+            entry.connector.detachBillingEventListener();
+        }
+        scheduleReleaseIfIdle(key, entry);
+    }
+
+    /**
+     * Returns the number of lifecycle owners currently holding the connector
+     */
+    @MainThread
+    public int getReferenceCount(@NonNull String key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.referenceCount : 0;
+    }
+
+    private void scheduleReleaseIfIdle(@NonNull String key, @NonNull Entry entry) {
+        if (entry.referenceCount > 0 || entry.pendingRelease != null) {
+            return;
+        }
+
+        entry.pendingRelease = () -> {
+            if (entries.get(key) == entry && entry.referenceCount == 0) {
+                entry.connector.getLogger().d("Registry: releasing idle connector {}", key);
+                entries.remove(key);
+                entry.connector.release();
+            }
+        };
+        mainHandler.postDelayed(entry.pendingRelease, idleGracePeriodMs);
+    }
+
+    private static final class Entry {
+        final BillingConnector connector;
+        int referenceCount;
+        Runnable pendingRelease;
+
+        Entry(BillingConnector connector) {
+            this.connector = connector;
+        }
+    }
+
+    private static class SingletonHolder {
+        private static final BillingConnectorRegistry INSTANCE = new BillingConnectorRegistry();
+    }
+}
@@ -0,0 +1,258 @@
+package games.moisoni.google_iab;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import games.moisoni.google_iab.enums.FlightEventType;
+
+/**
+ * Fixed-size, lock-free ring buffer of structured billing events
+ * <p>
+ * Meant to be left on in production: recording an event claims a slot with a single atomic increment
+ * and writes into preallocated atomic arrays, without locks or allocations. The oldest events are overwritten
+ * once the buffer is full. The content can be dumped as text or JSON for a support bundle
+ */
+public final class BillingFlightRecorder {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final FlightEventType[] EVENT_TYPES = FlightEventType.values();
+
+    private final int mask;
+
+    //event fields are atomic arrays so that a reader validating a slot sequence never sees a torn
+    //or stale event: every write and read is ordered against the publishing sequence writes
+    private final AtomicLongArray timestampsNanos;
+    private final AtomicIntegerArray eventTypes;
+    private final AtomicIntegerArray codes;
+    private final AtomicReferenceArray<String> productIds;
+    private final AtomicReferenceArray<String> messages;
+
+    //per-slot sequence numbers: negative while the slot is being written, the event sequence once published
+    private final AtomicLongArray publishedSequences;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    //anchors the monotonic timestamps to the wall clock for the dump
+    private final long startNanos = System.nanoTime();
+    private final long startEpochMillis = System.currentTimeMillis();
+
+    private volatile boolean enabled = true;
+
+    /**
+     * @param capacity - is the number of events kept, rounded up to the next power of two
+     */
+    public BillingFlightRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Flight recorder capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.mask = size - 1;
+        this.timestampsNanos = new AtomicLongArray(size);
+        this.eventTypes = new AtomicIntegerArray(size);
+        this.codes = new AtomicIntegerArray(size);
+        this.productIds = new AtomicReferenceArray<>(size);
+        this.messages = new AtomicReferenceArray<>(size);
+        this.publishedSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            publishedSequences.set(i, -1L);
+        }
+    }
+
+    public BillingFlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * To pause or resume recording, recording is enabled by default
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Records an event
+     *
+     * @param type      - is the kind of event
+     * @param code      - is the billing response code, or any event specific number
+     * @param productId - is the product involved, if any
+     * @param message   - is a short constant description, it should not be built per call
+     */
+    public void record(@NonNull FlightEventType type, int code, @Nullable String productId, @Nullable String message) {
+        if (!enabled) {
+            return;
+        }
+
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+
+        publishedSequences.set(slot, -sequence - 2);
+        timestampsNanos.set(slot, System.nanoTime());
+        eventTypes.set(slot, type.ordinal());
+        codes.set(slot, code);
+        productIds.set(slot, productId);
+        messages.set(slot, message);
+        publishedSequences.set(slot, sequence);
+    }
+
+    /**
+     * Returns the number of events recorded since creation, including the overwritten ones
+     */
+    public long getRecordedCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * Returns the buffer content as one line per event, oldest first
+     */
+    @NonNull
+    public String dumpAsText() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("BillingFlightRecorder start=").append(startEpochMillis)
+                .append(" recorded=").append(nextSequence.get()).append('\n');
+
+        Event event = new Event();
+        long end = nextSequence.get();
+        for (long sequence = Math.max(0, end - getCapacity()); sequence < end; sequence++) {
+            if (!read(sequence, event)) {
+                continue;
+            }
+            builder.append('+').append(event.elapsedMillis).append("ms ")
+                    .append(event.type.name())
+                    .append(" code=").append(event.code);
+            if (event.productId != null) {
+                builder.append(" product=").append(event.productId);
+            }
+            if (event.message != null) {
+                builder.append(' ').append(event.message);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the buffer content as a compact JSON object, oldest event first
+     */
+    @NonNull
+    public String dumpAsJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"start\":").append(startEpochMillis)
+                .append(",\"recorded\":").append(nextSequence.get())
+                .append(",\"events\":[");
+
+        Event event = new Event();
+        boolean first = true;
+        long end = nextSequence.get();
+        for (long sequence = Math.max(0, end - getCapacity()); sequence < end; sequence++) {
+            if (!read(sequence, event)) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+
+            builder.append("{\"t\":").append(event.elapsedMillis)
+                    .append(",\"type\":\"").append(event.type.name()).append('"')
+                    .append(",\"code\":").append(event.code);
+            if (event.productId != null) {
+                builder.append(",\"product\":");
+                appendJsonString(builder, event.productId);
+            }
+            if (event.message != null) {
+                builder.append(",\"msg\":");
+                appendJsonString(builder, event.message);
+            }
+            builder.append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    /**
+     * Copies a published event into the given holder
+     *
+     * @return false if the event was overwritten or is still being written
+     */
+    private boolean read(long sequence, @NonNull Event event) {
+        int slot = (int) (sequence & mask);
+        if (publishedSequences.get(slot) != sequence) {
+            return false;
+        }
+
+        long timestampNanos = timestampsNanos.get(slot);
+        int eventType = eventTypes.get(slot);
+        int code = codes.get(slot);
+        String productId = productIds.get(slot);
+        String message = messages.get(slot);
+
+        //the slot was reused while reading
+        if (publishedSequences.get(slot) != sequence) {
+            return false;
+        }
+
+        event.elapsedMillis = (timestampNanos - startNanos) / 1_000_000L;
+        event.type = EVENT_TYPES[eventType];
+        event.code = code;
+        event.productId = productId;
+        event.message = message;
+        return true;
+    }
+
+    private static void appendJsonString(@NonNull StringBuilder builder, @NonNull String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+
+    private static final class Event {
+        long elapsedMillis;
+        FlightEventType type;
+        int code;
+        String productId;
+        String message;
+    }
+}
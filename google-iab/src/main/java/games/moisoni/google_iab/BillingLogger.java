@@ -0,0 +1,155 @@
+package games.moisoni.google_iab;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import games.moisoni.google_iab.enums.LogLevel;
+import games.moisoni.google_iab.listeners.LogSink;
+
+/**
+ * Leveled logging facade used by BillingConnector
+ * <p>
+ * The level is checked before anything is allocated: messages are passed either as constants,
+ * as templates with "{}" placeholders and fixed-arity arguments, or as a lazy supplier.
+ * With logging disabled a call costs a single volatile read
+ */
+public final class BillingLogger {
+
+    /**
+     * Builds a log message lazily, only when its level is enabled
+     */
+    public interface MessageSupplier {
+        @NonNull
+        String get();
+    }
+
+    /**
+     * Default sink printing to logcat
+     */
+    public static final LogSink LOGCAT = (level, tag, message, throwable) -> {
+        switch (level) {
+            case VERBOSE:
+                Log.v(tag, message);
+                break;
+            case DEBUG:
+                Log.d(tag, message);
+                break;
+            case INFO:
+                Log.i(tag, message);
+                break;
+            case WARN:
+                Log.w(tag, message, throwable);
+                break;
+            case ERROR:
+                Log.e(tag, message, throwable);
+                break;
+            default:
+                break;
+        }
+    };
+
+    private static final String PLACEHOLDER = "{}";
+
+    private final String tag;
+
+    private volatile int minLevel = LogLevel.NONE.ordinal();
+    private volatile LogSink sink = LOGCAT;
+
+    public BillingLogger(@NonNull String tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * To set the minimum level of the messages that reach the sink, LogLevel.NONE disables logging
+     */
+    public void setLevel(@NonNull LogLevel level) {
+        this.minLevel = level.ordinal();
+    }
+
+    /**
+     * To route messages to a custom sink instead of logcat
+     */
+    public void setSink(@NonNull LogSink sink) {
+        this.sink = sink;
+    }
+
+    public boolean isLoggable(@NonNull LogLevel level) {
+        return level.ordinal() >= minLevel && level != LogLevel.NONE;
+    }
+
+    public void d(@NonNull String message) {
+        if (isLoggable(LogLevel.DEBUG)) {
+            sink.log(LogLevel.DEBUG, tag, message, null);
+        }
+    }
+
+    public void d(@NonNull String template, @Nullable Object arg) {
+        if (isLoggable(LogLevel.DEBUG)) {
+            sink.log(LogLevel.DEBUG, tag, format(template, arg, null, null, 1), null);
+        }
+    }
+
+    public void d(@NonNull String template, @Nullable Object arg1, @Nullable Object arg2) {
+        if (isLoggable(LogLevel.DEBUG)) {
+            sink.log(LogLevel.DEBUG, tag, format(template, arg1, arg2, null, 2), null);
+        }
+    }
+
+    public void d(@NonNull String template, @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3) {
+        if (isLoggable(LogLevel.DEBUG)) {
+            sink.log(LogLevel.DEBUG, tag, format(template, arg1, arg2, arg3, 3), null);
+        }
+    }
+
+    public void d(@NonNull MessageSupplier supplier) {
+        if (isLoggable(LogLevel.DEBUG)) {
+            sink.log(LogLevel.DEBUG, tag, supplier.get(), null);
+        }
+    }
+
+    public void w(@NonNull String message) {
+        if (isLoggable(LogLevel.WARN)) {
+            sink.log(LogLevel.WARN, tag, message, null);
+        }
+    }
+
+    public void w(@NonNull String template, @Nullable Object arg) {
+        if (isLoggable(LogLevel.WARN)) {
+            sink.log(LogLevel.WARN, tag, format(template, arg, null, null, 1), null);
+        }
+    }
+
+    public void w(@NonNull String template, @Nullable Object arg1, @Nullable Object arg2) {
+        if (isLoggable(LogLevel.WARN)) {
+            sink.log(LogLevel.WARN, tag, format(template, arg1, arg2, null, 2), null);
+        }
+    }
+
+    public void e(@NonNull String message, @Nullable Throwable throwable) {
+        if (isLoggable(LogLevel.ERROR)) {
+            sink.log(LogLevel.ERROR, tag, message, throwable);
+        }
+    }
+
+    /**
+     * Replaces the "{}" placeholders of the template with the arguments, in order
+     */
+    @NonNull
+    static String format(@NonNull String template, @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3, int argCount) {
+        StringBuilder builder = new StringBuilder(template.length() + 32);
+        int start = 0;
+        for (int i = 0; i < argCount; i++) {
+            int placeholder = template.indexOf(PLACEHOLDER, start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(template, start, placeholder);
+            builder.append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            start = placeholder + PLACEHOLDER.length();
+        }
+        builder.append(template, start, template.length());
+        return builder.toString();
+    }
+}
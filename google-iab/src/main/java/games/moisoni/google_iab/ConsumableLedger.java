@@ -0,0 +1,481 @@
+package games.moisoni.google_iab;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import games.moisoni.google_iab.enums.LogLevel;
+import games.moisoni.google_iab.models.LedgerEntry;
+
+/**
+ * Optional ledger crediting in-game currencies when consumable purchases are consumed
+ * <p>
+ * Each product maps to a currency and an amount per unit, multiplied by the purchased quantity.
+ * Before a purchase is consumed, its credit is committed as pending, so a credit is never lost when the
+ * process dies between the consumption and the balance write. The credit is settled once the consumption
+ * succeeded, or on the next purchase query when the purchase is no longer owned
+ * <p>
+ * Balances and the bounded history are persisted in one batched SharedPreferences write shortly after
+ * the credits. A purchase token is credited only once while it is in the history. The ledger is loaded
+ * on a background thread, the getters wait for the load like SharedPreferences does. Once loaded, balance reads
+ * are lock-free
+ */
+public final class ConsumableLedger {
+
+    private static final String TAG = "ConsumableLedger";
+    private static final String PREFERENCES_NAME = "billing_consumable_ledger";
+    private static final String KEY_BALANCE_PREFIX = "balance:";
+    private static final String KEY_PENDING_PREFIX = "pending:";
+    private static final String KEY_HISTORY = "history";
+
+    private static final int DEFAULT_HISTORY_LIMIT = 100;
+    private static final long WRITE_DELAY_MS = 500;
+
+    private static final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "billing-ledger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SharedPreferences preferences;
+    private final BillingLogger logger = new BillingLogger(TAG);
+    private final Map<String, Rate> ratesByProductId = new ConcurrentHashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    //lock-free balance counters, changed only while holding historySync so that writes persist them with the history
+    private final ConcurrentHashMap<String, AtomicLong> balances = new ConcurrentHashMap<>();
+
+    //history, credited tokens and pending credits, guarded by historySync
+    private final Object historySync = new Object();
+    private final ArrayDeque<LedgerEntry> history = new ArrayDeque<>();
+    private final Set<String> creditedTokens = new HashSet<>();
+    private final Map<String, LedgerEntry> pendingCredits = new LinkedHashMap<>();
+    //settled pending credits whose committed record is removed by the next write
+    private final Set<String> settledTokens = new HashSet<>();
+    private int historyLimit = DEFAULT_HISTORY_LIMIT;
+
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    public ConsumableLedger(@NonNull Context context) {
+        this(context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+
+    ConsumableLedger(@NonNull SharedPreferences preferences) {
+        this.preferences = preferences;
+        writeExecutor.execute(() -> {
+            try {
+                load();
+            } finally {
+                loaded.countDown();
+            }
+        });
+    }
+
+    /**
+     * To map a consumable product to the currency it grants
+     *
+     * @param productId     - is the consumable product id
+     * @param currency      - is the currency credited, for eg. "coins"
+     * @param amountPerUnit - is the amount credited for each purchased unit
+     */
+    public ConsumableLedger setRate(@NonNull String productId, @NonNull String currency, long amountPerUnit) {
+        if (amountPerUnit <= 0) {
+            throw new IllegalArgumentException("Amount per unit must be positive");
+        }
+        ratesByProductId.put(productId, new Rate(currency, amountPerUnit));
+        return this;
+    }
+
+    /**
+     * To set how many credits are kept in the history, and so how many purchase tokens are deduplicated
+     */
+    public ConsumableLedger setHistoryLimit(int historyLimit) {
+        if (historyLimit < 1) {
+            throw new IllegalArgumentException("History limit must be at least 1");
+        }
+        synchronized (historySync) {
+            this.historyLimit = historyLimit;
+            trimHistory();
+        }
+        return this;
+    }
+
+    /**
+     * To set the minimum level of the logged messages
+     */
+    public ConsumableLedger setLogLevel(@NonNull LogLevel logLevel) {
+        logger.setLevel(logLevel);
+        return this;
+    }
+
+    /**
+     * Commits the pending credit of a purchase, then runs the consumption on the ledger thread
+     * <p>
+     * The consumption runs even when the purchase has no rate or its credit is already known. When the
+     * pending credit can not be committed, the purchase is not consumed: it stays owned and the next
+     * purchase query tries again
+     *
+     * @param productId     - is the product of the purchase about to be consumed
+     * @param purchaseToken - is the token of the purchase
+     * @param quantity      - is the purchased quantity
+     * @param consume       - starts the consumption
+     * @param notRecorded   - is run instead of the consumption when the pending credit can not be committed
+     */
+    void beginCredit(@NonNull String productId, @NonNull String purchaseToken, int quantity,
+                     @NonNull Runnable consume, @NonNull Runnable notRecorded) {
+        if (!ratesByProductId.containsKey(productId)) {
+            consume.run();
+            return;
+        }
+
+        writeExecutor.execute(() -> {
+            if (recordPendingCredit(productId, purchaseToken, quantity)) {
+                consume.run();
+            } else {
+                notRecorded.run();
+            }
+        });
+    }
+
+    /**
+     * Credits the currency of a consumed purchase
+     *
+     * @return the credited entry, null if the purchase has no pending credit or the purchase token was already credited
+     */
+    @Nullable
+    LedgerEntry settleCredit(@NonNull String purchaseToken) {
+        awaitLoaded();
+        LedgerEntry entry;
+        synchronized (historySync) {
+            entry = settle(purchaseToken);
+        }
+        if (entry != null) {
+            scheduleWrite();
+        }
+        return entry;
+    }
+
+    /**
+     * Settles the pending credits of purchases that are no longer owned, they were consumed while
+     * the process died before the consumption result arrived
+     *
+     * @param ownedPurchaseTokens - are the tokens of all the owned in-app purchases, from a purchase query
+     * @return the credited entries
+     */
+    @NonNull
+    List<LedgerEntry> reconcile(@NonNull Collection<String> ownedPurchaseTokens) {
+        awaitLoaded();
+        List<LedgerEntry> settledEntries = new ArrayList<>();
+        synchronized (historySync) {
+            for (String purchaseToken : new ArrayList<>(pendingCredits.keySet())) {
+                if (ownedPurchaseTokens.contains(purchaseToken)) continue;
+
+                LedgerEntry entry = settle(purchaseToken);
+                if (entry != null) {
+                    settledEntries.add(entry);
+                }
+            }
+        }
+        if (!settledEntries.isEmpty()) {
+            logger.d("Settled {} credits of purchases consumed before the process died", settledEntries.size());
+            scheduleWrite();
+        }
+        return settledEntries;
+    }
+
+    /**
+     * Returns true while credits wait for their consumption result or for a purchase query to settle them
+     */
+    boolean hasPendingCredits() {
+        awaitLoaded();
+        synchronized (historySync) {
+            return !pendingCredits.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the balance of the currency, 0 if nothing was credited yet
+     */
+    public long getBalance(@NonNull String currency) {
+        awaitLoaded();
+        AtomicLong balance = balances.get(currency);
+        return balance != null ? balance.get() : 0;
+    }
+
+    /**
+     * Returns the balances of all credited currencies
+     */
+    @NonNull
+    public Map<String, Long> getBalances() {
+        awaitLoaded();
+        Map<String, Long> copy = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> balance : balances.entrySet()) {
+            copy.put(balance.getKey(), balance.getValue().get());
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the latest credits, oldest first
+     */
+    @NonNull
+    public List<LedgerEntry> getHistory() {
+        awaitLoaded();
+        synchronized (historySync) {
+            return Collections.unmodifiableList(new ArrayList<>(history));
+        }
+    }
+
+    /**
+     * Writes the pending credits now instead of after the batching delay, for eg. when the app goes to background
+     */
+    public void flush() {
+        writeScheduled.set(false);
+        writeExecutor.execute(this::write);
+    }
+
+    /**
+     * Runs the task on the ledger thread once the previously queued loads and writes are done
+     */
+    static void runAfterPendingWrites(@NonNull Runnable task) {
+        writeExecutor.execute(task);
+    }
+
+    /**
+     * Runs on the ledger thread, the record is committed before the consumption starts
+     *
+     * @return false if the credit is not known and could not be committed, the purchase must not be consumed then
+     */
+    private boolean recordPendingCredit(@NonNull String productId, @NonNull String purchaseToken, int quantity) {
+        Rate rate = ratesByProductId.get(productId);
+        if (rate == null) {
+            return true;
+        }
+
+        LedgerEntry entry = new LedgerEntry(productId, purchaseToken, rate.currency,
+                rate.amountPerUnit * Math.max(quantity, 1), System.currentTimeMillis());
+        synchronized (historySync) {
+            if (creditedTokens.contains(entry.getPurchaseToken()) || pendingCredits.containsKey(entry.getPurchaseToken())) {
+                logger.d("Purchase token already credited: {}", entry.getProductId());
+                return true;
+            }
+        }
+
+        boolean committed;
+        try {
+            committed = preferences.edit().putString(KEY_PENDING_PREFIX + entry.getPurchaseToken(), encode(entry).toString()).commit();
+        } catch (JSONException e) {
+            committed = false;
+        }
+        if (!committed) {
+            logger.w("Pending credit can not be committed, purchase not consumed: {}", entry.getProductId());
+            return false;
+        }
+
+        synchronized (historySync) {
+            pendingCredits.put(entry.getPurchaseToken(), entry);
+            settledTokens.remove(entry.getPurchaseToken());
+        }
+        return true;
+    }
+
+    /**
+     * Must be called while holding historySync
+     */
+    @Nullable
+    private LedgerEntry settle(@NonNull String purchaseToken) {
+        LedgerEntry entry = pendingCredits.remove(purchaseToken);
+        if (entry == null) {
+            return null;
+        }
+        settledTokens.add(purchaseToken);
+        if (!creditedTokens.add(purchaseToken)) {
+            logger.d("Purchase token already credited: {}", entry.getProductId());
+            return null;
+        }
+
+        history.addLast(entry);
+        trimHistory();
+        balanceCounter(entry.getCurrency()).addAndGet(entry.getAmount());
+        return entry;
+    }
+
+    @NonNull
+    private AtomicLong balanceCounter(@NonNull String currency) {
+        AtomicLong balance = balances.get(currency);
+        if (balance == null) {
+            AtomicLong newBalance = new AtomicLong();
+            balance = balances.putIfAbsent(currency, newBalance);
+            if (balance == null) {
+                balance = newBalance;
+            }
+        }
+        return balance;
+    }
+
+    /**
+     * Must be called while holding historySync
+     */
+    private void trimHistory() {
+        while (history.size() > historyLimit) {
+            creditedTokens.remove(history.removeFirst().getPurchaseToken());
+        }
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Credits settled within the delay are written together
+     */
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writeExecutor.schedule(() -> {
+                writeScheduled.set(false);
+                write();
+            }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Balances, history and the removal of the settled pending records are applied together
+     */
+    private void write() {
+        SharedPreferences.Editor editor = preferences.edit();
+        JSONArray encodedHistory = new JSONArray();
+        synchronized (historySync) {
+            try {
+                for (LedgerEntry entry : history) {
+                    encodedHistory.put(encode(entry));
+                }
+            } catch (JSONException e) {
+                logger.e("Ledger history can not be encoded", e);
+                return;
+            }
+            for (Map.Entry<String, AtomicLong> balance : balances.entrySet()) {
+                editor.putLong(KEY_BALANCE_PREFIX + balance.getKey(), balance.getValue().get());
+            }
+            for (String purchaseToken : settledTokens) {
+                editor.remove(KEY_PENDING_PREFIX + purchaseToken);
+            }
+            settledTokens.clear();
+        }
+        editor.putString(KEY_HISTORY, encodedHistory.toString());
+        editor.apply();
+    }
+
+    /**
+     * Runs on the ledger thread before any other ledger task
+     */
+    private void load() {
+        Map<String, Long> loadedBalances = new HashMap<>();
+        List<LedgerEntry> loadedPendingCredits = new ArrayList<>();
+        for (Map.Entry<String, ?> preference : preferences.getAll().entrySet()) {
+            String key = preference.getKey();
+            if (key.startsWith(KEY_BALANCE_PREFIX) && preference.getValue() instanceof Long) {
+                loadedBalances.put(key.substring(KEY_BALANCE_PREFIX.length()), (Long) preference.getValue());
+            } else if (key.startsWith(KEY_PENDING_PREFIX) && preference.getValue() instanceof String) {
+                try {
+                    loadedPendingCredits.add(decode(new JSONObject((String) preference.getValue())));
+                } catch (JSONException e) {
+                    logger.e("Pending credit can not be read", e);
+                }
+            }
+        }
+
+        List<LedgerEntry> loadedHistory = new ArrayList<>();
+        String encodedHistory = preferences.getString(KEY_HISTORY, null);
+        if (encodedHistory != null) {
+            try {
+                JSONArray entries = new JSONArray(encodedHistory);
+                for (int i = 0; i < entries.length(); i++) {
+                    loadedHistory.add(decode(entries.getJSONObject(i)));
+                }
+            } catch (JSONException e) {
+                logger.e("Ledger history can not be read", e);
+            }
+        }
+
+        synchronized (historySync) {
+            for (Map.Entry<String, Long> balance : loadedBalances.entrySet()) {
+                balances.put(balance.getKey(), new AtomicLong(balance.getValue()));
+            }
+            for (LedgerEntry entry : loadedHistory) {
+                history.addLast(entry);
+                creditedTokens.add(entry.getPurchaseToken());
+            }
+            for (LedgerEntry entry : loadedPendingCredits) {
+                //a pending record left by a write that did not remove it yet
+                if (creditedTokens.contains(entry.getPurchaseToken())) {
+                    settledTokens.add(entry.getPurchaseToken());
+                } else {
+                    pendingCredits.put(entry.getPurchaseToken(), entry);
+                }
+            }
+            trimHistory();
+            logger.d("Ledger loaded: {} currencies, {} pending credits", balances.size(), pendingCredits.size());
+        }
+    }
+
+    @NonNull
+    private static JSONObject encode(@NonNull LedgerEntry entry) throws JSONException {
+        return new JSONObject()
+                .put("productId", entry.getProductId())
+                .put("purchaseToken", entry.getPurchaseToken())
+                .put("currency", entry.getCurrency())
+                .put("amount", entry.getAmount())
+                .put("creditedAtMillis", entry.getCreditedAtMillis());
+    }
+
+    @NonNull
+    private static LedgerEntry decode(@NonNull JSONObject entry) throws JSONException {
+        return new LedgerEntry(entry.getString("productId"), entry.getString("purchaseToken"),
+                entry.getString("currency"), entry.getLong("amount"), entry.getLong("creditedAtMillis"));
+    }
+
+    private static final class Rate {
+        final String currency;
+        final long amountPerUnit;
+
+        Rate(@NonNull String currency, long amountPerUnit) {
+            this.currency = currency;
+            this.amountPerUnit = amountPerUnit;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package games.moisoni.google_iab;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import games.moisoni.google_iab.enums.EntitlementMatch;
+import games.moisoni.google_iab.models.EntitlementRule;
+
+/**
+ * Entitlement rules compiled into a bitset, one bit per entitlement
+ * <p>
+ * Names are resolved to int handles once. The bitset is recompiled whenever the purchases change
+ * and replaced as a whole, so a check is a single volatile read without locks or list scans
+ */
+final class EntitlementRules {
+
+    private final Map<String, Integer> handlesByName = new HashMap<>();
+    private final String[][] productIds;
+    private final int[] purchaseStateMasks;
+    private final boolean[] allOf;
+
+    private volatile long[] granted;
+
+    EntitlementRules(@NonNull List<EntitlementRule> rules) {
+        int count = rules.size();
+        productIds = new String[count][];
+        purchaseStateMasks = new int[count];
+        allOf = new boolean[count];
+
+        for (int handle = 0; handle < count; handle++) {
+            EntitlementRule rule = rules.get(handle);
+            if (handlesByName.put(rule.getName(), handle) != null) {
+                throw new IllegalArgumentException("The entitlement: " + rule.getName() + " must have only one rule");
+            }
+
+            productIds[handle] = rule.getProductIds().toArray(new String[0]);
+            for (int purchaseState : rule.getPurchaseStates()) {
+                purchaseStateMasks[handle] |= stateBit(purchaseState);
+            }
+            allOf[handle] = rule.getMatch() == EntitlementMatch.ALL_OF;
+        }
+        granted = new long[(count + 63) >>> 6];
+    }
+
+    /**
+     * Returns the bit of a purchase state, used to combine the states owned for a product into a mask
+     */
+    static int stateBit(int purchaseState) {
+        return purchaseState >= 0 && purchaseState < Integer.SIZE ? 1 << purchaseState : 0;
+    }
+
+    int getHandle(@NonNull String name) {
+        Integer handle = handlesByName.get(name);
+        if (handle == null) {
+            throw new IllegalArgumentException("No entitlement rule named: " + name);
+        }
+        return handle;
+    }
+
+    boolean isGranted(int handle) {
+        if (handle < 0 || handle >= productIds.length) {
+            throw new IllegalArgumentException("Unknown entitlement handle: " + handle);
+        }
+        long[] bits = granted;
+        return (bits[handle >>> 6] & (1L << handle)) != 0;
+    }
+
+    /**
+     * Evaluates all rules and publishes the new bitset
+     *
+     * @param stateMasksByProductId - are the purchase states owned for each product, combined with stateBit
+     */
+    void compile(@NonNull Map<String, Integer> stateMasksByProductId) {
+        long[] bits = new long[granted.length];
+        for (int handle = 0; handle < productIds.length; handle++) {
+            if (evaluate(handle, stateMasksByProductId)) {
+                bits[handle >>> 6] |= 1L << handle;
+            }
+        }
+        granted = bits;
+    }
+
+    private boolean evaluate(int handle, @NonNull Map<String, Integer> stateMasksByProductId) {
+        boolean all = allOf[handle];
+        for (String productId : productIds[handle]) {
+            Integer stateMask = stateMasksByProductId.get(productId);
+            boolean owned = stateMask != null && (stateMask & purchaseStateMasks[handle]) != 0;
+            if (owned != all) {
+                //first owned product for any-of, first missing product for all-of
+                return owned;
+            }
+        }
+        return all;
+    }
+}
@@ -0,0 +1,301 @@
+package games.moisoni.google_iab;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import games.moisoni.google_iab.enums.LogLevel;
+import games.moisoni.google_iab.enums.SkuProductType;
+import games.moisoni.google_iab.models.EntitlementSnapshot;
+
+/**
+ * File-backed store sharing entitlement snapshots between the processes of the app
+ * <p>
+ * The process owning the BillingConnector publishes a snapshot every time its purchases change.
+ * Other processes read it with a plain file read, without binding to Play. A new file is written next
+ * to the old one and renamed over it, so readers never observe a partially written snapshot
+ * <p>
+ * File format: version (int), write sequence (long), publish time (long), then the snapshot content.
+ * The write sequence grows with every write and tells readers whether their cached snapshot is still current
+ * <p>
+ * Writers of every process hold an exclusive lock on a sidecar lock file, which also keeps the last
+ * write sequence, so the sequence never repeats across writers, process restarts or clear()
+ */
+public final class EntitlementSnapshotStore {
+
+    private static final String TAG = "EntitlementSnapshot";
+    private static final String FILE_NAME = "billing_entitlements.snapshot";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FORMAT_VERSION = 2;
+
+    //file locks are held per process, stores of the same process are serialized here first
+    private static final Object fileSync = new Object();
+
+    private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "billing-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final File lockFile;
+    private final BillingLogger logger;
+
+    //latest snapshot waiting to be written, intermediate snapshots are skipped
+    private final AtomicReference<EntitlementSnapshot> pendingWrite = new AtomicReference<>();
+
+    //read cache, invalidated when the write sequence of the file changes
+    private EntitlementSnapshot cachedSnapshot;
+    private long cachedSequence = -1;
+
+    public EntitlementSnapshotStore(@NonNull Context context) {
+        this(context, new BillingLogger(TAG));
+    }
+
+    EntitlementSnapshotStore(@NonNull Context context, @NonNull BillingLogger logger) {
+        this(new File(context.getApplicationContext().getNoBackupFilesDir(), FILE_NAME), logger);
+    }
+
+    EntitlementSnapshotStore(@NonNull File file, @NonNull BillingLogger logger) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + LOCK_SUFFIX);
+        this.logger = logger;
+    }
+
+    /**
+     * To log the read and write failures of a store created by another process, logging is disabled by default
+     */
+    public EntitlementSnapshotStore setLogLevel(@NonNull LogLevel logLevel) {
+        logger.setLevel(logLevel);
+        return this;
+    }
+
+    /**
+     * Publishes the snapshot on a background thread
+     * <p>
+     * When several snapshots are published faster than they are written, only the latest one is written
+     */
+    public void publish(@NonNull EntitlementSnapshot snapshot) {
+        if (pendingWrite.getAndSet(snapshot) == null) {
+            writeExecutor.execute(this::writePending);
+        }
+    }
+
+    /**
+     * Writes the latest published snapshot, taken under the store lock so that clear() either
+     * drops it before it is written or deletes it after
+     */
+    @WorkerThread
+    synchronized void writePending() {
+        EntitlementSnapshot latest = pendingWrite.getAndSet(null);
+        if (latest != null) {
+            write(latest);
+        }
+    }
+
+    /**
+     * Runs the action on the writer thread, once the snapshots published so far are written
+     */
+    static void runAfterPendingWrites(@NonNull Runnable action) {
+        writeExecutor.execute(action);
+    }
+
+    /**
+     * Returns the latest published snapshot, null if none was published yet or it can not be read
+     * <p>
+     * Only the file header is read when the write sequence did not change since the previous read
+     */
+    @Nullable
+    @WorkerThread
+    public synchronized EntitlementSnapshot read() {
+        if (!file.exists()) {
+            cachedSnapshot = null;
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = input.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported entitlement snapshot version: " + version);
+            }
+
+            long sequence = input.readLong();
+            if (cachedSnapshot == null || sequence != cachedSequence) {
+                cachedSnapshot = decode(input);
+                cachedSequence = sequence;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.e("Entitlement snapshot can not be read", e);
+            cachedSnapshot = null;
+        }
+        return cachedSnapshot;
+    }
+
+    /**
+     * Deletes the published snapshot, for eg. when the user signs out
+     * <p>
+     * A snapshot published but not written yet is dropped
+     */
+    public synchronized void clear() {
+        pendingWrite.set(null);
+        cachedSnapshot = null;
+        synchronized (fileSync) {
+            try (RandomAccessFile lock = openLockFile(); FileLock ignored = lock.getChannel().lock()) {
+                if (file.exists() && !file.delete()) {
+                    logger.w("Entitlement snapshot can not be deleted");
+                }
+            } catch (IOException e) {
+                logger.e("Entitlement snapshot can not be deleted", e);
+            }
+        }
+    }
+
+    @WorkerThread
+    synchronized void write(@NonNull EntitlementSnapshot snapshot) {
+        synchronized (fileSync) {
+            try (RandomAccessFile lock = openLockFile(); FileLock ignored = lock.getChannel().lock()) {
+                long sequence = nextWriteSequence(lock);
+                if (publish(snapshot, sequence)) {
+                    lock.seek(0);
+                    lock.writeLong(sequence);
+                }
+            } catch (IOException e) {
+                logger.e("Entitlement snapshot can not be written", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temp file of its own and renames it over the published one
+     * <p>
+     * Must be called while holding the file lock
+     *
+     * @return false if the snapshot was not published
+     */
+    private boolean publish(@NonNull EntitlementSnapshot snapshot, long sequence) throws IOException {
+        File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+        try (FileOutputStream fileOutput = new FileOutputStream(temp);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+            encode(snapshot, sequence, output);
+            output.flush();
+            fileOutput.getFD().sync();
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(file)) {
+            logger.w("Entitlement snapshot can not be published");
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    private RandomAccessFile openLockFile() throws IOException {
+        File parent = lockFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Entitlement snapshot directory can not be created");
+        }
+        return new RandomAccessFile(lockFile, "rw");
+    }
+
+    /**
+     * Returns the sequence following the last one written by any store, read again on every write
+     * <p>
+     * Must be called while holding the file lock
+     */
+    private long nextWriteSequence(@NonNull RandomAccessFile lock) {
+        long lastSequence = 0;
+        try {
+            if (lock.length() >= Long.BYTES) {
+                lock.seek(0);
+                lastSequence = lock.readLong();
+            }
+        } catch (IOException e) {
+            logger.w("Entitlement snapshot sequence can not be read: {}", e.getMessage());
+        }
+
+        //a snapshot written before the lock file kept the sequence
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                if (input.readInt() == FORMAT_VERSION) {
+                    lastSequence = Math.max(lastSequence, input.readLong());
+                }
+            } catch (IOException e) {
+                logger.w("Entitlement snapshot sequence can not be read: {}", e.getMessage());
+            }
+        }
+        return lastSequence + 1;
+    }
+
+    private static void encode(@NonNull EntitlementSnapshot snapshot, long sequence, @NonNull DataOutputStream output) throws IOException {
+        output.writeInt(FORMAT_VERSION);
+        output.writeLong(sequence);
+        output.writeLong(snapshot.getPublishedAtMillis());
+        output.writeBoolean(snapshot.isInAppPurchasesFetched());
+        output.writeBoolean(snapshot.isSubsPurchasesFetched());
+
+        List<EntitlementSnapshot.Entry> entries = snapshot.getEntries();
+        output.writeInt(entries.size());
+        for (EntitlementSnapshot.Entry entry : entries) {
+            output.writeUTF(entry.getProductId());
+            output.writeUTF(entry.getSkuProductType().name());
+            output.writeUTF(entry.getPurchaseToken());
+            output.writeInt(entry.getPurchaseState());
+            output.writeLong(entry.getPurchaseTime());
+            output.writeBoolean(entry.isAcknowledged());
+            output.writeBoolean(entry.isAutoRenewing());
+            output.writeUTF(entry.getOriginalJson());
+            output.writeUTF(entry.getSignature());
+        }
+    }
+
+    /**
+     * Decodes the snapshot content following the version and the write sequence
+     */
+    @NonNull
+    private static EntitlementSnapshot decode(@NonNull DataInputStream input) throws IOException {
+        long publishedAtMillis = input.readLong();
+        boolean inAppPurchasesFetched = input.readBoolean();
+        boolean subsPurchasesFetched = input.readBoolean();
+
+        int count = input.readInt();
+        List<EntitlementSnapshot.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new EntitlementSnapshot.Entry(
+                    input.readUTF(),
+                    SkuProductType.valueOf(input.readUTF()),
+                    input.readUTF(),
+                    input.readInt(),
+                    input.readLong(),
+                    input.readBoolean(),
+                    input.readBoolean(),
+                    input.readUTF(),
+                    input.readUTF()));
+        }
+        return new EntitlementSnapshot(publishedAtMillis, inAppPurchasesFetched, subsPurchasesFetched, entries);
+    }
+}
@@ -0,0 +1,185 @@
+package games.moisoni.google_iab;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+import games.moisoni.google_iab.enums.ErrorType;
+import games.moisoni.google_iab.enums.LogLevel;
+import games.moisoni.google_iab.enums.ProductType;
+import games.moisoni.google_iab.enums.SupportState;
+import games.moisoni.google_iab.listeners.BillingEventListener;
+import games.moisoni.google_iab.models.BillingResponse;
+import games.moisoni.google_iab.models.ProductInfo;
+import games.moisoni.google_iab.models.PurchaseInfo;
+
+/**
+ * Job syncing the entitlements in the background, scheduled by EntitlementSyncScheduler
+ * <p>
+ * Runs a headless BillingConnector, waits for the IN-APP and SUBS purchase queries and publishes
+ * the owned purchases through EntitlementSnapshotStore. Purchases are never consumed or acknowledged here
+ */
+public class EntitlementSyncJobService extends JobService {
+
+    private static final String TAG = "EntitlementSyncJob";
+
+    //the purchase queries do not report every failure, so the job gives up after this time
+    private static final long SYNC_TIMEOUT_MS = 1000L * 60L * 2L;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final BillingLogger logger = new BillingLogger(TAG);
+
+    private BillingConnector billingConnector;
+    private JobParameters runningJob;
+    private SyncProgress progress;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        SharedPreferences preferences = EntitlementSyncScheduler.getPreferences(this);
+        LogLevel logLevel = EntitlementSyncScheduler.readLogLevel(preferences);
+        logger.setLevel(logLevel);
+
+        String base64Key = preferences.getString(EntitlementSyncScheduler.KEY_BASE64_KEY, null);
+        if (base64Key == null) {
+            logger.w("Entitlement sync is not configured");
+            return false;
+        }
+
+        logger.d("Entitlement sync started");
+        runningJob = params;
+        progress = new SyncProgress();
+
+        billingConnector = new BillingConnector(getApplicationContext(), base64Key, null)
+                .setLogLevel(logLevel)
+                .setConsumableIds(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_CONSUMABLE_IDS))
+                .setNonConsumableIds(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_NON_CONSUMABLE_IDS))
+                .setSubscriptionIds(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_SUBSCRIPTION_IDS))
+                .publishEntitlementSnapshots();
+        billingConnector.setBillingEventListener(syncListener);
+        billingConnector.connect();
+
+        handler.postDelayed(timeout, SYNC_TIMEOUT_MS);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        logger.d("Entitlement sync stopped by the system");
+        releaseConnector();
+        runningJob = null;
+        return true;
+    }
+
+    private final Runnable timeout = () -> {
+        logger.w("Entitlement sync timed out");
+        finish(true);
+    };
+
+    private void onPurchasesFetched(@NonNull ProductType productType) {
+        boolean subsExpected = billingConnector != null && billingConnector.isSubscriptionSupported() == SupportState.SUPPORTED;
+        if (progress.onPurchasesFetched(productType, subsExpected)) {
+            logger.d("Entitlement sync finished");
+            finish(false);
+        }
+    }
+
+    /**
+     * Releases the connector and finishes the job once the snapshot is written
+     */
+    private void finish(boolean needsReschedule) {
+        JobParameters params = runningJob;
+        runningJob = null;
+        releaseConnector();
+        if (params != null) {
+            EntitlementSnapshotStore.runAfterPendingWrites(() -> jobFinished(params, needsReschedule));
+        }
+    }
+
+    private void releaseConnector() {
+        handler.removeCallbacks(timeout);
+        if (billingConnector != null) {
+            billingConnector.release();
+            billingConnector = null;
+        }
+    }
+
+    private final BillingEventListener syncListener = new BillingEventListener() {
+        @Override
+        public void onProductsFetched(@NonNull List<ProductInfo> productDetails) {
+        }
+
+        @Override
+        public void onPurchasedProductsFetched(@NonNull ProductType productType, @NonNull List<PurchaseInfo> purchases) {
+            if (runningJob != null) {
+                onPurchasesFetched(productType);
+            }
+        }
+
+        @Override
+        public void onProductsPurchased(@NonNull List<PurchaseInfo> purchases) {
+        }
+
+        @Override
+        public void onPurchaseAcknowledged(@NonNull PurchaseInfo purchase) {
+        }
+
+        @Override
+        public void onPurchaseConsumed(@NonNull PurchaseInfo purchase) {
+        }
+
+        @Override
+        public void onBillingError(@NonNull BillingConnector billingConnector, @NonNull BillingResponse response) {
+            if (runningJob == null) {
+                return;
+            }
+
+            if (isSyncImpossible(response.getErrorType())) {
+                logger.w("Entitlement sync is not possible on this device: {}", response);
+                finish(false);
+            } else {
+                //the connector retries on its own, the timeout bounds the job
+                logger.d("Entitlement sync error: {}", response);
+            }
+        }
+    };
+
+    /**
+     * Returns true for the errors no retry can recover from on this device
+     */
+    static boolean isSyncImpossible(@NonNull ErrorType errorType) {
+        switch (errorType) {
+            case PLAY_STORE_NOT_INSTALLED:
+            case BILLING_UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Purchase queries the running job waits for
+     */
+    static final class SyncProgress {
+        private boolean inAppPurchasesFetched;
+        private boolean subsPurchasesFetched;
+
+        /**
+         * @param subsExpected - is false when the device does not support subscriptions
+         * @return true once the IN-APP purchases and, if expected, the SUBS purchases were fetched
+         */
+        boolean onPurchasesFetched(@NonNull ProductType productType, boolean subsExpected) {
+            if (productType == ProductType.SUBS) {
+                subsPurchasesFetched = true;
+            } else {
+                inAppPurchasesFetched = true;
+            }
+            return inAppPurchasesFetched && (subsPurchasesFetched || !subsExpected);
+        }
+    }
+}
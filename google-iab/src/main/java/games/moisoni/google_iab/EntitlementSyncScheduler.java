@@ -0,0 +1,219 @@
+package games.moisoni.google_iab;
+
+import android.Manifest;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import games.moisoni.google_iab.enums.LogLevel;
+
+/**
+ * Schedules the periodic background sync of the entitlements
+ * <p>
+ * EntitlementSyncJobService runs a headless BillingConnector on unmetered networks and publishes the owned
+ * purchases through EntitlementSnapshotStore. A foreground connector created with usePersistedEntitlements()
+ * then starts from the published snapshot instead of querying the purchases again
+ * <p>
+ * The configuration is persisted, so the job keeps running after the app process is gone. To keep it
+ * scheduled after a reboot, the app declares the RECEIVE_BOOT_COMPLETED permission in its own manifest:
+ * the library does not request it, and without it the job is scheduled until the next reboot only
+ */
+public final class EntitlementSyncScheduler {
+
+    private static final String TAG = "EntitlementSyncScheduler";
+
+    static final String PREFERENCES_NAME = "billing_entitlement_sync";
+    static final String KEY_BASE64_KEY = "base64_key";
+    static final String KEY_CONSUMABLE_IDS = "consumable_ids";
+    static final String KEY_NON_CONSUMABLE_IDS = "non_consumable_ids";
+    static final String KEY_SUBSCRIPTION_IDS = "subscription_ids";
+    static final String KEY_LOG_LEVEL = "log_level";
+    private static final String KEY_JOB_ID = "job_id";
+
+    public static final int DEFAULT_JOB_ID = 0x1AB0_5C;
+    public static final long DEFAULT_INTERVAL_MS = 1000L * 60L * 60L * 12L;
+
+    //JobInfo.getMinPeriodMillis() is not available on API 23
+    private static final long MIN_INTERVAL_MS = 1000L * 60L * 15L;
+
+    private final Context context;
+    private final String base64Key;
+    private final BillingLogger logger = new BillingLogger(TAG);
+
+    private List<String> consumableIds;
+    private List<String> nonConsumableIds;
+    private List<String> subscriptionIds;
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private int jobId = DEFAULT_JOB_ID;
+    private LogLevel logLevel = LogLevel.NONE;
+
+    /**
+     * EntitlementSyncScheduler public constructor
+     *
+     * @param context   - is the application context
+     * @param base64Key - is the public developer key from Play Console
+     */
+    public EntitlementSyncScheduler(@NonNull Context context, @NonNull String base64Key) {
+        this.context = context.getApplicationContext();
+        this.base64Key = base64Key;
+    }
+
+    /**
+     * To set consumable products ids
+     */
+    public EntitlementSyncScheduler setConsumableIds(List<String> consumableIds) {
+        this.consumableIds = consumableIds;
+        return this;
+    }
+
+    /**
+     * To set non-consumable products ids
+     */
+    public EntitlementSyncScheduler setNonConsumableIds(List<String> nonConsumableIds) {
+        this.nonConsumableIds = nonConsumableIds;
+        return this;
+    }
+
+    /**
+     * To set subscription products ids
+     */
+    public EntitlementSyncScheduler setSubscriptionIds(List<String> subscriptionIds) {
+        this.subscriptionIds = subscriptionIds;
+        return this;
+    }
+
+    /**
+     * To set how often the entitlements are synced, at least 15 minutes
+     */
+    public EntitlementSyncScheduler setInterval(long intervalMs) {
+        this.intervalMs = Math.max(intervalMs, MIN_INTERVAL_MS);
+        return this;
+    }
+
+    /**
+     * To set the JobScheduler job id, when DEFAULT_JOB_ID is already used by the app
+     */
+    public EntitlementSyncScheduler setJobId(int jobId) {
+        this.jobId = jobId;
+        return this;
+    }
+
+    /**
+     * To set the minimum level of the messages logged by the scheduler and the sync job, logging is disabled by default
+     */
+    public EntitlementSyncScheduler setLogLevel(@NonNull LogLevel logLevel) {
+        this.logLevel = logLevel;
+        logger.setLevel(logLevel);
+        return this;
+    }
+
+    /**
+     * Persists the configuration and schedules the periodic sync, replacing a previously scheduled one
+     *
+     * @return true if the job was scheduled
+     */
+    public boolean schedule() {
+        if (isNullOrEmpty(consumableIds) && isNullOrEmpty(nonConsumableIds) && isNullOrEmpty(subscriptionIds)) {
+            throw new IllegalArgumentException("At least one list of consumables, non-consumables or subscriptions is needed");
+        }
+
+        persistConfiguration(getPreferences(context));
+
+        //persisted jobs need RECEIVE_BOOT_COMPLETED, JobScheduler rejects them otherwise
+        boolean persisted = context.checkSelfPermission(Manifest.permission.RECEIVE_BOOT_COMPLETED) == PackageManager.PERMISSION_GRANTED;
+        JobInfo jobInfo = new JobInfo.Builder(jobId, new ComponentName(context, EntitlementSyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setPeriodic(intervalMs)
+                .setPersisted(persisted)
+                .build();
+
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        boolean scheduled = jobScheduler != null && jobScheduler.schedule(jobInfo) == JobScheduler.RESULT_SUCCESS;
+        if (scheduled) {
+            if (logger.isLoggable(LogLevel.DEBUG)) {
+                logger.d("Entitlement sync scheduled every {} ms, persisted: {}", intervalMs, persisted);
+            }
+        } else {
+            logger.w("Entitlement sync can not be scheduled");
+        }
+        return scheduled;
+    }
+
+    /**
+     * Writes the configuration read by EntitlementSyncJobService
+     */
+    void persistConfiguration(@NonNull SharedPreferences preferences) {
+        preferences.edit()
+                .putString(KEY_BASE64_KEY, base64Key)
+                .putStringSet(KEY_CONSUMABLE_IDS, toSet(consumableIds))
+                .putStringSet(KEY_NON_CONSUMABLE_IDS, toSet(nonConsumableIds))
+                .putStringSet(KEY_SUBSCRIPTION_IDS, toSet(subscriptionIds))
+                .putInt(KEY_JOB_ID, jobId)
+                .putString(KEY_LOG_LEVEL, logLevel.name())
+                .apply();
+    }
+
+    /**
+     * Cancels the periodic sync and deletes its persisted configuration
+     * <p>
+     * The published snapshot is kept, use EntitlementSnapshotStore.clear() to delete it
+     */
+    public static void cancel(@NonNull Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler != null) {
+            jobScheduler.cancel(preferences.getInt(KEY_JOB_ID, DEFAULT_JOB_ID));
+        }
+        preferences.edit().clear().apply();
+    }
+
+    @NonNull
+    static SharedPreferences getPreferences(@NonNull Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the persisted product ids, null if none were configured
+     */
+    @Nullable
+    static List<String> readIds(@NonNull SharedPreferences preferences, @NonNull String key) {
+        Set<String> ids = preferences.getStringSet(key, null);
+        return ids == null || ids.isEmpty() ? null : new ArrayList<>(ids);
+    }
+
+    /**
+     * Returns the persisted log level of the sync job, LogLevel.NONE if none was configured
+     */
+    @NonNull
+    static LogLevel readLogLevel(@NonNull SharedPreferences preferences) {
+        String logLevel = preferences.getString(KEY_LOG_LEVEL, null);
+        if (logLevel != null) {
+            for (LogLevel level : LogLevel.values()) {
+                if (level.name().equals(logLevel)) {
+                    return level;
+                }
+            }
+        }
+        return LogLevel.NONE;
+    }
+
+    @NonNull
+    private static Set<String> toSet(@Nullable List<String> ids) {
+        return ids == null ? new HashSet<>() : new HashSet<>(ids);
+    }
+
+    private static boolean isNullOrEmpty(@Nullable List<String> ids) {
+        return ids == null || ids.isEmpty();
+    }
+}
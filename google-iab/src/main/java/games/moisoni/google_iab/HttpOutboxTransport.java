@@ -0,0 +1,142 @@
+package games.moisoni.google_iab;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import games.moisoni.google_iab.listeners.OutboxTransport;
+import games.moisoni.google_iab.models.OutboxEntry;
+
+/**
+ * OutboxTransport posting each batch as JSON to the game server
+ * <p>
+ * Request body: {"purchases":[{"productId","purchaseToken","originalJson","signature"}, ...]}
+ * <p>
+ * Expected response, with a 2xx status: {"acknowledged":["purchaseToken", ...]}
+ */
+public class HttpOutboxTransport implements OutboxTransport {
+
+    private static final int DEFAULT_TIMEOUT_MS = 15_000;
+
+    private final URL endpoint;
+    private final Map<String, String> headers = new ConcurrentHashMap<>();
+    private volatile int timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    /**
+     * HttpOutboxTransport public constructor
+     *
+     * @param endpoint - is the url of the game server receiving the purchases
+     */
+    public HttpOutboxTransport(@NonNull URL endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * To add a header to every request, for eg. an authorization token
+     */
+    public HttpOutboxTransport setHeader(@NonNull String name, @NonNull String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * To set the connect and read timeout of a request
+     */
+    public HttpOutboxTransport setTimeout(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    @WorkerThread
+    public Set<String> deliver(@NonNull List<OutboxEntry> batch) throws IOException {
+        byte[] body = encodeBatch(batch).getBytes(StandardCharsets.UTF_8);
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode < 200 || responseCode >= 300) {
+                throw new IOException("Outbox endpoint responded with HTTP " + responseCode);
+            }
+
+            try (InputStream input = connection.getInputStream()) {
+                return decodeAcknowledged(readFully(input));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NonNull
+    static String encodeBatch(@NonNull List<OutboxEntry> batch) throws IOException {
+        try {
+            JSONArray purchases = new JSONArray();
+            for (OutboxEntry entry : batch) {
+                purchases.put(new JSONObject()
+                        .put("productId", entry.getProductId())
+                        .put("purchaseToken", entry.getPurchaseToken())
+                        .put("originalJson", entry.getOriginalJson())
+                        .put("signature", entry.getSignature()));
+            }
+            return new JSONObject().put("purchases", purchases).toString();
+        } catch (JSONException e) {
+            throw new IOException("Outbox batch can not be encoded", e);
+        }
+    }
+
+    @NonNull
+    static Set<String> decodeAcknowledged(@NonNull String response) throws IOException {
+        try {
+            JSONArray acknowledged = new JSONObject(response).getJSONArray("acknowledged");
+            Set<String> purchaseTokens = new HashSet<>();
+            for (int i = 0; i < acknowledged.length(); i++) {
+                purchaseTokens.add(acknowledged.getString(i));
+            }
+            return purchaseTokens;
+        } catch (JSONException e) {
+            throw new IOException("Outbox response can not be decoded", e);
+        }
+    }
+
+    @NonNull
+    private static String readFully(@NonNull InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
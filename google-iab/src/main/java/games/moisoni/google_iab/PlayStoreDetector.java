@@ -0,0 +1,117 @@
+package games.moisoni.google_iab;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Process-wide cache of the Play Store detection
+ * <p>
+ * The PackageManager is queried once per process. A receiver registered on the first call clears
+ * the cached result when the Play Store package is installed, removed, changed or replaced
+ */
+final class PlayStoreDetector {
+
+    private static final String PLAY_STORE_PACKAGE = "com.android.vending";
+
+    private static final Object lock = new Object();
+    private static volatile Boolean cachedPlayStoreInstalled;
+    private static boolean receiverRegistered;
+
+    //logger of the last connector that asked, used by the package receiver
+    private static volatile BillingLogger logger;
+
+    private PlayStoreDetector() {
+    }
+
+    /**
+     * Returns true if the Play Store is installed, from the cache when it is still valid
+     *
+     * @param logger - is the logger of the calling connector
+     */
+    @WorkerThread
+    static boolean isPlayStoreInstalled(@NonNull Context context, @NonNull BillingLogger logger) {
+        PlayStoreDetector.logger = logger;
+        Boolean installed = cachedPlayStoreInstalled;
+        if (installed != null) {
+            return installed;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        synchronized (lock) {
+            if (!receiverRegistered) {
+                registerPackageReceiver(applicationContext);
+                receiverRegistered = true;
+            }
+
+            if (cachedPlayStoreInstalled == null) {
+                cachedPlayStoreInstalled = isPlayStoreInstalledByPackage(applicationContext, logger) || canHandlePlayStoreUrl(applicationContext, logger);
+            }
+            return cachedPlayStoreInstalled;
+        }
+    }
+
+    private static void registerPackageReceiver(@NonNull Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null && PLAY_STORE_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                    logger.d("Play Store package changed: {}", intent.getAction());
+                    cachedPlayStoreInstalled = null;
+                }
+            }
+        };
+
+        //package broadcasts are sent by the system, so the receiver does not need to be exported
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(receiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, filter);
+        }
+    }
+
+    /**
+     * Checks if Google Play Store is installed by verifying the existence of its package
+     */
+    private static boolean isPlayStoreInstalledByPackage(@NonNull Context context, @NonNull BillingLogger logger) {
+        try {
+            context.getPackageManager().getPackageInfo(PLAY_STORE_PACKAGE, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            logger.d("Google Play Store is not installed");
+            return false;
+        }
+    }
+
+    /**
+     * Checks if any app (ideally Play Store) can handle Play Store URLs as a fallback verification
+     */
+    private static boolean canHandlePlayStoreUrl(@NonNull Context context, @NonNull BillingLogger logger) {
+        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://play.google.com/store"));
+        ResolveInfo resolveInfo = context.getPackageManager().resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
+
+        if (resolveInfo == null) {
+            logger.d("Google Play Store is not installed");
+            return false;
+        }
+
+        //verify if the resolver is actually the Play Store
+        return PLAY_STORE_PACKAGE.equals(resolveInfo.activityInfo.packageName);
+    }
+}
@@ -0,0 +1,234 @@
+package games.moisoni.google_iab;
+
+import static com.android.billingclient.api.BillingClient.ProductType.INAPP;
+import static com.android.billingclient.api.BillingClient.ProductType.SUBS;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.QueryProductDetailsParams;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import games.moisoni.google_iab.enums.SkuProductType;
+
+/**
+ * Product ids of a BillingConnector and the product details params built from them
+ * <p>
+ * Lists are replaced copy-on-write while holding the catalog monitor, readers use them without locking.
+ * The catalog also records whether the startup queries of the current connection already took the product
+ * lists: products added after that are queried on their own, products added before are queried with the rest
+ */
+final class ProductCatalog {
+
+    private volatile List<String> consumableIds;
+    private volatile List<String> nonConsumableIds;
+    private volatile List<String> subscriptionIds;
+
+    private volatile List<QueryProductDetailsParams.Product> inAppProducts = Collections.emptyList();
+    private volatile List<QueryProductDetailsParams.Product> subsProducts = Collections.emptyList();
+
+    //true once the startup queries of the current connection took the product lists
+    private boolean queriedByConnection;
+
+    synchronized void setConsumableIds(@Nullable List<String> consumableIds) {
+        this.consumableIds = consumableIds;
+    }
+
+    synchronized void setNonConsumableIds(@Nullable List<String> nonConsumableIds) {
+        this.nonConsumableIds = nonConsumableIds;
+    }
+
+    synchronized void setSubscriptionIds(@Nullable List<String> subscriptionIds) {
+        this.subscriptionIds = subscriptionIds;
+    }
+
+    /**
+     * Checks the configured ids before connecting, empty lists are replaced by null
+     */
+    synchronized void validate() {
+        //set empty list to null so we only have to deal with lists that are null or not empty
+        if (consumableIds != null && consumableIds.isEmpty()) consumableIds = null;
+        if (nonConsumableIds != null && nonConsumableIds.isEmpty()) nonConsumableIds = null;
+        if (subscriptionIds != null && subscriptionIds.isEmpty()) subscriptionIds = null;
+
+        //check if any list is provided
+        if (consumableIds == null && nonConsumableIds == null && subscriptionIds == null) {
+            throw new IllegalArgumentException("At least one list of consumables, non-consumables or subscriptions is needed");
+        }
+
+        //check for duplicates product ids
+        HashSet<String> distinctIds = new HashSet<>();
+        int allIdsSize = addAllIds(distinctIds, consumableIds) + addAllIds(distinctIds, nonConsumableIds) + addAllIds(distinctIds, subscriptionIds);
+        if (allIdsSize != distinctIds.size()) {
+            throw new IllegalArgumentException("The product id must appear only once in a list. Also, it must not be in different lists");
+        }
+    }
+
+    /**
+     * Builds the product details params from the current ids
+     */
+    synchronized void rebuildProductParams() {
+        List<QueryProductDetailsParams.Product> inAppProducts = new ArrayList<>();
+        List<QueryProductDetailsParams.Product> subsProducts = new ArrayList<>();
+        addProductParams(inAppProducts, consumableIds, INAPP);
+        addProductParams(inAppProducts, nonConsumableIds, INAPP);
+        addProductParams(subsProducts, subscriptionIds, SUBS);
+        this.inAppProducts = inAppProducts;
+        this.subsProducts = subsProducts;
+    }
+
+    @NonNull
+    List<QueryProductDetailsParams.Product> getInAppProducts() {
+        return inAppProducts;
+    }
+
+    @NonNull
+    List<QueryProductDetailsParams.Product> getSubsProducts() {
+        return subsProducts;
+    }
+
+    /**
+     * Records that the startup queries of the connection took the product lists
+     * <p>
+     * Called while holding the catalog monitor, together with the reads of the lists
+     */
+    synchronized void markQueriedByConnection() {
+        queriedByConnection = true;
+    }
+
+    /**
+     * Called when the connection is lost or released, the next connection queries the whole catalog again
+     */
+    synchronized void onConnectionLost() {
+        queriedByConnection = false;
+    }
+
+    synchronized boolean isQueriedByConnection() {
+        return queriedByConnection;
+    }
+
+    /**
+     * Returns the type of the product in the catalog, null if the product is not in the catalog
+     */
+    @Nullable
+    SkuProductType getType(String productId) {
+        List<String> consumableIds = this.consumableIds;
+        List<String> nonConsumableIds = this.nonConsumableIds;
+        List<String> subscriptionIds = this.subscriptionIds;
+
+        if (consumableIds != null && consumableIds.contains(productId)) return SkuProductType.CONSUMABLE;
+        if (nonConsumableIds != null && nonConsumableIds.contains(productId)) return SkuProductType.NON_CONSUMABLE;
+        if (subscriptionIds != null && subscriptionIds.contains(productId)) return SkuProductType.SUBSCRIPTION;
+        return null;
+    }
+
+    boolean isConsumable(String productId) {
+        List<String> consumableIds = this.consumableIds;
+        return consumableIds != null && consumableIds.contains(productId);
+    }
+
+    /**
+     * Adds the products to the catalog
+     *
+     * @return the product details params of the products actually added, ids already in the catalog are skipped
+     * @throws IllegalArgumentException if an id is already in the catalog with another type, nothing is added then
+     */
+    @NonNull
+    synchronized List<QueryProductDetailsParams.Product> add(@NonNull SkuProductType skuProductType, @NonNull List<String> productIds) {
+        List<String> addedIds = new ArrayList<>();
+        for (String productId : new LinkedHashSet<>(productIds)) {
+            SkuProductType catalogType = getType(productId);
+            if (catalogType == null) {
+                addedIds.add(productId);
+            } else if (catalogType != skuProductType) {
+                throw new IllegalArgumentException("The product id: " + productId + " is already in the catalog as " + catalogType);
+            }
+        }
+        if (addedIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        switch (skuProductType) {
+            case CONSUMABLE:
+                consumableIds = withIds(consumableIds, addedIds);
+                break;
+            case NON_CONSUMABLE:
+                nonConsumableIds = withIds(nonConsumableIds, addedIds);
+                break;
+            case SUBSCRIPTION:
+                subscriptionIds = withIds(subscriptionIds, addedIds);
+                break;
+        }
+
+        List<QueryProductDetailsParams.Product> addedProducts = new ArrayList<>();
+        if (skuProductType == SkuProductType.SUBSCRIPTION) {
+            addProductParams(addedProducts, addedIds, SUBS);
+            subsProducts = withProducts(subsProducts, addedProducts);
+        } else {
+            addProductParams(addedProducts, addedIds, INAPP);
+            inAppProducts = withProducts(inAppProducts, addedProducts);
+        }
+        return addedProducts;
+    }
+
+    /**
+     * Removes the products from the catalog, ids not in the catalog are ignored
+     */
+    synchronized void remove(@NonNull Collection<String> productIds) {
+        Set<String> removedIds = new HashSet<>(productIds);
+        consumableIds = withoutIds(consumableIds, removedIds);
+        nonConsumableIds = withoutIds(nonConsumableIds, removedIds);
+        subscriptionIds = withoutIds(subscriptionIds, removedIds);
+
+        //product params do not expose their id, the lists are rebuilt from the remaining ids
+        rebuildProductParams();
+    }
+
+    private static int addAllIds(@NonNull HashSet<String> distinctIds, @Nullable List<String> ids) {
+        if (ids == null) {
+            return 0;
+        }
+        distinctIds.addAll(ids);
+        return ids.size();
+    }
+
+    private static void addProductParams(@NonNull List<QueryProductDetailsParams.Product> productList, @Nullable List<String> ids, @NonNull String productType) {
+        if (ids != null) {
+            for (String id : ids) {
+                productList.add(QueryProductDetailsParams.Product.newBuilder().setProductId(id).setProductType(productType).build());
+            }
+        }
+    }
+
+    @NonNull
+    private static List<String> withIds(@Nullable List<String> ids, @NonNull List<String> addedIds) {
+        List<String> newIds = ids != null ? new ArrayList<>(ids) : new ArrayList<>();
+        newIds.addAll(addedIds);
+        return newIds;
+    }
+
+    @Nullable
+    private static List<String> withoutIds(@Nullable List<String> ids, @NonNull Set<String> removedIds) {
+        if (ids == null) {
+            return null;
+        }
+        List<String> newIds = new ArrayList<>(ids);
+        newIds.removeAll(removedIds);
+        return newIds.isEmpty() ? null : newIds;
+    }
+
+    @NonNull
+    private static List<QueryProductDetailsParams.Product> withProducts(@NonNull List<QueryProductDetailsParams.Product> productList,
+                                                                        @NonNull List<QueryProductDetailsParams.Product> addedProducts) {
+        List<QueryProductDetailsParams.Product> newProductList = new ArrayList<>(productList);
+        newProductList.addAll(addedProducts);
+        return newProductList;
+    }
+}
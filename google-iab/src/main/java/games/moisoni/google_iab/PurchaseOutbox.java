@@ -0,0 +1,460 @@
+package games.moisoni.google_iab;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import games.moisoni.google_iab.enums.LogLevel;
+import games.moisoni.google_iab.listeners.OutboxTransport;
+import games.moisoni.google_iab.models.OutboxEntry;
+import games.moisoni.google_iab.models.PurchaseInfo;
+
+/**
+ * Persistent outbox delivering verified purchases to the game server
+ * <p>
+ * Purchases are appended to a log file before any delivery is attempted, so purchases made offline or
+ * during a server outage survive process death. A single background thread drains the outbox in batches
+ * through the OutboxTransport and retries failed batches with exponential backoff. An entry is removed
+ * only after the server acknowledged its purchase token
+ * <p>
+ * Delivery is at-least-once: an entry acknowledged right before the process dies can be delivered again,
+ * so the server must deduplicate by purchase token
+ */
+public final class PurchaseOutbox {
+
+    private static final String TAG = "PurchaseOutbox";
+    private static final String FILE_NAME = "billing_purchase_outbox.log";
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    private static final long DEFAULT_INITIAL_BACKOFF_MS = 2000L;
+    private static final long DEFAULT_MAX_BACKOFF_MS = 1000L * 60L * 15L;
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_ACKNOWLEDGE = 2;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    //the log is rewritten with the pending entries only, once enough acknowledgements piled up
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private final File file;
+    private final OutboxTransport transport;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final BillingLogger logger = new BillingLogger(TAG);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "billing-outbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //only accessed on the outbox thread
+    private final LinkedHashMap<String, OutboxEntry> pendingEntries = new LinkedHashMap<>();
+    private int acknowledgedRecords;
+    private long backoffMs;
+    private ScheduledFuture<?> scheduledDrain;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile boolean closed;
+
+    /**
+     * PurchaseOutbox public constructor
+     * <p>
+     * Entries left by a previous process are loaded and delivered right away
+     *
+     * @param context   - is the application context
+     * @param transport - delivers the batches to the game server, for eg. HttpOutboxTransport
+     */
+    public PurchaseOutbox(@NonNull Context context, @NonNull OutboxTransport transport) {
+        this(new File(context.getApplicationContext().getFilesDir(), FILE_NAME), transport, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    PurchaseOutbox(@NonNull File file, @NonNull OutboxTransport transport, long initialBackoffMs, long maxBackoffMs) {
+        this.file = file;
+        this.transport = transport;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        executor.execute(() -> {
+            load();
+            scheduleDrain(0);
+        });
+    }
+
+    /**
+     * To set the maximum number of entries delivered in one batch
+     */
+    public PurchaseOutbox setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * To set the minimum level of the logged messages
+     */
+    public PurchaseOutbox setLogLevel(@NonNull LogLevel logLevel) {
+        logger.setLevel(logLevel);
+        return this;
+    }
+
+    /**
+     * Appends the verified purchase to the outbox and schedules its delivery
+     * <p>
+     * A purchase token already waiting in the outbox is ignored
+     */
+    public void enqueue(@NonNull PurchaseInfo purchaseInfo) {
+        enqueue(OutboxEntry.of(purchaseInfo));
+    }
+
+    /**
+     * Appends the entry to the outbox and schedules its delivery
+     * <p>
+     * A purchase token already waiting in the outbox is ignored, as is any entry enqueued after close()
+     */
+    public void enqueue(@NonNull OutboxEntry entry) {
+        runOnOutboxThread("enqueue", () -> {
+            if (pendingEntries.containsKey(entry.getPurchaseToken())) {
+                return;
+            }
+
+            try {
+                append(encodeEnqueue(entry));
+            } catch (IOException e) {
+                //still delivered from memory, only the durability is lost
+                logger.w("Outbox entry can not be persisted: {}", e.getMessage());
+            }
+            pendingEntries.put(entry.getPurchaseToken(), entry);
+            pendingCount.set(pendingEntries.size());
+            scheduleDrain(0);
+        });
+    }
+
+    /**
+     * Delivers the pending entries now, skipping the current backoff, for eg. when the network is back
+     */
+    public void flush() {
+        runOnOutboxThread("flush", () -> {
+            if (scheduledDrain != null) {
+                scheduledDrain.cancel(false);
+                scheduledDrain = null;
+            }
+            backoffMs = 0;
+            scheduleDrain(0);
+        });
+    }
+
+    /**
+     * Returns the number of entries not acknowledged by the server yet
+     * <p>
+     * Entries are loaded and enqueued on the outbox thread, so they are counted shortly after the calls return
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the delivery, the pending entries stay persisted for the next process
+     */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs the task on the outbox thread, or drops it once the outbox is closed
+     */
+    private void runOnOutboxThread(@NonNull String action, @NonNull Runnable task) {
+        if (!closed) {
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                //closed between the check and the call
+            }
+        }
+        logger.w("Outbox is closed, {} is ignored", action);
+    }
+
+    private void scheduleDrain(long delayMs) {
+        if (scheduledDrain == null && !pendingEntries.isEmpty() && !closed) {
+            scheduledDrain = executor.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @WorkerThread
+    private void drain() {
+        scheduledDrain = null;
+        while (!pendingEntries.isEmpty()) {
+            List<OutboxEntry> batch = new ArrayList<>(Math.min(batchSize, pendingEntries.size()));
+            Iterator<OutboxEntry> iterator = pendingEntries.values().iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                batch.add(iterator.next());
+            }
+
+            Set<String> acknowledgedTokens;
+            try {
+                acknowledgedTokens = transport.deliver(batch);
+            } catch (IOException | RuntimeException e) {
+                logger.w("Outbox batch delivery failed: {}", e.getMessage());
+                scheduleRetry();
+                return;
+            }
+
+            int acknowledged = acknowledge(batch, acknowledgedTokens);
+            logger.d("Outbox batch delivered: {} of {} entries acknowledged", acknowledged, batch.size());
+            if (acknowledged == 0) {
+                scheduleRetry();
+                return;
+            }
+
+            backoffMs = 0;
+            compactIfNeeded();
+        }
+    }
+
+    private int acknowledge(@NonNull List<OutboxEntry> batch, @NonNull Set<String> acknowledgedTokens) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int acknowledged = 0;
+        for (OutboxEntry entry : batch) {
+            if (acknowledgedTokens.contains(entry.getPurchaseToken())) {
+                pendingEntries.remove(entry.getPurchaseToken());
+                byte[] record = encodeAcknowledge(entry.getPurchaseToken());
+                records.write(record, 0, record.length);
+                acknowledged++;
+            }
+        }
+        pendingCount.set(pendingEntries.size());
+
+        if (acknowledged > 0) {
+            try {
+                append(records.toByteArray());
+                acknowledgedRecords += acknowledged;
+            } catch (IOException e) {
+                //the entries will be delivered again by the next process
+                logger.w("Outbox acknowledgements can not be persisted: {}", e.getMessage());
+            }
+        }
+        return acknowledged;
+    }
+
+    private void scheduleRetry() {
+        backoffMs = backoffMs == 0 ? initialBackoffMs : Math.min(backoffMs * 2, maxBackoffMs);
+        //jitter spreads the retries of many devices after a server outage
+        long delayMs = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+        logger.d("Outbox delivery retry in {} ms", delayMs);
+        scheduleDrain(delayMs);
+    }
+
+    @WorkerThread
+    private void append(@NonNull byte[] records) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Outbox directory can not be created");
+        }
+
+        try (FileOutputStream output = new FileOutputStream(file, true)) {
+            output.write(records);
+            output.getFD().sync();
+        }
+    }
+
+    @WorkerThread
+    private void compactIfNeeded() {
+        if (acknowledgedRecords < COMPACTION_THRESHOLD || acknowledgedRecords < pendingEntries.size()) {
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            for (OutboxEntry entry : pendingEntries.values()) {
+                output.write(encodeEnqueue(entry));
+            }
+            output.getFD().sync();
+        } catch (IOException e) {
+            logger.w("Outbox can not be compacted: {}", e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        if (temp.renameTo(file)) {
+            acknowledgedRecords = 0;
+        } else {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Replays the log, a torn record left by a crash in the middle of an append is truncated
+     */
+    @WorkerThread
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("Invalid outbox record length: " + length);
+                }
+                long checksum = input.readInt() & 0xFFFFFFFFL;
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (checksum(payload) != checksum) {
+                    throw new IOException("Invalid outbox record checksum");
+                }
+
+                apply(payload);
+                validLength += 8 + length;
+            }
+        } catch (IOException e) {
+            logger.w("Outbox log is truncated after {} bytes: {}", validLength, e.getMessage());
+            truncate(validLength);
+        }
+
+        pendingCount.set(pendingEntries.size());
+        logger.d("Outbox loaded: {} pending entries", pendingEntries.size());
+    }
+
+    private void apply(@NonNull byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = input.readByte();
+        switch (type) {
+            case RECORD_ENQUEUE:
+                OutboxEntry entry = new OutboxEntry(readString(input), readString(input), readString(input), readString(input));
+                if (!pendingEntries.containsKey(entry.getPurchaseToken())) {
+                    pendingEntries.put(entry.getPurchaseToken(), entry);
+                }
+                break;
+            case RECORD_ACKNOWLEDGE:
+                pendingEntries.remove(readString(input));
+                acknowledgedRecords++;
+                break;
+            default:
+                throw new IOException("Unknown outbox record type: " + type);
+        }
+    }
+
+    private void truncate(long validLength) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(validLength);
+        } catch (IOException e) {
+            logger.w("Outbox log can not be truncated: {}", e.getMessage());
+        }
+    }
+
+    @NonNull
+    private static byte[] encodeEnqueue(@NonNull OutboxEntry entry) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(payload);
+        try {
+            output.writeByte(RECORD_ENQUEUE);
+            writeString(output, entry.getProductId());
+            writeString(output, entry.getPurchaseToken());
+            writeString(output, entry.getOriginalJson());
+            writeString(output, entry.getSignature());
+        } catch (IOException e) {
+            //never thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    @NonNull
+    private static byte[] encodeAcknowledge(@NonNull String purchaseToken) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(payload);
+        try {
+            output.writeByte(RECORD_ACKNOWLEDGE);
+            writeString(output, purchaseToken);
+        } catch (IOException e) {
+            //never thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    /**
+     * Prefixes the payload with its length and checksum
+     */
+    @NonNull
+    private static byte[] frame(@NonNull byte[] payload) {
+        long checksum = checksum(payload);
+        byte[] record = new byte[payload.length + 8];
+        writeInt(record, 0, payload.length);
+        writeInt(record, 4, (int) checksum);
+        System.arraycopy(payload, 0, record, 8, payload.length);
+        return record;
+    }
+
+    private static void writeInt(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static long checksum(@NonNull byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return crc32.getValue();
+    }
+
+    //writeUTF is limited to 64 KB
+    private static void writeString(@NonNull DataOutputStream output, @NonNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid outbox string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
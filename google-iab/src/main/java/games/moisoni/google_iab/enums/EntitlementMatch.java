@@ -0,0 +1,6 @@
+package games.moisoni.google_iab.enums;
+
+public enum EntitlementMatch {
+    ANY_OF,
+    ALL_OF
+}
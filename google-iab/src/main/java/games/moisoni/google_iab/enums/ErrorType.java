@@ -23,4 +23,5 @@ public enum ErrorType {
     NOT_PENDING,
     PENDING_PURCHASE_CANCELED,
     PENDING_PURCHASE_RETRY_ERROR,
+    PURCHASE_FLOW_IN_PROGRESS,
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package games.moisoni.google_iab.enums;
+
+public enum FlightEventType {
+    CONNECTION,
+    QUERY,
+    PURCHASE_UPDATE,
+    ACKNOWLEDGE,
+    CONSUME,
+    RETRY,
+    ERROR
+}
@@ -0,0 +1,10 @@
+package games.moisoni.google_iab.enums;
+
+public enum LogLevel {
+    VERBOSE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    NONE
+}
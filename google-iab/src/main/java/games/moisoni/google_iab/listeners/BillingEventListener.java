@@ -26,6 +26,18 @@ public interface BillingEventListener {
      */
     void onPurchasedProductsFetched(@NonNull ProductType productType, @NonNull List<PurchaseInfo> purchases);
 
+    /**
+     * Callback will be triggered once the product details and the owned purchases are both fetched
+     * <p>
+     * The purchase queries run in parallel with the product details queries. This fires once per
+     * connection, after onProductsFetched and onPurchasedProductsFetched, with the whole catalog
+     *
+     * @param products  - a list with all available products
+     * @param purchases - a list with all owned products
+     */
+    default void onCatalogAndEntitlementsReady(@NonNull List<ProductInfo> products, @NonNull List<PurchaseInfo> purchases) {
+    }
+
     /**
      * Callback will be triggered when a product is purchased successfully
      *
@@ -0,0 +1,32 @@
+package games.moisoni.google_iab.listeners;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the performance metrics of BillingConnector
+ * <p>
+ * Callbacks run synchronously on the thread that measured the metric, so they must return quickly.
+ * Every method has an empty default implementation, override only the metrics of interest
+ */
+public interface BillingMetricsListener {
+
+    /**
+     * Callback triggered right after the billing flow is launched
+     *
+     * @param productId        - is the product of the launched billing flow
+     * @param tapToLaunchNanos - is the time from the purchase() or subscribe() call to BillingClient.launchBillingFlow()
+     * @param responseCode     - is the response code returned by BillingClient.launchBillingFlow()
+     */
+    default void onBillingFlowLaunched(@NonNull String productId, long tapToLaunchNanos, int responseCode) {
+    }
+
+    /**
+     * Callback triggered on the UI thread when a BillingEventListener callback ran longer than the listener budget
+     *
+     * @param callbackName  - is the name of the slow BillingEventListener method, for eg. onPurchasedProductsFetched
+     * @param durationNanos - is the time the callback blocked the UI thread
+     * @param budgetNanos   - is the listener budget set with BillingConnector.setListenerBudget()
+     */
+    default void onListenerOverBudget(@NonNull String callbackName, long durationNanos, long budgetNanos) {
+    }
+}
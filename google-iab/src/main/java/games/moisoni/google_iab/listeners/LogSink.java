@@ -0,0 +1,24 @@
+package games.moisoni.google_iab.listeners;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import games.moisoni.google_iab.enums.LogLevel;
+
+/**
+ * Destination of the messages logged by BillingConnector
+ * <p>
+ * Messages are only built and passed to the sink when their level is enabled,
+ * so a sink never has to filter by level itself
+ */
+public interface LogSink {
+    /**
+     * Callback triggered for every message at or above the enabled log level
+     *
+     * @param level     - is the level of the message
+     * @param tag       - identifies the component that logged the message
+     * @param message   - is the fully built message
+     * @param throwable - is the error attached to the message, if any
+     */
+    void log(@NonNull LogLevel level, @NonNull String tag, @NonNull String message, @Nullable Throwable throwable);
+}
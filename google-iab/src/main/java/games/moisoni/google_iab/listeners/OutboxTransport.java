@@ -0,0 +1,30 @@
+package games.moisoni.google_iab.listeners;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import games.moisoni.google_iab.models.OutboxEntry;
+
+/**
+ * Delivers batches of the PurchaseOutbox to the game server
+ */
+public interface OutboxTransport {
+
+    /**
+     * Called on the outbox thread with the oldest pending entries
+     * <p>
+     * Entries missing from the returned set stay in the outbox and are delivered again later, so the server
+     * should also acknowledge the purchases it rejects for good, for eg. because their signature is invalid
+     *
+     * @param batch - are the entries to deliver, in the order they were enqueued
+     * @return the purchase tokens acknowledged by the server
+     * @throws IOException when the batch could not be delivered, it is retried with backoff
+     */
+    @NonNull
+    @WorkerThread
+    Set<String> deliver(@NonNull List<OutboxEntry> batch) throws IOException;
+}
@@ -0,0 +1,142 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed ISO-8601 billing period of a pricing phase (for eg. P1W, P1M, P3M, P1Y)
+ * <p>
+ * Play Console only uses a handful of distinct periods, so parsed values are cached for the process
+ */
+public final class BillingPeriod {
+
+    public static final double DAYS_PER_YEAR = 365.0;
+    public static final double DAYS_PER_MONTH = DAYS_PER_YEAR / 12.0;
+    public static final double DAYS_PER_WEEK = 7.0;
+
+    private static final BillingPeriod EMPTY = new BillingPeriod("", 0, 0, 0, 0);
+    private static final Map<String, BillingPeriod> parsedPeriods = new ConcurrentHashMap<>();
+
+    private final String isoPeriod;
+    private final int years;
+    private final int months;
+    private final int weeks;
+    private final int days;
+
+    private BillingPeriod(String isoPeriod, int years, int months, int weeks, int days) {
+        this.isoPeriod = isoPeriod;
+        this.years = years;
+        this.months = months;
+        this.weeks = weeks;
+        this.days = days;
+    }
+
+    /**
+     * Returns the parsed billing period
+     * <p>
+     * Malformed or missing periods are returned as an empty period with a length of 0 days
+     *
+     * @param isoPeriod - is the ISO-8601 period provided by the billing client API
+     */
+    @NonNull
+    public static BillingPeriod parse(String isoPeriod) {
+        if (isoPeriod == null || isoPeriod.isEmpty()) {
+            return EMPTY;
+        }
+
+        BillingPeriod cached = parsedPeriods.get(isoPeriod);
+        if (cached == null) {
+            cached = parseUncached(isoPeriod);
+            parsedPeriods.put(isoPeriod, cached);
+        }
+        return cached;
+    }
+
+    @NonNull
+    private static BillingPeriod parseUncached(@NonNull String isoPeriod) {
+        if (isoPeriod.charAt(0) != 'P') {
+            return EMPTY;
+        }
+
+        int years = 0, months = 0, weeks = 0, days = 0;
+        int value = 0;
+        boolean hasDigits = false;
+
+        for (int i = 1; i < isoPeriod.length(); i++) {
+            char c = isoPeriod.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                hasDigits = true;
+                continue;
+            }
+
+            if (!hasDigits) {
+                return EMPTY;
+            }
+
+            switch (c) {
+                case 'Y':
+                    years += value;
+                    break;
+                case 'M':
+                    months += value;
+                    break;
+                case 'W':
+                    weeks += value;
+                    break;
+                case 'D':
+                    days += value;
+                    break;
+                default:
+                    return EMPTY;
+            }
+            value = 0;
+            hasDigits = false;
+        }
+
+        if (hasDigits) {
+            return EMPTY;
+        }
+
+        return new BillingPeriod(isoPeriod, years, months, weeks, days);
+    }
+
+    public String getIsoPeriod() {
+        return isoPeriod;
+    }
+
+    public int getYears() {
+        return years;
+    }
+
+    public int getMonths() {
+        return months;
+    }
+
+    public int getWeeks() {
+        return weeks;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    /**
+     * Returns the length of the period in days, using 365 days per year and 365/12 days per month
+     */
+    public double toDays() {
+        return years * DAYS_PER_YEAR + months * DAYS_PER_MONTH + weeks * DAYS_PER_WEEK + days;
+    }
+
+    public boolean isEmpty() {
+        return toDays() <= 0;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "BillingPeriod[" + isoPeriod + ", days=" + toDays() + ']';
+    }
+}
@@ -0,0 +1,100 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.EntitlementMatch;
+
+/**
+ * Maps product ids onto a named entitlement, for eg. "no_ads" granted by a remove-ads product or by any VIP subscription
+ * <p>
+ * A product counts for the rule when one of its purchases is in an accepted state, PURCHASED by default
+ */
+public final class EntitlementRule {
+
+    private final String name;
+    private final EntitlementMatch match;
+    private final List<String> productIds;
+    private final int[] purchaseStates;
+
+    private EntitlementRule(@NonNull String name, @NonNull EntitlementMatch match, @NonNull List<String> productIds, @NonNull int[] purchaseStates) {
+        if (productIds.isEmpty()) {
+            throw new IllegalArgumentException("The entitlement: " + name + " needs at least one product id");
+        }
+        this.name = name;
+        this.match = match;
+        this.productIds = productIds;
+        this.purchaseStates = purchaseStates;
+    }
+
+    /**
+     * The entitlement is granted when any of the products is owned
+     */
+    @NonNull
+    public static EntitlementRule anyOf(@NonNull String name, @NonNull String... productIds) {
+        return new EntitlementRule(name, EntitlementMatch.ANY_OF, toList(productIds), new int[]{Purchase.PurchaseState.PURCHASED});
+    }
+
+    /**
+     * The entitlement is granted when all the products are owned, for eg. every item of a collection
+     */
+    @NonNull
+    public static EntitlementRule allOf(@NonNull String name, @NonNull String... productIds) {
+        return new EntitlementRule(name, EntitlementMatch.ALL_OF, toList(productIds), new int[]{Purchase.PurchaseState.PURCHASED});
+    }
+
+    /**
+     * Returns a copy of the rule accepting the given purchase states instead, for eg. PURCHASED and PENDING
+     *
+     * @param purchaseStates - are values of Purchase.PurchaseState
+     */
+    @NonNull
+    public EntitlementRule withPurchaseStates(@NonNull int... purchaseStates) {
+        if (purchaseStates.length == 0) {
+            throw new IllegalArgumentException("The entitlement: " + name + " needs at least one purchase state");
+        }
+        return new EntitlementRule(name, match, productIds, purchaseStates.clone());
+    }
+
+    @NonNull
+    private static List<String> toList(@NonNull String[] productIds) {
+        return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(productIds)));
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    @NonNull
+    public EntitlementMatch getMatch() {
+        return match;
+    }
+
+    @NonNull
+    public List<String> getProductIds() {
+        return productIds;
+    }
+
+    @NonNull
+    public int[] getPurchaseStates() {
+        return purchaseStates.clone();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "EntitlementRule[" +
+                "name='" + name + '\'' +
+                ", match=" + match +
+                ", productIds=" + productIds +
+                ", purchaseStates=" + Arrays.toString(purchaseStates) +
+                ']';
+    }
+}
@@ -0,0 +1,166 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.SkuProductType;
+
+/**
+ * Immutable snapshot of the signature-valid purchases owned by the user
+ * <p>
+ * Published by the process that owns the BillingConnector and read by other processes of the app
+ * without opening their own billing connection
+ */
+public final class EntitlementSnapshot {
+
+    private final long publishedAtMillis;
+    private final boolean inAppPurchasesFetched;
+    private final boolean subsPurchasesFetched;
+    private final List<Entry> entries;
+
+    public EntitlementSnapshot(long publishedAtMillis, boolean inAppPurchasesFetched, boolean subsPurchasesFetched, @NonNull List<Entry> entries) {
+        this.publishedAtMillis = publishedAtMillis;
+        this.inAppPurchasesFetched = inAppPurchasesFetched;
+        this.subsPurchasesFetched = subsPurchasesFetched;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    @NonNull
+    public static EntitlementSnapshot of(long publishedAtMillis, boolean inAppPurchasesFetched, boolean subsPurchasesFetched, @NonNull List<PurchaseInfo> purchases) {
+        List<Entry> entries = new ArrayList<>(purchases.size());
+        for (PurchaseInfo purchaseInfo : purchases) {
+            entries.add(new Entry(purchaseInfo.getProduct(), purchaseInfo.getSkuProductType(), purchaseInfo.getPurchaseToken(),
+                    purchaseInfo.getPurchaseState(), purchaseInfo.getPurchaseTime(), purchaseInfo.isAcknowledged(),
+                    purchaseInfo.isAutoRenewing(), purchaseInfo.getOriginalJson(), purchaseInfo.getSignature()));
+        }
+        return new EntitlementSnapshot(publishedAtMillis, inAppPurchasesFetched, subsPurchasesFetched, entries);
+    }
+
+    /**
+     * Returns the wall-clock time of the purchase queries this snapshot is based on
+     * <p>
+     * Purchases made after the queries are included, but do not make the snapshot newer
+     */
+    public long getPublishedAtMillis() {
+        return publishedAtMillis;
+    }
+
+    /**
+     * Returns true if the IN-APP purchases of this snapshot come from a completed purchase query
+     */
+    public boolean isInAppPurchasesFetched() {
+        return inAppPurchasesFetched;
+    }
+
+    /**
+     * Returns true if the SUBS purchases of this snapshot come from a completed purchase query
+     */
+    public boolean isSubsPurchasesFetched() {
+        return subsPurchasesFetched;
+    }
+
+    @NonNull
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the entry of the given product, null if the product is not owned
+     */
+    @Nullable
+    public Entry getEntry(String productId) {
+        for (Entry entry : entries) {
+            if (entry.getProductId().equals(productId)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the given product is owned and in PURCHASED state
+     */
+    public boolean isEntitled(String productId) {
+        Entry entry = getEntry(productId);
+        return entry != null && entry.isPurchased();
+    }
+
+    public static final class Entry {
+
+        private final String productId;
+        private final SkuProductType skuProductType;
+        private final String purchaseToken;
+        private final int purchaseState;
+        private final long purchaseTime;
+        private final boolean isAcknowledged;
+        private final boolean isAutoRenewing;
+        private final String originalJson;
+        private final String signature;
+
+        public Entry(String productId, SkuProductType skuProductType, String purchaseToken, int purchaseState, long purchaseTime,
+                     boolean isAcknowledged, boolean isAutoRenewing, String originalJson, String signature) {
+            this.productId = productId;
+            this.skuProductType = skuProductType;
+            this.purchaseToken = purchaseToken;
+            this.purchaseState = purchaseState;
+            this.purchaseTime = purchaseTime;
+            this.isAcknowledged = isAcknowledged;
+            this.isAutoRenewing = isAutoRenewing;
+            this.originalJson = originalJson;
+            this.signature = signature;
+        }
+
+        public String getProductId() {
+            return productId;
+        }
+
+        public SkuProductType getSkuProductType() {
+            return skuProductType;
+        }
+
+        public String getPurchaseToken() {
+            return purchaseToken;
+        }
+
+        public int getPurchaseState() {
+            return purchaseState;
+        }
+
+        public long getPurchaseTime() {
+            return purchaseTime;
+        }
+
+        public boolean isAcknowledged() {
+            return isAcknowledged;
+        }
+
+        public boolean isAutoRenewing() {
+            return isAutoRenewing;
+        }
+
+        /**
+         * Returns the original purchase json, which can be verified again with the signature
+         */
+        public String getOriginalJson() {
+            return originalJson;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public boolean isPurchased() {
+            return purchaseState == Purchase.PurchaseState.PURCHASED;
+        }
+
+        public boolean isPending() {
+            return purchaseState == Purchase.PurchaseState.PENDING;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Credit recorded by the ConsumableLedger for a consumed purchase
+ */
+public final class LedgerEntry {
+
+    private final String productId;
+    private final String purchaseToken;
+    private final String currency;
+    private final long amount;
+    private final long creditedAtMillis;
+
+    public LedgerEntry(@NonNull String productId, @NonNull String purchaseToken, @NonNull String currency, long amount, long creditedAtMillis) {
+        this.productId = productId;
+        this.purchaseToken = purchaseToken;
+        this.currency = currency;
+        this.amount = amount;
+        this.creditedAtMillis = creditedAtMillis;
+    }
+
+    @NonNull
+    public String getProductId() {
+        return productId;
+    }
+
+    @NonNull
+    public String getPurchaseToken() {
+        return purchaseToken;
+    }
+
+    @NonNull
+    public String getCurrency() {
+        return currency;
+    }
+
+    /**
+     * Returns the credited amount, the amount per unit multiplied by the purchased quantity
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getCreditedAtMillis() {
+        return creditedAtMillis;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "LedgerEntry[" +
+                "productId='" + productId + '\'' +
+                ", currency='" + currency + '\'' +
+                ", amount=" + amount +
+                ", creditedAtMillis=" + creditedAtMillis +
+                ']';
+    }
+}
@@ -0,0 +1,147 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Normalized pricing of a subscription offer, computed once when product details are fetched
+ * <p>
+ * The effective prices spread the first-year cost (free trial and intro phases included) over the
+ * year, so offers with different billing periods and phases can be compared directly
+ */
+public final class OfferPricing {
+
+    //matches ProductDetails.RecurrenceMode
+    private static final int INFINITE_RECURRING = 1;
+    private static final int FINITE_RECURRING = 2;
+    private static final int NON_RECURRING = 3;
+
+    private static final double MONTHS_PER_YEAR = 12.0;
+
+    //absorbs rounding of month lengths, so 12 x P1M fills a year exactly
+    private static final double DAYS_EPSILON = 1e-6;
+
+    private final String priceCurrencyCode;
+    private final int freeTrialDays;
+    private final long firstYearCostMicros;
+    private final long effectivePricePerDayMicros;
+    private final long effectivePricePerMonthMicros;
+    private final long recurringPricePerMonthMicros;
+
+    private OfferPricing(String priceCurrencyCode, int freeTrialDays, long firstYearCostMicros, long recurringPricePerMonthMicros) {
+        this.priceCurrencyCode = priceCurrencyCode;
+        this.freeTrialDays = freeTrialDays;
+        this.firstYearCostMicros = firstYearCostMicros;
+        this.effectivePricePerDayMicros = Math.round(firstYearCostMicros / BillingPeriod.DAYS_PER_YEAR);
+        this.effectivePricePerMonthMicros = Math.round(firstYearCostMicros / MONTHS_PER_YEAR);
+        this.recurringPricePerMonthMicros = recurringPricePerMonthMicros;
+    }
+
+    /**
+     * Computes the pricing of an offer from its pricing phases
+     *
+     * @param pricingPhases - are the pricing phases of the offer, in the order they are billed
+     */
+    @NonNull
+    public static OfferPricing from(@NonNull List<SubscriptionOfferDetails.PricingPhases> pricingPhases) {
+        String priceCurrencyCode = null;
+        double freeTrialDays = 0;
+        boolean inFreeTrial = true;
+
+        double daysLeftInYear = BillingPeriod.DAYS_PER_YEAR;
+        long firstYearCostMicros = 0;
+        long recurringPricePerMonthMicros = 0;
+
+        for (SubscriptionOfferDetails.PricingPhases pricingPhase : pricingPhases) {
+            if (priceCurrencyCode == null) {
+                priceCurrencyCode = pricingPhase.getPriceCurrencyCode();
+            }
+
+            double periodDays = BillingPeriod.parse(pricingPhase.getBillingPeriod()).toDays();
+            if (periodDays <= 0) {
+                continue;
+            }
+
+            int cycles = billingCycles(pricingPhase);
+
+            if (inFreeTrial && pricingPhase.getPriceAmountMicros() == 0) {
+                freeTrialDays += periodDays * (cycles == Integer.MAX_VALUE ? 1 : cycles);
+            } else {
+                inFreeTrial = false;
+            }
+
+            //each cycle is billed at its start, so a cycle starting before the year ends counts fully
+            for (int cycle = 0; cycle < cycles && daysLeftInYear > DAYS_EPSILON; cycle++) {
+                firstYearCostMicros += pricingPhase.getPriceAmountMicros();
+                daysLeftInYear -= periodDays;
+            }
+
+            recurringPricePerMonthMicros = Math.round(pricingPhase.getPriceAmountMicros() * BillingPeriod.DAYS_PER_MONTH / periodDays);
+        }
+
+        return new OfferPricing(priceCurrencyCode, (int) Math.round(freeTrialDays), firstYearCostMicros, recurringPricePerMonthMicros);
+    }
+
+    private static int billingCycles(@NonNull SubscriptionOfferDetails.PricingPhases pricingPhase) {
+        switch (pricingPhase.getRecurrenceMode()) {
+            case INFINITE_RECURRING:
+                return Integer.MAX_VALUE;
+            case FINITE_RECURRING:
+                return Math.max(pricingPhase.getBillingCycleCount(), 1);
+            case NON_RECURRING:
+            default:
+                return 1;
+        }
+    }
+
+    public String getPriceCurrencyCode() {
+        return priceCurrencyCode;
+    }
+
+    /**
+     * Returns the length of the free trial in days, 0 if the offer has no free trial
+     */
+    public int getFreeTrialDays() {
+        return freeTrialDays;
+    }
+
+    public boolean hasFreeTrial() {
+        return freeTrialDays > 0;
+    }
+
+    /**
+     * Returns the amount billed during the first 365 days of the subscription
+     */
+    public long getFirstYearCostMicros() {
+        return firstYearCostMicros;
+    }
+
+    public long getEffectivePricePerDayMicros() {
+        return effectivePricePerDayMicros;
+    }
+
+    public long getEffectivePricePerMonthMicros() {
+        return effectivePricePerMonthMicros;
+    }
+
+    /**
+     * Returns the monthly price of the last pricing phase, which is the price paid after all intro phases end
+     */
+    public long getRecurringPricePerMonthMicros() {
+        return recurringPricePerMonthMicros;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "OfferPricing[" +
+                "priceCurrencyCode='" + priceCurrencyCode + '\'' +
+                ", freeTrialDays=" + freeTrialDays +
+                ", firstYearCostMicros=" + firstYearCostMicros +
+                ", effectivePricePerDayMicros=" + effectivePricePerDayMicros +
+                ", effectivePricePerMonthMicros=" + effectivePricePerMonthMicros +
+                ", recurringPricePerMonthMicros=" + recurringPricePerMonthMicros +
+                ']';
+    }
+}
@@ -0,0 +1,61 @@
+package games.moisoni.google_iab.models;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Verified purchase waiting in the PurchaseOutbox to be delivered to the game server
+ */
+public final class OutboxEntry {
+
+    private final String productId;
+    private final String purchaseToken;
+    private final String originalJson;
+    private final String signature;
+
+    public OutboxEntry(@NonNull String productId, @NonNull String purchaseToken, @NonNull String originalJson, @NonNull String signature) {
+        this.productId = productId;
+        this.purchaseToken = purchaseToken;
+        this.originalJson = originalJson;
+        this.signature = signature;
+    }
+
+    @NonNull
+    public static OutboxEntry of(@NonNull PurchaseInfo purchaseInfo) {
+        return new OutboxEntry(purchaseInfo.getProduct(), purchaseInfo.getPurchaseToken(), purchaseInfo.getOriginalJson(), purchaseInfo.getSignature());
+    }
+
+    @NonNull
+    public String getProductId() {
+        return productId;
+    }
+
+    /**
+     * Returns the purchase token, which identifies the entry and should be used by the server to deduplicate
+     */
+    @NonNull
+    public String getPurchaseToken() {
+        return purchaseToken;
+    }
+
+    /**
+     * Returns the original purchase json, which the server can verify with the signature
+     */
+    @NonNull
+    public String getOriginalJson() {
+        return originalJson;
+    }
+
+    @NonNull
+    public String getSignature() {
+        return signature;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "OutboxEntry[" +
+                "productId='" + productId + '\'' +
+                ", purchaseToken='" + purchaseToken + '\'' +
+                ']';
+    }
+}
@@ -1,12 +1,17 @@
 package games.moisoni.google_iab.models;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.android.billingclient.api.ProductDetails;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import games.moisoni.google_iab.enums.SkuProductType;
 
@@ -24,6 +29,17 @@ public class ProductInfo {
     private final String oneTimePurchaseOfferPriceCurrencyCode;
     private final List<SubscriptionOfferDetails> subscriptionOfferDetails;
 
+    //offer index built once per fetch, so callers never have to scan the offer list
+    private final Map<String, SubscriptionOfferDetails> offersByKey = new HashMap<>();
+    private final Map<String, List<SubscriptionOfferDetails>> offersByBasePlanId = new HashMap<>();
+    private final Map<String, List<SubscriptionOfferDetails>> offersByTag = new HashMap<>();
+
+    //offers ranked by effective monthly price, cheapest first
+    private static final Comparator<SubscriptionOfferDetails> BY_EFFECTIVE_MONTHLY_PRICE =
+            Comparator.comparingLong(offer -> offer.getPricing().getEffectivePricePerMonthMicros());
+    private final List<SubscriptionOfferDetails> rankedOffers = new ArrayList<>();
+    private final Map<String, List<SubscriptionOfferDetails>> rankedOffersByBasePlanId = new HashMap<>();
+
     public ProductInfo(SkuProductType skuProductType, @NonNull ProductDetails productDetails) {
         this.skuProductType = skuProductType;
         this.productDetails = productDetails;
@@ -51,8 +67,11 @@ public class ProductInfo {
             for (ProductDetails.SubscriptionOfferDetails details : offerDetailsList) {
                 SubscriptionOfferDetails newOfferDetails = createSubscriptionOfferDetails(details);
                 this.subscriptionOfferDetails.add(newOfferDetails);
+                indexSubscriptionOffer(newOfferDetails);
             }
         }
+
+        rankSubscriptionOffers();
     }
 
     public SkuProductType getSkuProductType() {
@@ -99,6 +118,140 @@ public class ProductInfo {
         return Collections.unmodifiableList(subscriptionOfferDetails);
     }
 
+    /**
+     * Returns the subscription offer for the given base plan and offer id
+     *
+     * @param basePlanId - is the base plan id from Play Console
+     * @param offerId    - is the offer id, or null for the base plan offer itself
+     */
+    @Nullable
+    public SubscriptionOfferDetails findSubscriptionOffer(String basePlanId, @Nullable String offerId) {
+        return offersByKey.get(offerKey(basePlanId, offerId));
+    }
+
+    /**
+     * Returns all subscription offers of the given base plan, in the order provided by Play Console
+     */
+    @NonNull
+    public List<SubscriptionOfferDetails> getSubscriptionOffersForBasePlan(String basePlanId) {
+        List<SubscriptionOfferDetails> offers = offersByBasePlanId.get(basePlanId);
+        return offers != null ? Collections.unmodifiableList(offers) : Collections.emptyList();
+    }
+
+    /**
+     * Returns all subscription offers carrying the given offer tag, in the order provided by Play Console
+     */
+    @NonNull
+    public List<SubscriptionOfferDetails> getSubscriptionOffersByTag(String offerTag) {
+        List<SubscriptionOfferDetails> offers = offersByTag.get(offerTag);
+        return offers != null ? Collections.unmodifiableList(offers) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the offer with the lowest effective monthly price across all base plans, null for IN-APP products
+     */
+    @Nullable
+    public SubscriptionOfferDetails getCheapestOffer() {
+        return rankedOffers.isEmpty() ? null : rankedOffers.get(0);
+    }
+
+    /**
+     * Returns the offer of the given base plan with the lowest effective monthly price
+     *
+     * @param basePlanId - is the base plan id from Play Console
+     */
+    @Nullable
+    public SubscriptionOfferDetails getCheapestOffer(String basePlanId) {
+        List<SubscriptionOfferDetails> offers = rankedOffersByBasePlanId.get(basePlanId);
+        return offers == null || offers.isEmpty() ? null : offers.get(0);
+    }
+
+    /**
+     * Returns all offers ranked by effective monthly price, cheapest first
+     */
+    @NonNull
+    public List<SubscriptionOfferDetails> getOffersRankedByEffectivePrice() {
+        return Collections.unmodifiableList(rankedOffers);
+    }
+
+    /**
+     * Returns the offers of the given base plan ranked by effective monthly price, cheapest first
+     *
+     * @param basePlanId - is the base plan id from Play Console
+     */
+    @NonNull
+    public List<SubscriptionOfferDetails> getOffersRankedByEffectivePrice(String basePlanId) {
+        List<SubscriptionOfferDetails> offers = rankedOffersByBasePlanId.get(basePlanId);
+        return offers != null ? Collections.unmodifiableList(offers) : Collections.emptyList();
+    }
+
+    /**
+     * Returns true if the other product has the same one-time price and the same subscription offers
+     * <p>
+     * Offers are compared by offer token and pricing phases, so an added or removed offer counts as a change
+     *
+     * @param other - is a newer fetch of the same product
+     */
+    public boolean hasSamePricing(@NonNull ProductInfo other) {
+        if (oneTimePurchaseOfferPriceAmountMicros != other.oneTimePurchaseOfferPriceAmountMicros
+                || !Objects.equals(oneTimePurchaseOfferPriceCurrencyCode, other.oneTimePurchaseOfferPriceCurrencyCode)
+                || !Objects.equals(oneTimePurchaseOfferFormattedPrice, other.oneTimePurchaseOfferFormattedPrice)) {
+            return false;
+        }
+
+        if (subscriptionOfferDetails.size() != other.subscriptionOfferDetails.size()) {
+            return false;
+        }
+
+        for (SubscriptionOfferDetails offerDetails : subscriptionOfferDetails) {
+            SubscriptionOfferDetails otherOfferDetails = other.offersByKey.get(offerKey(offerDetails.getBasePlanId(), offerDetails.getOfferId()));
+            if (otherOfferDetails == null
+                    || !Objects.equals(offerDetails.getOfferToken(), otherOfferDetails.getOfferToken())
+                    || !offerDetails.getPricingPhases().equals(otherOfferDetails.getPricingPhases())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rankSubscriptionOffers() {
+        rankedOffers.addAll(subscriptionOfferDetails);
+        rankedOffers.sort(BY_EFFECTIVE_MONTHLY_PRICE);
+
+        for (Map.Entry<String, List<SubscriptionOfferDetails>> entry : offersByBasePlanId.entrySet()) {
+            List<SubscriptionOfferDetails> offers = new ArrayList<>(entry.getValue());
+            offers.sort(BY_EFFECTIVE_MONTHLY_PRICE);
+            rankedOffersByBasePlanId.put(entry.getKey(), offers);
+        }
+    }
+
+    private void indexSubscriptionOffer(@NonNull SubscriptionOfferDetails offerDetails) {
+        offersByKey.put(offerKey(offerDetails.getBasePlanId(), offerDetails.getOfferId()), offerDetails);
+
+        List<SubscriptionOfferDetails> basePlanOffers = offersByBasePlanId.get(offerDetails.getBasePlanId());
+        if (basePlanOffers == null) {
+            basePlanOffers = new ArrayList<>();
+            offersByBasePlanId.put(offerDetails.getBasePlanId(), basePlanOffers);
+        }
+        basePlanOffers.add(offerDetails);
+
+        if (offerDetails.getOfferTags() != null) {
+            for (String offerTag : offerDetails.getOfferTags()) {
+                List<SubscriptionOfferDetails> taggedOffers = offersByTag.get(offerTag);
+                if (taggedOffers == null) {
+                    taggedOffers = new ArrayList<>();
+                    offersByTag.put(offerTag, taggedOffers);
+                }
+                taggedOffers.add(offerDetails);
+            }
+        }
+    }
+
+    @NonNull
+    private static String offerKey(String basePlanId, @Nullable String offerId) {
+        return offerId == null ? basePlanId + '/' : basePlanId + '/' + offerId;
+    }
+
     @NonNull
     private SubscriptionOfferDetails createSubscriptionOfferDetails(@NonNull ProductDetails.SubscriptionOfferDetails offerDetails) {
         return new SubscriptionOfferDetails(offerDetails.getOfferId(), offerDetails.getPricingPhases().getPricingPhaseList(), offerDetails.getOfferTags(), offerDetails.getOfferToken(), offerDetails.getBasePlanId());
@@ -10,54 +10,36 @@ import java.util.List;
 
 import games.moisoni.google_iab.enums.SkuProductType;
 
+/**
+ * Lightweight view over a {@link Purchase}
+ * <p>
+ * Only the fields that are read on hot paths (token, product, state and time) are copied
+ * Everything else is delegated to the wrapped purchase on demand, so the strings held by
+ * the purchase (original json, signature, payload etc.) are never retained twice
+ */
 public class PurchaseInfo {
 
-    private final SkuProductType skuProductType;
     private final ProductInfo productInfo;
     private final Purchase purchase;
 
     private final String product;
-
-    private final AccountIdentifiers accountIdentifiers;
-    private final List<String> products;
-
-    private final String orderId;
     private final String purchaseToken;
-    private final String originalJson;
-    private final String developerPayload;
-    private final String packageName;
-    private final String signature;
 
-    private final int quantity;
     private final int purchaseState;
 
     private final long purchaseTime;
 
-    private final boolean isAcknowledged;
-    private final boolean isAutoRenewing;
-
     public PurchaseInfo(@NonNull ProductInfo productInfo, @NonNull Purchase purchase) {
         this.productInfo = productInfo;
         this.purchase = purchase;
         this.product = productInfo.getProduct();
-        this.skuProductType = productInfo.getSkuProductType();
-        this.accountIdentifiers = purchase.getAccountIdentifiers();
-        this.products = purchase.getProducts();
-        this.orderId = purchase.getOrderId();
         this.purchaseToken = purchase.getPurchaseToken();
-        this.originalJson = purchase.getOriginalJson();
-        this.developerPayload = purchase.getDeveloperPayload();
-        this.packageName = purchase.getPackageName();
-        this.signature = purchase.getSignature();
-        this.quantity = purchase.getQuantity();
         this.purchaseState = purchase.getPurchaseState();
         this.purchaseTime = purchase.getPurchaseTime();
-        this.isAcknowledged = purchase.isAcknowledged();
-        this.isAutoRenewing = purchase.isAutoRenewing();
     }
 
     public SkuProductType getSkuProductType() {
-        return skuProductType;
+        return productInfo.getSkuProductType();
     }
 
     public ProductInfo getProductInfo() {
@@ -73,15 +55,15 @@ public class PurchaseInfo {
     }
 
     public AccountIdentifiers getAccountIdentifiers() {
-        return accountIdentifiers;
+        return purchase.getAccountIdentifiers();
     }
 
     public List<String> getProducts() {
-        return Collections.unmodifiableList(products);
+        return Collections.unmodifiableList(purchase.getProducts());
     }
 
     public String getOrderId() {
-        return orderId;
+        return purchase.getOrderId();
     }
 
     public String getPurchaseToken() {
@@ -89,23 +71,23 @@ public class PurchaseInfo {
     }
 
     public String getOriginalJson() {
-        return originalJson;
+        return purchase.getOriginalJson();
     }
 
     public String getDeveloperPayload() {
-        return developerPayload;
+        return purchase.getDeveloperPayload();
     }
 
     public String getPackageName() {
-        return packageName;
+        return purchase.getPackageName();
     }
 
     public String getSignature() {
-        return signature;
+        return purchase.getSignature();
     }
 
     public int getQuantity() {
-        return quantity;
+        return purchase.getQuantity();
     }
 
     public int getPurchaseState() {
@@ -117,11 +99,11 @@ public class PurchaseInfo {
     }
 
     public boolean isAcknowledged() {
-        return isAcknowledged;
+        return purchase.isAcknowledged();
     }
 
     public boolean isAutoRenewing() {
-        return isAutoRenewing;
+        return purchase.isAutoRenewing();
     }
 
     public boolean isPurchased() {
@@ -131,4 +113,4 @@ public class PurchaseInfo {
     public boolean isPending() {
         return purchaseState == Purchase.PurchaseState.PENDING;
     }
-}
\ No newline at end of file
+}
@@ -15,6 +15,7 @@ public class SubscriptionOfferDetails {
     private final String offerToken;
     private final String basePlanId;
     private final List<PricingPhases> pricingPhases;
+    private final OfferPricing pricing;
 
     public SubscriptionOfferDetails(String offerId, List<ProductDetails.PricingPhase> pricingPhases, List<String> offerTags, String offerToken, String basePlanId) {
         this.offerId = offerId;
@@ -30,6 +31,8 @@ public class SubscriptionOfferDetails {
                 this.pricingPhases.add(newPricingPhase);
             }
         }
+
+        this.pricing = OfferPricing.from(this.pricingPhases);
     }
 
     public String getOfferId() {
@@ -52,6 +55,13 @@ public class SubscriptionOfferDetails {
         return pricingPhases;
     }
 
+    /**
+     * Returns the normalized pricing of this offer, computed once when product details are fetched
+     */
+    public OfferPricing getPricing() {
+        return pricing;
+    }
+
     @NonNull
     private PricingPhases createPricingPhase(@NonNull ProductDetails.PricingPhase pricingPhase) {
         return new PricingPhases(pricingPhase.getFormattedPrice(), pricingPhase.getPriceAmountMicros(), pricingPhase.getPriceCurrencyCode(),
@@ -0,0 +1,193 @@
+package games.moisoni.google_ad.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdPoolTest {
+
+    private static final long SHOW_RATE_WINDOW_MS = 5 * 60 * 1000L;
+
+    //starts away from 0, which the pool uses for "never shown"
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    @Test
+    public void targetDepth_followsTheRecentShows() {
+        AdPool<String> pool = new AdPool<>(1, 3, now::get);
+        assertEquals(1, pool.getTargetDepth());
+
+        fillNext(pool, "a");
+        pool.poll();
+        fillNext(pool, "b");
+        pool.poll();
+        assertEquals(3, pool.getTargetDepth());
+
+        //capped by the maximum depth
+        fillNext(pool, "c");
+        pool.poll();
+        assertEquals(3, pool.getTargetDepth());
+
+        //shows older than the window no longer count
+        now.addAndGet(SHOW_RATE_WINDOW_MS + 1);
+        assertEquals(1, pool.getTargetDepth());
+    }
+
+    @Test
+    public void targetDepth_isCappedByTheDepthLimit() {
+        AdPool<String> pool = new AdPool<>(3, 4, now::get);
+        pool.setDepthLimit(2);
+
+        assertEquals(2, pool.getTargetDepth());
+        assertTrue(pool.reserveSlot() >= 0);
+        assertTrue(pool.reserveSlot() >= 0);
+        assertEquals(-1, pool.reserveSlot());
+    }
+
+    @Test
+    public void reserveSlot_stopsAtTheTargetDepth() {
+        AdPool<String> pool = new AdPool<>(2, 4, now::get);
+
+        int first = pool.reserveSlot();
+        int second = pool.reserveSlot();
+        assertTrue(first >= 0 && second >= 0 && first != second);
+        assertEquals(-1, pool.reserveSlot());
+
+        //a released reservation can be taken again
+        pool.release(first);
+        assertEquals(first, pool.reserveSlot());
+    }
+
+    @Test
+    public void poll_servesTheOldestLoadFirst() {
+        AdPool<String> pool = new AdPool<>(3, 3, now::get);
+        int slot0 = pool.reserveSlot();
+        int slot1 = pool.reserveSlot();
+        int slot2 = pool.reserveSlot();
+
+        //loads complete out of slot order
+        pool.fill(slot2, "first");
+        pool.fill(slot0, "second");
+        pool.fill(slot1, "third");
+
+        assertEquals("first", pool.poll());
+        assertEquals("second", pool.poll());
+        assertEquals("third", pool.poll());
+        assertNull(pool.poll());
+    }
+
+    @Test
+    public void concurrentPoll_servesEveryAdOnce() throws InterruptedException {
+        int depth = 4;
+        AdPool<String> pool = new AdPool<>(depth, depth, now::get);
+        for (int i = 0; i < depth; i++) {
+            pool.fill(pool.reserveSlot(), "ad_" + i);
+        }
+
+        int threadCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        List<String> served = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    String ad = pool.poll();
+                    if (ad != null) {
+                        served.add(ad);
+                    }
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        Set<String> distinct = new HashSet<>(served);
+        assertEquals(depth, served.size());
+        assertEquals(depth, distinct.size());
+    }
+
+    @Test
+    public void adsPastTheMaxAge_areNeverServed() {
+        AdPool<String> pool = new AdPool<>(1, 1, now::get);
+        fillNext(pool, "expired");
+
+        now.addAndGet(AdPool.MAX_AD_AGE_MS);
+        assertEquals(1, pool.getReadyCount());
+
+        now.addAndGet(1);
+        assertEquals(0, pool.getReadyCount());
+        assertFalse(pool.hasReadyAd());
+        assertNull(pool.poll());
+
+        //the poll evicted it, so its slot can load again
+        assertTrue(pool.reserveSlot() >= 0);
+    }
+
+    @Test
+    public void evictOlderThan_refreshAge_removesOnlyOldAds() {
+        AdPool<String> pool = new AdPool<>(2, 2, now::get);
+        fillNext(pool, "old");
+        now.addAndGet(AdPool.REFRESH_AD_AGE_MS - 1000L);
+        fillNext(pool, "fresh");
+        assertEquals(1000L, pool.getMillisUntilAge(AdPool.REFRESH_AD_AGE_MS));
+
+        now.addAndGet(1001L);
+        assertEquals(1, pool.evictOlderThan(AdPool.REFRESH_AD_AGE_MS));
+
+        assertEquals("fresh", pool.poll());
+        assertEquals(-1, pool.getMillisUntilAge(AdPool.REFRESH_AD_AGE_MS));
+    }
+
+    @Test
+    public void fillRate_countsOnlyNoFillFailures() {
+        AdPool<String> pool = new AdPool<>(2, 2, now::get);
+        assertEquals(0.5, pool.getFillRate(), 0.0001);
+
+        int slot = pool.reserveSlot();
+        assertEquals(1, pool.recordFailure(slot, true));
+        //a network failure counts for the backoff but not for the fill rate
+        assertEquals(2, pool.recordFailure(slot, false));
+        pool.fill(slot, "ad");
+
+        //(1 success + 1) / (1 success + 1 no fill + 2)
+        assertEquals(0.5, pool.getFillRate(), 0.0001);
+    }
+
+    @Test
+    public void failureCount_isResetPerSlotByASuccessfulLoad() {
+        AdPool<String> pool = new AdPool<>(2, 2, now::get);
+        int first = pool.reserveSlot();
+        int second = pool.reserveSlot();
+
+        pool.recordFailure(first, true);
+        pool.recordFailure(first, true);
+        pool.recordFailure(second, true);
+        pool.fill(first, "ad");
+
+        assertEquals(2, pool.recordFailure(second, true));
+        pool.poll();
+        assertEquals(first, pool.reserveSlot());
+        assertEquals(1, pool.recordFailure(first, true));
+    }
+
+    private static void fillNext(AdPool<String> pool, String ad) {
+        int slot = pool.reserveSlot();
+        assertTrue("no slot to fill", slot >= 0);
+        pool.fill(slot, ad);
+    }
+}
@@ -0,0 +1,97 @@
+package games.moisoni.google_ad.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gms.ads.AdRequest;
+
+import org.junit.Test;
+
+public class DefaultAdLoadBackoffPolicyTest {
+
+    private static final long INITIAL_DELAY_MS = 5_000;
+    private static final long MAX_DELAY_MS = 10 * 60 * 1000L;
+    private static final int SAMPLES = 200;
+
+    private final DefaultAdLoadBackoffPolicy policy = new DefaultAdLoadBackoffPolicy();
+
+    @Test
+    public void networkError_waitsForTheNetwork() {
+        assertEquals(AdLoadBackoffPolicy.WHEN_CONNECTED, policy.getRetryDelayMillis(AdRequest.ERROR_CODE_NETWORK_ERROR, 1));
+        assertEquals(AdLoadBackoffPolicy.WHEN_CONNECTED, policy.getRetryDelayMillis(AdRequest.ERROR_CODE_NETWORK_ERROR, 5));
+    }
+
+    @Test
+    public void invalidRequests_areNeverRetried() {
+        int[] errorCodes = {
+                AdRequest.ERROR_CODE_INVALID_REQUEST,
+                AdRequest.ERROR_CODE_APP_ID_MISSING,
+                AdRequest.ERROR_CODE_REQUEST_ID_MISMATCH,
+                AdRequest.ERROR_CODE_INVALID_AD_STRING
+        };
+        for (int errorCode : errorCodes) {
+            assertEquals("error " + errorCode, AdLoadBackoffPolicy.NO_RETRY, policy.getRetryDelayMillis(errorCode, 1));
+        }
+    }
+
+    @Test
+    public void noFillAndInternalErrors_backOff() {
+        int[] errorCodes = {
+                AdRequest.ERROR_CODE_NO_FILL,
+                AdRequest.ERROR_CODE_MEDIATION_NO_FILL,
+                AdRequest.ERROR_CODE_INTERNAL_ERROR,
+                //unknown codes back off as well
+                99
+        };
+        for (int errorCode : errorCodes) {
+            assertDelayWithin(errorCode, 1, INITIAL_DELAY_MS);
+        }
+    }
+
+    @Test
+    public void delay_doublesWithEachAttempt() {
+        for (int attempt = 1; attempt <= 7; attempt++) {
+            assertDelayWithin(AdRequest.ERROR_CODE_NO_FILL, attempt, INITIAL_DELAY_MS << (attempt - 1));
+        }
+    }
+
+    @Test
+    public void delay_isCappedAtTheMaximum() {
+        assertDelayWithin(AdRequest.ERROR_CODE_NO_FILL, 8, MAX_DELAY_MS);
+        assertDelayWithin(AdRequest.ERROR_CODE_NO_FILL, 1_000, MAX_DELAY_MS);
+    }
+
+    @Test
+    public void attemptBelowOne_usesTheInitialDelay() {
+        assertDelayWithin(AdRequest.ERROR_CODE_NO_FILL, 0, INITIAL_DELAY_MS);
+        assertDelayWithin(AdRequest.ERROR_CODE_NO_FILL, -3, INITIAL_DELAY_MS);
+    }
+
+    @Test
+    public void delay_isJittered() {
+        long first = policy.getRetryDelayMillis(AdRequest.ERROR_CODE_NO_FILL, 4);
+        boolean varies = false;
+        for (int i = 0; i < SAMPLES && !varies; i++) {
+            varies = policy.getRetryDelayMillis(AdRequest.ERROR_CODE_NO_FILL, 4) != first;
+        }
+        assertTrue("Retries of different slots must not line up", varies);
+    }
+
+    @Test
+    public void onlyNoFill_countsAgainstTheFillRate() {
+        assertTrue(AdLoadRetries.isNoFill(AdRequest.ERROR_CODE_NO_FILL));
+        assertTrue(AdLoadRetries.isNoFill(AdRequest.ERROR_CODE_MEDIATION_NO_FILL));
+        assertFalse(AdLoadRetries.isNoFill(AdRequest.ERROR_CODE_NETWORK_ERROR));
+        assertFalse(AdLoadRetries.isNoFill(AdRequest.ERROR_CODE_INTERNAL_ERROR));
+        assertFalse(AdLoadRetries.isNoFill(AdRequest.ERROR_CODE_INVALID_REQUEST));
+    }
+
+    private void assertDelayWithin(int errorCode, int attempt, long delay) {
+        for (int i = 0; i < SAMPLES; i++) {
+            long actual = policy.getRetryDelayMillis(errorCode, attempt);
+            assertTrue("attempt " + attempt + ": " + actual + " < " + delay / 2, actual >= delay / 2);
+            assertTrue("attempt " + attempt + ": " + actual + " > " + delay, actual <= delay);
+        }
+    }
+}
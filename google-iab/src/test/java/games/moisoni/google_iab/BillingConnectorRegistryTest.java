@@ -0,0 +1,199 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+
+import com.android.billingclient.api.BillingClient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.ErrorType;
+import games.moisoni.google_iab.enums.ProductType;
+import games.moisoni.google_iab.listeners.BillingEventListener;
+import games.moisoni.google_iab.models.BillingResponse;
+import games.moisoni.google_iab.models.ProductInfo;
+import games.moisoni.google_iab.models.PurchaseInfo;
+
+public class BillingConnectorRegistryTest {
+
+    private static final String KEY = "catalog";
+
+    //delayed runnables of the grace period, run by hand
+    private final List<Runnable> delayed = new ArrayList<>();
+    private final List<BillingConnector> created = new ArrayList<>();
+
+    private Handler handler;
+    private BillingConnectorRegistry registry;
+
+    @Before
+    public void setUp() {
+        handler = mock(Handler.class);
+        //connector callbacks run right away, as if posted on the main thread
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return true;
+        }).when(handler).post(any(Runnable.class));
+        doAnswer(invocation -> delayed.add(invocation.getArgument(0))).when(handler).postDelayed(any(Runnable.class), anyLong());
+        doAnswer(invocation -> delayed.remove(invocation.<Runnable>getArgument(0))).when(handler).removeCallbacks(any(Runnable.class));
+
+        registry = new BillingConnectorRegistry(handler);
+    }
+
+    @Test
+    public void acquire_sharesOneConnectorBetweenOwners() {
+        FakeLifecycleOwner first = new FakeLifecycleOwner();
+        FakeLifecycleOwner second = new FakeLifecycleOwner();
+
+        BillingConnector connector = registry.acquire(first, KEY, this::createConnector);
+
+        assertSame(connector, registry.acquire(second, KEY, this::createConnector));
+        assertEquals(1, created.size());
+        assertEquals(2, registry.getReferenceCount(KEY));
+    }
+
+    @Test
+    public void release_ofOneOwner_keepsTheConnectorForTheOthers() {
+        FakeLifecycleOwner first = new FakeLifecycleOwner();
+        FakeLifecycleOwner second = new FakeLifecycleOwner();
+        registry.acquire(first, KEY, this::createConnector);
+        registry.acquire(second, KEY, this::createConnector);
+
+        first.destroy();
+
+        assertEquals(1, registry.getReferenceCount(KEY));
+        assertEquals(0, first.getObserverCount());
+        assertTrue(delayed.isEmpty());
+    }
+
+    @Test
+    public void lastRelease_keepsTheConnectorWarmForTheGracePeriod() {
+        FakeLifecycleOwner first = new FakeLifecycleOwner();
+        BillingConnector connector = registry.acquire(first, KEY, this::createConnector);
+        first.destroy();
+
+        assertEquals(0, registry.getReferenceCount(KEY));
+        assertEquals(1, delayed.size());
+
+        //a configuration change recreates the activity before the grace period ends
+        FakeLifecycleOwner recreated = new FakeLifecycleOwner();
+        assertSame(connector, registry.acquire(recreated, KEY, this::createConnector));
+        assertEquals(1, created.size());
+        assertEquals(1, registry.getReferenceCount(KEY));
+        assertTrue(delayed.isEmpty());
+    }
+
+    @Test
+    public void gracePeriodElapsed_releasesTheConnector() {
+        FakeLifecycleOwner first = new FakeLifecycleOwner();
+        BillingConnector connector = registry.acquire(first, KEY, this::createConnector);
+        first.destroy();
+
+        runDelayed();
+
+        assertNotSame(connector, registry.acquire(new FakeLifecycleOwner(), KEY, this::createConnector));
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void destroyedOwner_doesNotHoldAReference() {
+        registry.acquire(new FakeLifecycleOwner(Lifecycle.State.DESTROYED), KEY, this::createConnector);
+
+        assertEquals(0, registry.getReferenceCount(KEY));
+        assertEquals(1, delayed.size());
+    }
+
+    @Test
+    public void callbacksWhileDetached_areReplayedToTheNextListener() {
+        FakeLifecycleOwner first = new FakeLifecycleOwner();
+        BillingConnector connector = registry.acquire(first, KEY, this::createConnector);
+        RecordingListener destroyedListener = new RecordingListener();
+        connector.setBillingEventListener(destroyedListener);
+        first.destroy();
+
+        //fails with CLIENT_NOT_READY while no owner holds the connector
+        connector.purchase(null, "coins");
+
+        FakeLifecycleOwner recreated = new FakeLifecycleOwner();
+        registry.acquire(recreated, KEY, this::createConnector);
+        RecordingListener listener = new RecordingListener();
+        connector.setBillingEventListener(listener);
+
+        assertTrue(destroyedListener.errors.isEmpty());
+        assertEquals(1, listener.errors.size());
+        assertEquals(ErrorType.CLIENT_NOT_READY, listener.errors.get(0));
+
+        //replayed once only
+        connector.setBillingEventListener(listener);
+        assertEquals(1, listener.errors.size());
+    }
+
+    @Test
+    public void callbacksWithoutListener_areDroppedWhenNotDetachedByTheRegistry() {
+        BillingConnector connector = createConnector();
+        connector.purchase(null, "coins");
+
+        RecordingListener listener = new RecordingListener();
+        connector.setBillingEventListener(listener);
+
+        assertTrue(listener.errors.isEmpty());
+    }
+
+    private BillingConnector createConnector() {
+        BillingConnector connector = new BillingConnector(mock(Context.class), "key", mock(BillingClient.class), handler);
+        created.add(connector);
+        return connector;
+    }
+
+    private void runDelayed() {
+        List<Runnable> due = new ArrayList<>(delayed);
+        delayed.clear();
+        for (Runnable runnable : due) {
+            runnable.run();
+        }
+    }
+
+    private static final class RecordingListener implements BillingEventListener {
+        final List<ErrorType> errors = new ArrayList<>();
+
+        @Override
+        public void onProductsFetched(@NonNull List<ProductInfo> productDetails) {
+        }
+
+        @Override
+        public void onPurchasedProductsFetched(@NonNull ProductType productType, @NonNull List<PurchaseInfo> purchases) {
+        }
+
+        @Override
+        public void onProductsPurchased(@NonNull List<PurchaseInfo> purchases) {
+        }
+
+        @Override
+        public void onPurchaseAcknowledged(@NonNull PurchaseInfo purchase) {
+        }
+
+        @Override
+        public void onPurchaseConsumed(@NonNull PurchaseInfo purchase) {
+        }
+
+        @Override
+        public void onBillingError(@NonNull BillingConnector billingConnector, @NonNull BillingResponse response) {
+            errors.add(response.getErrorType());
+        }
+    }
+}
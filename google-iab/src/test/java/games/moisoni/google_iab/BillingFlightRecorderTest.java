@@ -0,0 +1,54 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import games.moisoni.google_iab.enums.FlightEventType;
+
+public class BillingFlightRecorderTest {
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() {
+        assertEquals(8, new BillingFlightRecorder(5).getCapacity());
+        assertEquals(256, new BillingFlightRecorder().getCapacity());
+    }
+
+    @Test
+    public void fullBuffer_keepsOnlyNewestEvents() {
+        BillingFlightRecorder recorder = new BillingFlightRecorder(4);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(FlightEventType.QUERY, i, "product_" + i, null);
+        }
+
+        String dump = recorder.dumpAsText();
+        assertEquals(10, recorder.getRecordedCount());
+        assertFalse(dump.contains("product_5"));
+        assertTrue(dump.contains("product_6"));
+        assertTrue(dump.contains("product_9"));
+        assertTrue(dump.indexOf("product_6") < dump.indexOf("product_9"));
+    }
+
+    @Test
+    public void jsonDump_escapesStrings() {
+        BillingFlightRecorder recorder = new BillingFlightRecorder(4);
+        recorder.record(FlightEventType.ERROR, 6, null, "say \"hi\"\n");
+
+        String json = recorder.dumpAsJson();
+        assertTrue(json.startsWith("{\"start\":"));
+        assertTrue(json.contains("\"type\":\"ERROR\",\"code\":6,\"msg\":\"say \\\"hi\\\"\\n\""));
+        assertTrue(json.endsWith("}]}"));
+    }
+
+    @Test
+    public void disabledRecorder_dropsEvents() {
+        BillingFlightRecorder recorder = new BillingFlightRecorder(4);
+        recorder.setEnabled(false);
+        recorder.record(FlightEventType.CONNECTION, 0, null, "connecting");
+
+        assertEquals(0, recorder.getRecordedCount());
+        assertTrue(recorder.dumpAsJson().endsWith("\"events\":[]}"));
+    }
+}
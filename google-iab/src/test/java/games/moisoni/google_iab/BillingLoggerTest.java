@@ -0,0 +1,77 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.Handler;
+
+import com.android.billingclient.api.BillingClient;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.LogLevel;
+
+public class BillingLoggerTest {
+
+    private static final int CALLS = 100_000;
+
+    @Test
+    public void isReady_withLoggingDisabled_allocatesNothing() {
+        BillingClient billingClient = mock(BillingClient.class);
+        when(billingClient.isReady()).thenReturn(false);
+        BillingConnector connector = new BillingConnector(mock(Context.class), "key", billingClient, mock(Handler.class));
+        connector.setLogLevel(LogLevel.NONE);
+
+        //isReady() asks the client once while disconnected, the mock allocates on its own
+        long clientBytes = allocatedBytes(billingClient::isReady);
+        long connectorBytes = allocatedBytes(connector::isReady);
+
+        long bytesPerCall = (connectorBytes - clientBytes) / CALLS;
+        assertTrue("bytes allocated per isReady() call besides the client: " + bytesPerCall, bytesPerCall < 16);
+    }
+
+    @Test
+    public void enabledLogging_formatsTemplatesForTheSink() {
+        BillingLogger logger = new BillingLogger("BillingLoggerTest");
+        List<String> messages = new ArrayList<>();
+        logger.setSink((level, tag, message, throwable) -> messages.add(level + " " + message));
+
+        logger.d("hidden");
+        logger.setLevel(LogLevel.DEBUG);
+        logger.d("Billing client is not ready yet");
+        logger.d("Retrying pending purchase ({}/{}) for: {}", 1, 3, "coins_100");
+        logger.d(() -> "lazy " + 42);
+        logger.setLevel(LogLevel.WARN);
+        logger.d("filtered");
+        logger.w("Missing {}", "arg", "extra");
+
+        assertEquals(4, messages.size());
+        assertEquals("DEBUG Billing client is not ready yet", messages.get(0));
+        assertEquals("DEBUG Retrying pending purchase (1/3) for: coins_100", messages.get(1));
+        assertEquals("DEBUG lazy 42", messages.get(2));
+        assertTrue(messages.get(3).startsWith("WARN Missing arg"));
+    }
+
+    private static long allocatedBytes(Runnable call) {
+        //warm up so the measured loop runs compiled code
+        for (int i = 0; i < CALLS; i++) {
+            call.run();
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < CALLS; i++) {
+            call.run();
+        }
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
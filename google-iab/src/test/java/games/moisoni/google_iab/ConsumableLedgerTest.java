@@ -0,0 +1,190 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import games.moisoni.google_iab.models.LedgerEntry;
+
+public class ConsumableLedgerTest {
+
+    private InMemorySharedPreferences preferences;
+    private ConsumableLedger ledger;
+
+    @Before
+    public void setUp() {
+        preferences = new InMemorySharedPreferences();
+        ledger = newLedger();
+    }
+
+    @Test
+    public void credit_multipliesTheAmountByTheQuantity() throws InterruptedException {
+        consume("coins_100", "token_1", 3);
+
+        LedgerEntry entry = ledger.settleCredit("token_1");
+        assertEquals(300L, entry.getAmount());
+        assertEquals("coins", entry.getCurrency());
+        assertEquals(300L, ledger.getBalance("coins"));
+    }
+
+    @Test
+    public void credit_withoutQuantity_creditsOneUnit() throws InterruptedException {
+        consume("coins_100", "token_1", 0);
+
+        assertEquals(100L, ledger.settleCredit("token_1").getAmount());
+    }
+
+    @Test
+    public void pendingCredit_isCommittedBeforeTheConsumption() throws InterruptedException {
+        AtomicInteger commitsBeforeConsume = new AtomicInteger(-1);
+        CountDownLatch consumed = new CountDownLatch(1);
+        ledger.beginCredit("coins_100", "token_1", 1, () -> {
+            commitsBeforeConsume.set(preferences.commitCount);
+            consumed.countDown();
+        }, () -> fail("The pending credit must be committed"));
+        assertTrue(consumed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, commitsBeforeConsume.get());
+        assertTrue(preferences.contains("pending:token_1"));
+        //nothing is credited before the consumption succeeded
+        assertEquals(0L, ledger.getBalance("coins"));
+    }
+
+    @Test
+    public void failedCommit_doesNotConsume() throws InterruptedException {
+        preferences.failCommits = true;
+        AtomicInteger consumeCount = new AtomicInteger();
+        CountDownLatch notRecorded = new CountDownLatch(1);
+
+        ledger.beginCredit("coins_100", "token_1", 1, consumeCount::incrementAndGet, notRecorded::countDown);
+
+        assertTrue(notRecorded.await(5, TimeUnit.SECONDS));
+        assertEquals(0, consumeCount.get());
+        assertFalse(ledger.hasPendingCredits());
+
+        //the purchase stays owned, the next attempt records and consumes it
+        preferences.failCommits = false;
+        consume("coins_100", "token_1", 1);
+        assertEquals(100L, ledger.settleCredit("token_1").getAmount());
+    }
+
+    @Test
+    public void productWithoutRate_isConsumedWithoutCredit() throws InterruptedException {
+        consume("remove_ads", "token_1", 1);
+
+        assertNull(ledger.settleCredit("token_1"));
+        assertEquals(0, preferences.commitCount);
+    }
+
+    @Test
+    public void sameToken_isCreditedOnce() throws InterruptedException {
+        consume("coins_100", "token_1", 1);
+        ledger.settleCredit("token_1");
+
+        consume("coins_100", "token_1", 1);
+        assertNull(ledger.settleCredit("token_1"));
+
+        assertEquals(100L, ledger.getBalance("coins"));
+        assertEquals(1, ledger.getHistory().size());
+    }
+
+    @Test
+    public void sameToken_isCreditedOnceAfterRestart() throws InterruptedException {
+        consume("coins_100", "token_1", 1);
+        ledger.settleCredit("token_1");
+        ledger.flush();
+        awaitPendingWrites();
+
+        ConsumableLedger restarted = newLedger();
+        assertEquals(100L, restarted.getBalance("coins"));
+        assertFalse(preferences.contains("pending:token_1"));
+
+        CountDownLatch consumed = new CountDownLatch(1);
+        restarted.beginCredit("coins_100", "token_1", 1, consumed::countDown, () -> fail("The credit is already known"));
+        assertTrue(consumed.await(5, TimeUnit.SECONDS));
+        assertNull(restarted.settleCredit("token_1"));
+        assertEquals(100L, restarted.getBalance("coins"));
+    }
+
+    @Test
+    public void history_isTrimmedToTheLimit() throws InterruptedException {
+        ledger.setHistoryLimit(2);
+        for (int i = 1; i <= 3; i++) {
+            consume("coins_100", "token_" + i, 1);
+            ledger.settleCredit("token_" + i);
+        }
+
+        List<LedgerEntry> history = ledger.getHistory();
+        assertEquals(2, history.size());
+        assertEquals("token_2", history.get(0).getPurchaseToken());
+        assertEquals("token_3", history.get(1).getPurchaseToken());
+        assertEquals(300L, ledger.getBalance("coins"));
+
+        //the trimmed token is no longer deduplicated
+        consume("coins_100", "token_1", 1);
+        assertEquals(100L, ledger.settleCredit("token_1").getAmount());
+    }
+
+    @Test
+    public void pendingCredit_ofAConsumedPurchase_isSettledAfterRestart() throws InterruptedException {
+        consume("coins_100", "token_1", 2);
+        consume("coins_100", "token_2", 1);
+
+        //the process dies before the consumption results arrive
+        ConsumableLedger restarted = newLedger();
+        assertEquals(0L, restarted.getBalance("coins"));
+
+        //token_1 was consumed, token_2 is still owned and will be consumed again
+        List<LedgerEntry> settled = restarted.reconcile(Collections.singletonList("token_2"));
+        assertEquals(1, settled.size());
+        assertEquals("token_1", settled.get(0).getPurchaseToken());
+        assertEquals(200L, restarted.getBalance("coins"));
+
+        restarted.flush();
+        awaitPendingWrites();
+        assertFalse(preferences.contains("pending:token_1"));
+        assertTrue(preferences.contains("pending:token_2"));
+    }
+
+    @Test
+    public void balances_areWrittenInOneBatch() throws InterruptedException {
+        for (int i = 1; i <= 3; i++) {
+            consume("coins_100", "token_" + i, 1);
+            ledger.settleCredit("token_" + i);
+        }
+        ledger.flush();
+        awaitPendingWrites();
+
+        //one commit per pending credit, the balances and the history are applied together
+        assertEquals(3, preferences.commitCount);
+        assertEquals(1, preferences.applyCount);
+        assertEquals(300L, preferences.getLong("balance:coins", 0));
+    }
+
+    private ConsumableLedger newLedger() {
+        return new ConsumableLedger(preferences).setRate("coins_100", "coins", 100L);
+    }
+
+    private void consume(String productId, String purchaseToken, int quantity) throws InterruptedException {
+        CountDownLatch consumed = new CountDownLatch(1);
+        ledger.beginCredit(productId, purchaseToken, quantity, consumed::countDown, () -> fail("The pending credit must be committed"));
+        assertTrue(consumed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitPendingWrites() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        ConsumableLedger.runAfterPendingWrites(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
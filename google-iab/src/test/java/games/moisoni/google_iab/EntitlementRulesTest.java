@@ -0,0 +1,88 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import games.moisoni.google_iab.models.EntitlementRule;
+
+public class EntitlementRulesTest {
+
+    private static final int PURCHASED = EntitlementRules.stateBit(Purchase.PurchaseState.PURCHASED);
+    private static final int PENDING = EntitlementRules.stateBit(Purchase.PurchaseState.PENDING);
+
+    @Test
+    public void anyOf_isGrantedByAnyProduct() {
+        EntitlementRules rules = new EntitlementRules(Collections.singletonList(
+                EntitlementRule.anyOf("no_ads", "remove_ads", "vip_monthly", "starter_bundle")));
+        int noAds = rules.getHandle("no_ads");
+        assertFalse(rules.isGranted(noAds));
+
+        rules.compile(owned("vip_monthly", PURCHASED));
+        assertTrue(rules.isGranted(noAds));
+
+        rules.compile(new HashMap<>());
+        assertFalse(rules.isGranted(noAds));
+    }
+
+    @Test
+    public void allOf_needsEveryProduct() {
+        EntitlementRules rules = new EntitlementRules(Collections.singletonList(
+                EntitlementRule.allOf("collector", "skin_red", "skin_blue")));
+        int collector = rules.getHandle("collector");
+
+        rules.compile(owned("skin_red", PURCHASED));
+        assertFalse(rules.isGranted(collector));
+
+        Map<String, Integer> both = owned("skin_red", PURCHASED);
+        both.put("skin_blue", PURCHASED);
+        rules.compile(both);
+        assertTrue(rules.isGranted(collector));
+    }
+
+    @Test
+    public void pendingPurchase_onlyCountsWhenAccepted() {
+        EntitlementRules rules = new EntitlementRules(Arrays.asList(
+                EntitlementRule.anyOf("strict", "gems"),
+                EntitlementRule.anyOf("lenient", "gems").withPurchaseStates(Purchase.PurchaseState.PURCHASED, Purchase.PurchaseState.PENDING)));
+
+        rules.compile(owned("gems", PENDING));
+        assertFalse(rules.isGranted(rules.getHandle("strict")));
+        assertTrue(rules.isGranted(rules.getHandle("lenient")));
+    }
+
+    @Test
+    public void handles_beyondOneWord_areIndependent() {
+        List<EntitlementRule> ruleList = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            ruleList.add(EntitlementRule.anyOf("entitlement_" + i, "product_" + i));
+        }
+        EntitlementRules rules = new EntitlementRules(ruleList);
+
+        rules.compile(owned("product_65", PURCHASED));
+        assertTrue(rules.isGranted(rules.getHandle("entitlement_65")));
+        assertFalse(rules.isGranted(rules.getHandle("entitlement_1")));
+        assertFalse(rules.isGranted(rules.getHandle("entitlement_64")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateName_isRejected() {
+        new EntitlementRules(Arrays.asList(EntitlementRule.anyOf("no_ads", "a"), EntitlementRule.anyOf("no_ads", "b")));
+    }
+
+    private static Map<String, Integer> owned(String productId, int stateMask) {
+        Map<String, Integer> stateMasksByProductId = new HashMap<>();
+        stateMasksByProductId.put(productId, stateMask);
+        return stateMasksByProductId;
+    }
+}
@@ -0,0 +1,206 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import games.moisoni.google_iab.enums.SkuProductType;
+import games.moisoni.google_iab.models.EntitlementSnapshot;
+
+public class EntitlementSnapshotStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(Files.createTempDirectory("snapshot").toFile(), "billing_entitlements.snapshot");
+    }
+
+    @Test
+    public void write_thenRead_keepsEveryField() {
+        EntitlementSnapshot.Entry removeAds = new EntitlementSnapshot.Entry("remove_ads", SkuProductType.NON_CONSUMABLE,
+                "token_1", 1, 1000L, true, false, "{\"productId\":\"remove_ads\"}", "signature_1");
+        EntitlementSnapshot.Entry vip = new EntitlementSnapshot.Entry("vip_monthly", SkuProductType.SUBSCRIPTION,
+                "token_2", 1, 2000L, false, true, "{\"productId\":\"vip_monthly\"}", "signature_2");
+        newStore().write(new EntitlementSnapshot(42L, true, false, Arrays.asList(removeAds, vip)));
+
+        EntitlementSnapshot snapshot = newStore().read();
+        assertEquals(42L, snapshot.getPublishedAtMillis());
+        assertTrue(snapshot.isInAppPurchasesFetched());
+        assertFalse(snapshot.isSubsPurchasesFetched());
+        assertEquals(2, snapshot.getEntries().size());
+
+        EntitlementSnapshot.Entry entry = snapshot.getEntry("vip_monthly");
+        assertEquals(SkuProductType.SUBSCRIPTION, entry.getSkuProductType());
+        assertEquals("token_2", entry.getPurchaseToken());
+        assertEquals(1, entry.getPurchaseState());
+        assertEquals(2000L, entry.getPurchaseTime());
+        assertFalse(entry.isAcknowledged());
+        assertTrue(entry.isAutoRenewing());
+        assertEquals("{\"productId\":\"vip_monthly\"}", entry.getOriginalJson());
+        assertEquals("signature_2", entry.getSignature());
+    }
+
+    @Test
+    public void header_holdsVersionSequenceAndPublishTime() throws IOException {
+        EntitlementSnapshotStore store = newStore();
+        store.write(snapshot(100L));
+        assertHeader(1L, 100L);
+
+        store.write(snapshot(200L));
+        assertHeader(2L, 200L);
+
+        //a new process continues the sequence of the file
+        newStore().write(snapshot(300L));
+        assertHeader(3L, 300L);
+    }
+
+    @Test
+    public void read_isCachedUntilTheSequenceChanges() {
+        EntitlementSnapshotStore reader = newStore();
+        EntitlementSnapshotStore writer = newStore();
+
+        writer.write(snapshot(100L));
+        EntitlementSnapshot first = reader.read();
+        assertSame(first, reader.read());
+
+        //same length and possibly the same modification time, only the sequence tells them apart
+        writer.write(snapshot(101L));
+        EntitlementSnapshot second = reader.read();
+        assertNotSame(first, second);
+        assertEquals(101L, second.getPublishedAtMillis());
+    }
+
+    @Test
+    public void write_renamesTheTempFileOverTheSnapshot() {
+        newStore().write(snapshot(100L));
+
+        assertEquals(0, tempFiles().length);
+        assertEquals(100L, newStore().read().getPublishedAtMillis());
+    }
+
+    @Test
+    public void failedRename_deletesTheTempFile() {
+        //a non empty directory in place of the snapshot makes the rename fail
+        assertTrue(new File(file, "child").mkdirs());
+
+        newStore().write(snapshot(100L));
+
+        assertEquals(0, tempFiles().length);
+        assertTrue(file.isDirectory());
+    }
+
+    @Test
+    public void twoStores_neverWriteTheSameSequence() throws IOException {
+        EntitlementSnapshotStore foreground = newStore();
+        EntitlementSnapshotStore background = newStore();
+        EntitlementSnapshotStore reader = newStore();
+
+        foreground.write(snapshot(100L));
+        background.write(snapshot(200L));
+        assertEquals(200L, reader.read().getPublishedAtMillis());
+
+        //the foreground store must not reuse the sequence it would have cached from its own write
+        foreground.write(snapshot(300L));
+        assertHeader(3L, 300L);
+        assertEquals(300L, reader.read().getPublishedAtMillis());
+    }
+
+    @Test
+    public void clear_doesNotRestartTheSequence() throws IOException {
+        EntitlementSnapshotStore reader = newStore();
+        newStore().write(snapshot(100L));
+        assertEquals(100L, reader.read().getPublishedAtMillis());
+
+        newStore().clear();
+        newStore().write(snapshot(200L));
+
+        assertHeader(2L, 200L);
+        assertEquals(200L, reader.read().getPublishedAtMillis());
+    }
+
+    @Test
+    public void unsupportedVersion_readsAsNoSnapshot() throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+            output.writeInt(1);
+            output.writeLong(100L);
+        }
+
+        assertNull(newStore().read());
+    }
+
+    @Test
+    public void clear_dropsTheQueuedPublish() throws InterruptedException {
+        EntitlementSnapshotStore store = newStore();
+
+        //the writer thread waits for the store lock, so the snapshot is still queued when clear() runs
+        synchronized (store) {
+            store.publish(snapshot(100L));
+            store.clear();
+        }
+        awaitPendingWrites();
+
+        assertFalse(file.exists());
+        assertNull(store.read());
+    }
+
+    @Test
+    public void clear_deletesTheWrittenSnapshot() throws InterruptedException {
+        EntitlementSnapshotStore store = newStore();
+        store.publish(snapshot(100L));
+        awaitPendingWrites();
+        assertEquals(100L, store.read().getPublishedAtMillis());
+
+        store.clear();
+
+        assertFalse(file.exists());
+        assertNull(store.read());
+    }
+
+    private EntitlementSnapshotStore newStore() {
+        return new EntitlementSnapshotStore(file, new BillingLogger("EntitlementSnapshotStoreTest"));
+    }
+
+    private File[] tempFiles() {
+        File[] tempFiles = file.getParentFile().listFiles((directory, name) -> name.endsWith(".tmp"));
+        return tempFiles != null ? tempFiles : new File[0];
+    }
+
+    private static EntitlementSnapshot snapshot(long publishedAtMillis) {
+        return new EntitlementSnapshot(publishedAtMillis, true, true, Collections.singletonList(
+                new EntitlementSnapshot.Entry("remove_ads", SkuProductType.NON_CONSUMABLE,
+                        "token", 1, 1000L, true, false, "{}", "signature")));
+    }
+
+    private void assertHeader(long sequence, long publishedAtMillis) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            assertEquals(2, input.readInt());
+            assertEquals(sequence, input.readLong());
+            assertEquals(publishedAtMillis, input.readLong());
+        }
+    }
+
+    private static void awaitPendingWrites() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        EntitlementSnapshotStore.runAfterPendingWrites(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
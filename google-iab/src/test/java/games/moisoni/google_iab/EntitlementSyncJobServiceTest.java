@@ -0,0 +1,40 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import games.moisoni.google_iab.enums.ErrorType;
+import games.moisoni.google_iab.enums.ProductType;
+
+public class EntitlementSyncJobServiceTest {
+
+    @Test
+    public void sync_waitsForInAppAndSubsPurchases() {
+        EntitlementSyncJobService.SyncProgress progress = new EntitlementSyncJobService.SyncProgress();
+        assertFalse(progress.onPurchasesFetched(ProductType.SUBS, true));
+        assertTrue(progress.onPurchasesFetched(ProductType.INAPP, true));
+    }
+
+    @Test
+    public void sync_finishesWithInAppPurchasesWhenSubsAreNotSupported() {
+        EntitlementSyncJobService.SyncProgress progress = new EntitlementSyncJobService.SyncProgress();
+        assertTrue(progress.onPurchasesFetched(ProductType.INAPP, false));
+    }
+
+    @Test
+    public void sync_isNotFinishedBySubsPurchasesAlone() {
+        EntitlementSyncJobService.SyncProgress progress = new EntitlementSyncJobService.SyncProgress();
+        assertFalse(progress.onPurchasesFetched(ProductType.SUBS, false));
+        assertFalse(progress.onPurchasesFetched(ProductType.SUBS, true));
+    }
+
+    @Test
+    public void unrecoverableErrors_endTheSync() {
+        assertTrue(EntitlementSyncJobService.isSyncImpossible(ErrorType.PLAY_STORE_NOT_INSTALLED));
+        assertTrue(EntitlementSyncJobService.isSyncImpossible(ErrorType.BILLING_UNAVAILABLE));
+        assertFalse(EntitlementSyncJobService.isSyncImpossible(ErrorType.FETCH_PURCHASED_PRODUCTS_ERROR));
+        assertFalse(EntitlementSyncJobService.isSyncImpossible(ErrorType.BILLING_ERROR));
+    }
+}
@@ -0,0 +1,68 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import games.moisoni.google_iab.enums.LogLevel;
+
+public class EntitlementSyncSchedulerTest {
+
+    @Test
+    public void persistedConfiguration_isReadBackByTheJob() {
+        InMemorySharedPreferences preferences = new InMemorySharedPreferences();
+        newScheduler()
+                .setConsumableIds(Arrays.asList("coins_100", "coins_500"))
+                .setSubscriptionIds(Collections.singletonList("vip_monthly"))
+                .setJobId(42)
+                .setLogLevel(LogLevel.DEBUG)
+                .persistConfiguration(preferences);
+
+        assertEquals("base64_key", preferences.getString(EntitlementSyncScheduler.KEY_BASE64_KEY, null));
+        assertEquals(new HashSet<>(Arrays.asList("coins_100", "coins_500")),
+                new HashSet<>(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_CONSUMABLE_IDS)));
+        assertNull(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_NON_CONSUMABLE_IDS));
+        assertEquals(Collections.singletonList("vip_monthly"),
+                EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_SUBSCRIPTION_IDS));
+        assertEquals(42, preferences.getInt("job_id", 0));
+        assertEquals(LogLevel.DEBUG, EntitlementSyncScheduler.readLogLevel(preferences));
+    }
+
+    @Test
+    public void missingIds_readAsNull() {
+        InMemorySharedPreferences preferences = new InMemorySharedPreferences();
+        assertNull(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_CONSUMABLE_IDS));
+
+        preferences.edit().putStringSet(EntitlementSyncScheduler.KEY_CONSUMABLE_IDS, new HashSet<>()).apply();
+        assertNull(EntitlementSyncScheduler.readIds(preferences, EntitlementSyncScheduler.KEY_CONSUMABLE_IDS));
+    }
+
+    @Test
+    public void logLevel_defaultsToNone() {
+        InMemorySharedPreferences preferences = new InMemorySharedPreferences();
+        assertEquals(LogLevel.NONE, EntitlementSyncScheduler.readLogLevel(preferences));
+
+        preferences.edit().putString(EntitlementSyncScheduler.KEY_LOG_LEVEL, "CHATTY").apply();
+        assertEquals(LogLevel.NONE, EntitlementSyncScheduler.readLogLevel(preferences));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void schedule_withoutProducts_isRejected() {
+        newScheduler().schedule();
+    }
+
+    private static EntitlementSyncScheduler newScheduler() {
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        return new EntitlementSyncScheduler(context, "base64_key");
+    }
+}
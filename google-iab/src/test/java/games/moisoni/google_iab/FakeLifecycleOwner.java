@@ -0,0 +1,64 @@
+package games.moisoni.google_iab;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lifecycle owner for unit tests, moved to DESTROYED by hand
+ */
+final class FakeLifecycleOwner implements LifecycleOwner {
+
+    private final List<LifecycleObserver> observers = new ArrayList<>();
+    private Lifecycle.State state;
+
+    private final Lifecycle lifecycle = new Lifecycle() {
+        @Override
+        public void addObserver(@NonNull LifecycleObserver observer) {
+            observers.add(observer);
+        }
+
+        @Override
+        public void removeObserver(@NonNull LifecycleObserver observer) {
+            observers.remove(observer);
+        }
+
+        @NonNull
+        @Override
+        public State getCurrentState() {
+            return state;
+        }
+    };
+
+    FakeLifecycleOwner() {
+        this(Lifecycle.State.RESUMED);
+    }
+
+    FakeLifecycleOwner(@NonNull Lifecycle.State state) {
+        this.state = state;
+    }
+
+    @NonNull
+    @Override
+    public Lifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    int getObserverCount() {
+        return observers.size();
+    }
+
+    void destroy() {
+        state = Lifecycle.State.DESTROYED;
+        for (LifecycleObserver observer : new ArrayList<>(observers)) {
+            if (observer instanceof DefaultLifecycleObserver) {
+                ((DefaultLifecycleObserver) observer).onDestroy(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.billingclient.api.QueryProductDetailsParams;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.SkuProductType;
+
+public class ProductCatalogTest {
+
+    private ProductCatalog catalog;
+
+    @Before
+    public void setUp() {
+        catalog = new ProductCatalog();
+        catalog.setConsumableIds(Collections.singletonList("coins"));
+        catalog.setSubscriptionIds(Collections.singletonList("vip"));
+        catalog.validate();
+        catalog.rebuildProductParams();
+    }
+
+    @Test
+    public void add_beforeConnect_isTakenByTheStartupQueries() {
+        List<QueryProductDetailsParams.Product> added = catalog.add(SkuProductType.NON_CONSUMABLE, Collections.singletonList("remove_ads"));
+
+        assertEquals(1, added.size());
+        assertFalse(catalog.isQueriedByConnection());
+        assertEquals(SkuProductType.NON_CONSUMABLE, catalog.getType("remove_ads"));
+        assertEquals(2, catalog.getInAppProducts().size());
+
+        //connect() rebuilds the params from the ids, the added product is kept
+        catalog.rebuildProductParams();
+        assertEquals(2, catalog.getInAppProducts().size());
+        assertEquals(1, catalog.getSubsProducts().size());
+    }
+
+    @Test
+    public void add_whileConnected_isQueriedOnItsOwn() {
+        catalog.markQueriedByConnection();
+
+        List<QueryProductDetailsParams.Product> added = catalog.add(SkuProductType.SUBSCRIPTION, Arrays.asList("vip_yearly", "vip_yearly"));
+
+        assertTrue(catalog.isQueriedByConnection());
+        assertEquals(1, added.size());
+        assertEquals(2, catalog.getSubsProducts().size());
+        assertEquals(SkuProductType.SUBSCRIPTION, catalog.getType("vip_yearly"));
+    }
+
+    @Test
+    public void connectionLost_addedProductsWaitForTheNextStartup() {
+        catalog.markQueriedByConnection();
+        catalog.onConnectionLost();
+
+        catalog.add(SkuProductType.CONSUMABLE, Collections.singletonList("gems"));
+
+        assertFalse(catalog.isQueriedByConnection());
+        assertEquals(2, catalog.getInAppProducts().size());
+    }
+
+    @Test
+    public void add_duplicateOfAnotherType_throwsAndAddsNothing() {
+        try {
+            catalog.add(SkuProductType.NON_CONSUMABLE, Arrays.asList("remove_ads", "coins"));
+            fail("A product id in the catalog with another type must be rejected");
+        } catch (IllegalArgumentException expected) {
+            //expected
+        }
+
+        assertNull(catalog.getType("remove_ads"));
+        assertEquals(SkuProductType.CONSUMABLE, catalog.getType("coins"));
+        assertEquals(1, catalog.getInAppProducts().size());
+    }
+
+    @Test
+    public void add_duplicateOfTheSameType_isIgnored() {
+        List<QueryProductDetailsParams.Product> added = catalog.add(SkuProductType.CONSUMABLE, Collections.singletonList("coins"));
+
+        assertTrue(added.isEmpty());
+        assertEquals(1, catalog.getInAppProducts().size());
+    }
+
+    @Test
+    public void remove_whileItsQueryIsInFlight_skipsTheResult() {
+        catalog.markQueriedByConnection();
+        catalog.add(SkuProductType.CONSUMABLE, Collections.singletonList("gems"));
+
+        //the query of gems is running, its result is only cached while gems is still in the catalog
+        catalog.remove(Collections.singletonList("gems"));
+
+        assertNull(catalog.getType("gems"));
+        assertFalse(catalog.isConsumable("gems"));
+        assertTrue(catalog.isConsumable("coins"));
+        assertEquals(1, catalog.getInAppProducts().size());
+    }
+
+    @Test
+    public void remove_lastIdOfAType_rebuildsEmptyParams() {
+        catalog.remove(Collections.singletonList("vip"));
+
+        assertNull(catalog.getType("vip"));
+        assertTrue(catalog.getSubsProducts().isEmpty());
+        assertEquals(1, catalog.getInAppProducts().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validate_withoutIds_throws() {
+        ProductCatalog emptyCatalog = new ProductCatalog();
+        emptyCatalog.setConsumableIds(Collections.emptyList());
+        emptyCatalog.validate();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validate_withIdInTwoLists_throws() {
+        ProductCatalog duplicateCatalog = new ProductCatalog();
+        duplicateCatalog.setConsumableIds(Collections.singletonList("coins"));
+        duplicateCatalog.setNonConsumableIds(Collections.singletonList("coins"));
+        duplicateCatalog.validate();
+    }
+}
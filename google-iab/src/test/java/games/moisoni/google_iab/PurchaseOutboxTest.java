@@ -0,0 +1,234 @@
+package games.moisoni.google_iab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import games.moisoni.google_iab.models.OutboxEntry;
+
+/**
+ * Drives PurchaseOutbox against a local HTTP stub of the game server
+ */
+public class PurchaseOutboxTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private HttpServer server;
+    private URL endpoint;
+    private File outboxFile;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    private final List<String> deliveredTokens = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/purchases", exchange -> {
+            requestCount.incrementAndGet();
+            String body = read(exchange.getRequestBody());
+
+            if (failuresLeft.getAndUpdate(left -> Math.max(left - 1, 0)) > 0) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+
+            JSONArray purchases = new JSONObject(body).getJSONArray("purchases");
+            JSONArray acknowledged = new JSONArray();
+            for (int i = 0; i < purchases.length(); i++) {
+                String purchaseToken = purchases.getJSONObject(i).getString("purchaseToken");
+                deliveredTokens.add(purchaseToken);
+                acknowledged.put(purchaseToken);
+            }
+            batchSizes.add(purchases.length());
+
+            byte[] response = new JSONObject().put("acknowledged", acknowledged).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(response);
+            }
+        });
+        server.start();
+
+        endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/purchases");
+        outboxFile = new File(Files.createTempDirectory("outbox").toFile(), "outbox.log");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void entries_areDeliveredInBatches() throws Exception {
+        PurchaseOutbox outbox = newOutbox().setBatchSize(2);
+        for (int i = 0; i < 5; i++) {
+            outbox.enqueue(entry("token_" + i));
+        }
+
+        awaitDelivered(5);
+        awaitPendingCount(outbox, 0);
+        outbox.close();
+
+        assertEquals(5, deliveredTokens.size());
+        assertTrue(batchSizes.size() >= 3);
+        for (int batchSize : batchSizes) {
+            assertTrue(batchSize <= 2);
+        }
+    }
+
+    @Test
+    public void failedBatch_isRetriedWithBackoff() throws Exception {
+        failuresLeft.set(2);
+        PurchaseOutbox outbox = newOutbox();
+        outbox.enqueue(entry("token_retry"));
+
+        awaitDelivered(1);
+        awaitPendingCount(outbox, 0);
+        outbox.close();
+
+        assertEquals(3, requestCount.get());
+        assertEquals(List.of("token_retry"), deliveredTokens);
+    }
+
+    @Test
+    public void duplicateToken_isDeliveredOnce() throws Exception {
+        failuresLeft.set(1);
+        PurchaseOutbox outbox = newOutbox();
+        outbox.enqueue(entry("token_same"));
+        outbox.enqueue(entry("token_same"));
+
+        awaitDelivered(1);
+        awaitPendingCount(outbox, 0);
+        Thread.sleep(100);
+        outbox.close();
+
+        assertEquals(List.of("token_same"), deliveredTokens);
+    }
+
+    @Test
+    public void pendingEntries_surviveRestart() throws Exception {
+        failuresLeft.set(Integer.MAX_VALUE);
+        PurchaseOutbox offlineOutbox = newOutbox();
+        offlineOutbox.enqueue(entry("token_a"));
+        offlineOutbox.enqueue(entry("token_b"));
+        awaitPendingCount(offlineOutbox, 2);
+        awaitRequests(1);
+        offlineOutbox.close();
+
+        failuresLeft.set(0);
+        PurchaseOutbox outbox = newOutbox();
+        awaitDelivered(2);
+        awaitPendingCount(outbox, 0);
+        outbox.close();
+
+        assertEquals(List.of("token_a", "token_b"), deliveredTokens);
+
+        //acknowledged entries are not delivered again by the next process
+        PurchaseOutbox restartedOutbox = newOutbox();
+        Thread.sleep(100);
+        assertEquals(0, restartedOutbox.getPendingCount());
+        restartedOutbox.close();
+        assertEquals(2, deliveredTokens.size());
+    }
+
+    @Test
+    public void tornRecord_isDiscarded() throws Exception {
+        failuresLeft.set(Integer.MAX_VALUE);
+        PurchaseOutbox offlineOutbox = newOutbox();
+        offlineOutbox.enqueue(entry("token_kept"));
+        awaitPendingCount(offlineOutbox, 1);
+        offlineOutbox.close();
+
+        //a crash in the middle of an append leaves a partial record behind
+        try (FileOutputStream output = new FileOutputStream(outboxFile, true)) {
+            output.write(new byte[]{0, 0, 0, 42, 1, 2});
+        }
+
+        failuresLeft.set(0);
+        PurchaseOutbox outbox = newOutbox();
+        awaitDelivered(1);
+        awaitPendingCount(outbox, 0);
+        outbox.close();
+
+        assertEquals(List.of("token_kept"), deliveredTokens);
+    }
+
+    @Test
+    public void enqueue_afterClose_isDropped() throws Exception {
+        PurchaseOutbox outbox = newOutbox();
+        outbox.close();
+
+        outbox.enqueue(entry("token_late"));
+        outbox.flush();
+        Thread.sleep(100);
+
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(0, requestCount.get());
+    }
+
+    private PurchaseOutbox newOutbox() {
+        return new PurchaseOutbox(outboxFile, new HttpOutboxTransport(endpoint), 10, 50);
+    }
+
+    private static OutboxEntry entry(String purchaseToken) {
+        return new OutboxEntry("coins_100", purchaseToken, "{\"purchaseToken\":\"" + purchaseToken + "\"}", "signature");
+    }
+
+    private static void awaitPendingCount(PurchaseOutbox outbox, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (outbox.getPendingCount() != expected) {
+            assertTrue("Pending count is " + outbox.getPendingCount() + ", expected " + expected, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitDelivered(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (deliveredTokens.size() < expected) {
+            assertTrue("Delivered " + deliveredTokens + ", expected " + expected + " tokens", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitRequests(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (requestCount.get() < expected) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package games.moisoni.google_iab.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class OfferPricingTest {
+
+    private static final int INFINITE_RECURRING = 1;
+    private static final int FINITE_RECURRING = 2;
+    private static final int NON_RECURRING = 3;
+
+    @Test
+    public void billingPeriod_parsesIsoPeriods() {
+        assertEquals(7.0, BillingPeriod.parse("P1W").toDays(), 0.0001);
+        assertEquals(3.0, BillingPeriod.parse("P3D").toDays(), 0.0001);
+        assertEquals(365.0 / 12.0, BillingPeriod.parse("P1M").toDays(), 0.0001);
+        assertEquals(365.0, BillingPeriod.parse("P1Y").toDays(), 0.0001);
+        assertEquals(365.0 + 2 * 365.0 / 12.0, BillingPeriod.parse("P1Y2M").toDays(), 0.0001);
+        assertTrue(BillingPeriod.parse("1M").isEmpty());
+        assertTrue(BillingPeriod.parse("PM").isEmpty());
+        assertTrue(BillingPeriod.parse(null).isEmpty());
+    }
+
+    @Test
+    public void billingPeriod_isCached() {
+        assertSame(BillingPeriod.parse("P6M"), BillingPeriod.parse("P6M"));
+    }
+
+    @Test
+    public void monthlyPlan_withoutIntroPhases() {
+        OfferPricing pricing = OfferPricing.from(Collections.singletonList(
+                phase(4_990_000L, "P1M", 0, INFINITE_RECURRING)));
+
+        assertEquals(0, pricing.getFreeTrialDays());
+        assertEquals(12 * 4_990_000L, pricing.getFirstYearCostMicros());
+        assertEquals(4_990_000L, pricing.getEffectivePricePerMonthMicros());
+        assertEquals(4_990_000L, pricing.getRecurringPricePerMonthMicros());
+    }
+
+    @Test
+    public void freeTrial_thenIntroPrice_thenBasePrice() {
+        OfferPricing pricing = OfferPricing.from(Arrays.asList(
+                phase(0L, "P1W", 1, NON_RECURRING),
+                phase(990_000L, "P1M", 3, FINITE_RECURRING),
+                phase(4_990_000L, "P1M", 0, INFINITE_RECURRING)));
+
+        assertEquals(7, pricing.getFreeTrialDays());
+        assertTrue(pricing.hasFreeTrial());
+        //3 intro months, then 9 full-price months start before the year ends
+        assertEquals(3 * 990_000L + 9 * 4_990_000L, pricing.getFirstYearCostMicros());
+        assertEquals(Math.round(pricing.getFirstYearCostMicros() / 365.0), pricing.getEffectivePricePerDayMicros());
+        assertEquals(4_990_000L, pricing.getRecurringPricePerMonthMicros());
+    }
+
+    @Test
+    public void yearlyPlan_normalizesToMonthlyPrice() {
+        OfferPricing pricing = OfferPricing.from(Collections.singletonList(
+                phase(47_880_000L, "P1Y", 0, INFINITE_RECURRING)));
+
+        assertEquals(47_880_000L, pricing.getFirstYearCostMicros());
+        assertEquals(3_990_000L, pricing.getEffectivePricePerMonthMicros());
+        assertEquals(3_990_000L, pricing.getRecurringPricePerMonthMicros());
+    }
+
+    private static SubscriptionOfferDetails.PricingPhases phase(long priceMicros, String billingPeriod, int billingCycleCount, int recurrenceMode) {
+        return new SubscriptionOfferDetails.PricingPhases("", priceMicros, "USD", billingPeriod, billingCycleCount, recurrenceMode);
+    }
+}
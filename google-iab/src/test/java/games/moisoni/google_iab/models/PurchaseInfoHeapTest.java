@@ -0,0 +1,76 @@
+package games.moisoni.google_iab.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import games.moisoni.google_iab.enums.SkuProductType;
+
+/**
+ * Measures the heap retained by PurchaseInfo on top of the purchases it wraps
+ */
+public class PurchaseInfoHeapTest {
+
+    private static final int PURCHASE_COUNT = 10_000;
+
+    //object header + 4 references + 1 int + 1 long, with generous slack for alignment and gc noise
+    private static final long MAX_BYTES_PER_PURCHASE_INFO = 96;
+
+    @Test
+    public void purchaseInfo_retainsOnlyHotFields() throws Exception {
+        ProductInfo productInfo = mock(ProductInfo.class);
+        when(productInfo.getProduct()).thenReturn("coins_100");
+        when(productInfo.getSkuProductType()).thenReturn(SkuProductType.CONSUMABLE);
+
+        List<Purchase> purchases = new ArrayList<>(PURCHASE_COUNT);
+        for (int i = 0; i < PURCHASE_COUNT; i++) {
+            purchases.add(new Purchase(purchaseJson(i), "signature_" + i));
+        }
+
+        List<PurchaseInfo> purchaseInfos = new ArrayList<>(PURCHASE_COUNT);
+        long before = usedHeap();
+        for (Purchase purchase : purchases) {
+            purchaseInfos.add(new PurchaseInfo(productInfo, purchase));
+        }
+        long after = usedHeap();
+
+        long bytesPerPurchaseInfo = (after - before) / PURCHASE_COUNT;
+        assertTrue("PurchaseInfo retains " + bytesPerPurchaseInfo + " bytes per purchase",
+                bytesPerPurchaseInfo <= MAX_BYTES_PER_PURCHASE_INFO);
+
+        //delegated getters still resolve against the wrapped purchase
+        PurchaseInfo first = purchaseInfos.get(0);
+        assertEquals("token_0", first.getPurchaseToken());
+        assertEquals("signature_0", first.getSignature());
+        assertEquals("GPA.0", first.getOrderId());
+        assertEquals(purchases.get(0).getOriginalJson(), first.getOriginalJson());
+        assertTrue(first.isPurchased());
+    }
+
+    private static String purchaseJson(int index) {
+        return "{\"orderId\":\"GPA." + index + "\"," +
+                "\"packageName\":\"games.moisoni.test\"," +
+                "\"productId\":\"coins_100\"," +
+                "\"purchaseTime\":" + (1_700_000_000_000L + index) + "," +
+                "\"purchaseState\":0," +
+                "\"purchaseToken\":\"token_" + index + "\"," +
+                "\"quantity\":1," +
+                "\"acknowledged\":false}";
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}